@@ -0,0 +1,230 @@
+package benchmarks;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import application.Bandwidth;
+import application.CameraMode;
+import application.CameraStream;
+import application.Frame;
+import application.FrameAssembler;
+import application.FrameDecoder;
+import application.FrameRate;
+import application.OV2640;
+import application.OV5642;
+import tools.ImageSender;
+
+/**
+ * The receive hot path under JMH: header parsing, reassembly, rate estimation
+ * and JPEG decode at every camera resolution. Run with the gc profiler so a
+ * hot path that starts allocating shows up as a non-zero gc.alloc.rate.norm:
+ *
+ * <pre>
+ * java -jar benchmarks/target/benchmarks.jar -prof gc
+ * </pre>
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1)
+public class HotPathBenchmark
+{
+  private static final int HEADER_SIZE = 9;
+  private static final int PAYLOAD_SIZE = 1024;
+  private static final int PACKETS_PER_FRAME = 16;
+  private static final byte START_OF_IMAGE = (byte) 0x80;
+  private static final byte END_OF_IMAGE = (byte) 0x40;
+
+  // a packet of a frame that has PACKETS_PER_FRAME packets
+  private static void fillPacket(ByteBuffer packet, int packetNumber, int imageNumber, int index, int mode)
+  {
+    byte status = (byte) mode;
+    if (index == 0)
+      status |= START_OF_IMAGE;
+    if (index == PACKETS_PER_FRAME - 1)
+      status |= END_OF_IMAGE;
+    packet.clear();
+    packet.putInt(0, packetNumber);
+    packet.putInt(4, imageNumber);
+    packet.put(8, status);
+  }
+
+  @State(Scope.Thread)
+  public static class Receive
+  {
+    ByteBuffer packet;
+    CameraStream stream;
+    long count = 0;
+    long received = 0;
+    int lateImageNumber;
+
+    @Setup
+    public void setup()
+    {
+      packet = ByteBuffer.allocateDirect(HEADER_SIZE + PAYLOAD_SIZE);
+      packet.order(ByteOrder.LITTLE_ENDIAN);
+      stream = new CameraStream("benchmark", frame -> received += frame.getLength());
+
+      // a few frames through, so there is an earlier frame for late packets
+      for (; count < 4 * PACKETS_PER_FRAME; count++)
+      {
+        fillPacket(packet, (int) count + 1, (int) (count / PACKETS_PER_FRAME) + 1, (int) (count % PACKETS_PER_FRAME),
+            4);
+        stream.handlePacket(packet, System.nanoTime());
+      }
+      lateImageNumber = stream.getImageNumber() - 1;
+    }
+  }
+
+  // every packet through handlePacket, a frame completing every
+  // PACKETS_PER_FRAME packets
+  @Benchmark
+  public void receiveInOrder(Receive state, Blackhole blackhole)
+  {
+    long i = state.count++;
+    fillPacket(state.packet, (int) i + 1, (int) (i / PACKETS_PER_FRAME) + 1, (int) (i % PACKETS_PER_FRAME), 4);
+    state.stream.handlePacket(state.packet, System.nanoTime());
+    blackhole.consume(state.stream.getNumFrames());
+    blackhole.consume(state.received);
+  }
+
+  // packets for a frame that was already handed on are rejected right after
+  // the header is parsed, which isolates parsing and bookkeeping
+  @Benchmark
+  public void headerParseLatePackets(Receive state, Blackhole blackhole)
+  {
+    fillPacket(state.packet, (int) state.count++, state.lateImageNumber, 1, 4);
+    state.stream.handlePacket(state.packet, System.nanoTime());
+    blackhole.consume(state.stream.getPacketNumber());
+  }
+
+  @State(Scope.Thread)
+  public static class Reassembly
+  {
+    ByteBuffer payload;
+    FrameAssembler assembler;
+    int[] order = new int[PACKETS_PER_FRAME];
+    long count = 0;
+    long completed = 0;
+
+    @Setup
+    public void setup()
+    {
+      payload = ByteBuffer.allocateDirect(PAYLOAD_SIZE);
+      assembler = new FrameAssembler(4, 64, 4096, PAYLOAD_SIZE, 1000, new FrameAssembler.Sink()
+      {
+        @Override
+        public void frameCompleted(Frame frame)
+        {
+          completed += frame.getLength();
+        }
+
+        @Override
+        public void frameDropped(int imageNumber)
+        {
+        }
+      });
+
+      // the packets of each frame in a fixed shuffled order
+      for (int i = 0; i < order.length; i++)
+        order[i] = i;
+      Random random = new Random(1);
+      for (int i = order.length - 1; i > 0; i--)
+      {
+        int j = random.nextInt(i + 1);
+        int swap = order[i];
+        order[i] = order[j];
+        order[j] = swap;
+      }
+    }
+  }
+
+  @Benchmark
+  public void reassemblyInOrder(Reassembly state, Blackhole blackhole)
+  {
+    long i = state.count++;
+    int index = (int) (i % PACKETS_PER_FRAME);
+    state.payload.clear();
+    state.assembler.addPacket((int) i + 1, (int) (i / PACKETS_PER_FRAME) + 1, 4, index == 0,
+        index == PACKETS_PER_FRAME - 1, state.payload, System.nanoTime());
+    blackhole.consume(state.assembler.getCompletedFrames());
+    blackhole.consume(state.completed);
+  }
+
+  @Benchmark
+  public void reassemblyReordered(Reassembly state, Blackhole blackhole)
+  {
+    long i = state.count++;
+    long frame = i / PACKETS_PER_FRAME;
+    int index = state.order[(int) (i % PACKETS_PER_FRAME)];
+    state.payload.clear();
+    state.assembler.addPacket((int) (frame * PACKETS_PER_FRAME + index) + 1, (int) frame + 1, 4, index == 0,
+        index == PACKETS_PER_FRAME - 1, state.payload, System.nanoTime());
+    blackhole.consume(state.assembler.getCompletedFrames());
+    blackhole.consume(state.completed);
+  }
+
+  @State(Scope.Thread)
+  public static class Rates
+  {
+    Bandwidth bandwidth = new Bandwidth(4000, 40);
+    FrameRate frameRate = new FrameRate(5000, 50);
+  }
+
+  @Benchmark
+  public void bandwidthAddPacket(Rates state, Blackhole blackhole)
+  {
+    state.bandwidth.addPacket(HEADER_SIZE + PAYLOAD_SIZE);
+    blackhole.consume(state.bandwidth.getBandwidth());
+  }
+
+  @Benchmark
+  public void frameRateAddFrame(Rates state, Blackhole blackhole)
+  {
+    state.frameRate.addFrame();
+    blackhole.consume(state.frameRate.getFrameRate());
+  }
+
+  @State(Scope.Thread)
+  public static class Decode
+  {
+    @Param({ "OV2640_160x120", "OV2640_176x144", "OV2640_320x240", "OV2640_352x288", "OV2640_640x480",
+        "OV2640_800x600", "OV2640_1024x768", "OV2640_1280x1024", "OV2640_1600x1200", "OV5642_320x240",
+        "OV5642_640x480", "OV5642_1024x768", "OV5642_1280x960", "OV5642_1600x1200", "OV5642_2048x1536",
+        "OV5642_2592x1944" })
+    String mode;
+
+    Frame frame;
+
+    @Setup
+    public void setup() throws Exception
+    {
+      CameraMode cameraMode = mode.startsWith("OV5642") ? OV5642.valueOf(mode) : OV2640.valueOf(mode);
+      byte[] jpeg = ImageSender.syntheticJpeg(cameraMode.getWidth(), cameraMode.getHeight(), cameraMode.getMode());
+      frame = new Frame(1, cameraMode.getMode(), ByteBuffer.wrap(jpeg), 0, 0);
+    }
+  }
+
+  @Benchmark
+  @OutputTimeUnit(TimeUnit.MICROSECONDS)
+  public void decode(Decode state, Blackhole blackhole)
+  {
+    blackhole.consume(FrameDecoder.decodeFullResolution(state.frame));
+  }
+}
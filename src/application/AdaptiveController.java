@@ -0,0 +1,256 @@
+package application;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Comparator;
+
+/**
+ * Picks the packet size and, optionally, the camera mode for the link it
+ * finds, instead of an operator watching the dropped packet count. The
+ * settings form a ladder, modes from fewest to most pixels and within each
+ * mode packet sizes from smallest to largest, and the controller moves one
+ * rung at a time, sending the camera the same mode and packet size command
+ * as the Reset button.
+ *
+ * Every interval it looks at the packet loss rate, the decode thread's load
+ * and the bandwidth received. Loss over the target, or a decoder that can't
+ * keep up, steps down straight away, to the mode below when loss is heavy; it
+ * takes several clean intervals in a row, with loss well under the target, to
+ * step up. A rung that failed is only tried again after a hold that doubles
+ * each time it fails, and a mode the bandwidth seen when loss set in couldn't
+ * carry waits for that hold too, so the controller settles rather than
+ * oscillates.
+ */
+public class AdaptiveController implements Runnable
+{
+  // what the controller changes, usually by sending a command to the camera
+  public interface CommandSink
+  {
+    void command(CameraMode mode, int packetSize) throws IOException;
+  }
+
+  static final int[] PACKET_SIZES = { 1024, 1280, 1536, 1792, 2048 };
+  // clean intervals before stepping up
+  private static final int UP_INTERVALS = 3;
+  // before trying a rung that failed again, doubling up to the maximum
+  private static final int FIRST_HOLD_INTERVALS = 12;
+  private static final int MAX_HOLD_INTERVALS = 48;
+  // intervals ignored after a command while the camera restarts its stream
+  private static final int SETTLE_INTERVALS = 1;
+  // fewer packets than this in an interval says nothing about loss
+  private static final int MIN_PACKETS = 50;
+  // stepping up needs loss this far under the target
+  private static final double UP_FRACTION = 0.25;
+  // loss this far over the target is too many bytes, not too big packets
+  private static final double HEAVY_FACTOR = 5;
+  // fraction of the time the decode thread may be busy
+  private static final double MAX_DECODE_LOAD = 0.8;
+
+  private final StreamReceiver receiver;
+  private final CameraMode[] modes;
+  private final CommandSink sink;
+  private final double targetLoss;
+  private final long intervalMillis;
+  private final boolean adaptMode;
+  private volatile boolean running = true;
+
+  // controller thread only
+  private int level;
+  private int minLevel;
+  private int maxLevel;
+  private int failedLevel = Integer.MAX_VALUE;
+  private int holdIntervals = UP_INTERVALS;
+  private double capacity = Double.MAX_VALUE;
+  private int goodIntervals = 0;
+  private int settleIntervals = SETTLE_INTERVALS;
+  private long lastPackets;
+  private long lastDropped;
+  private long lastDecodedFrames;
+  private long lastDecodeNanos;
+
+  private volatile double lossRate = 0;
+  private volatile double decodeLoad = 0;
+  private volatile int steps = 0;
+
+  /**
+   * @param modes the camera's modes, in any order
+   * @param targetLoss highest fraction of packets that may be lost
+   * @param adaptMode change the mode as well as the packet size
+   */
+  public AdaptiveController(StreamReceiver receiver, CameraMode[] modes, CommandSink sink, double targetLoss,
+      long intervalMillis, boolean adaptMode)
+  {
+    this.receiver = receiver;
+    this.modes = modes.clone();
+    Arrays.sort(this.modes, Comparator.comparingInt(m -> m.getWidth() * m.getHeight()));
+    this.sink = sink;
+    this.targetLoss = targetLoss;
+    this.intervalMillis = intervalMillis;
+    this.adaptMode = adaptMode;
+  }
+
+  /**
+   * Start from this mode and packet size, which the camera is assumed to be
+   * using already. Without mode adaptation the controller stays in this mode.
+   */
+  public void setStart(CameraMode mode, int packetSize)
+  {
+    int modeIndex = Math.max(0, Arrays.asList(modes).indexOf(mode));
+    int sizeIndex = 0;
+    while (sizeIndex + 1 < PACKET_SIZES.length && PACKET_SIZES[sizeIndex + 1] <= packetSize)
+      sizeIndex++;
+    level = modeIndex * PACKET_SIZES.length + sizeIndex;
+    minLevel = adaptMode ? 0 : modeIndex * PACKET_SIZES.length;
+    maxLevel = adaptMode ? modes.length * PACKET_SIZES.length - 1 : minLevel + PACKET_SIZES.length - 1;
+  }
+
+  public CameraMode getMode()
+  {
+    return modes[level / PACKET_SIZES.length];
+  }
+
+  public int getPacketSize()
+  {
+    return PACKET_SIZES[level % PACKET_SIZES.length];
+  }
+
+  // over the last interval
+  public double getLossRate()
+  {
+    return lossRate;
+  }
+
+  public double getDecodeLoad()
+  {
+    return decodeLoad;
+  }
+
+  // commands sent
+  public int getSteps()
+  {
+    return steps;
+  }
+
+  public void stop()
+  {
+    running = false;
+  }
+
+  @Override
+  public void run()
+  {
+    while (running)
+    {
+      try
+      {
+        Thread.sleep(intervalMillis);
+      } catch (InterruptedException e)
+      {
+        break;
+      }
+      step();
+    }
+  }
+
+  /**
+   * Look at the last interval and move a rung if need be. run calls this
+   * every interval.
+   */
+  void step()
+  {
+    PipelineStats stats = receiver.getPipelineStats();
+    long packets = stats.getReceivedPackets();
+    long dropped = receiver.getDroppedPackets();
+    long decodedFrames = stats.getDecodedFrames();
+    long decodeNanos = stats.getDecodeNanos();
+
+    // the counters restart when the camera does, so a sample that spans that
+    // is thrown away along with the ones straight after a command
+    boolean valid = settleIntervals == 0 && packets >= lastPackets && dropped >= lastDropped
+        && decodedFrames >= lastDecodedFrames && decodeNanos >= lastDecodeNanos;
+    long received = packets - lastPackets;
+    long lost = dropped - lastDropped;
+    double decodeSeconds = 1e-9 * (decodeNanos - lastDecodeNanos);
+    lastPackets = packets;
+    lastDropped = dropped;
+    lastDecodedFrames = decodedFrames;
+    lastDecodeNanos = decodeNanos;
+    if (settleIntervals > 0)
+      settleIntervals--;
+    if (!valid || received + lost < MIN_PACKETS)
+      return;
+
+    lossRate = (double) lost / (received + lost);
+    decodeLoad = decodeSeconds / (0.001 * intervalMillis);
+
+    // a rung that has held up for a while is no longer suspect
+    if (level >= failedLevel && goodIntervals >= UP_INTERVALS)
+    {
+      failedLevel = Integer.MAX_VALUE;
+      holdIntervals = UP_INTERVALS;
+      capacity = Double.MAX_VALUE;
+    }
+
+    if (decodeLoad > MAX_DECODE_LOAD && level - PACKET_SIZES.length >= minLevel)
+    {
+      // fewer pixels is the only thing that helps the decoder
+      stepDown(level - PACKET_SIZES.length);
+    } else if (lossRate > targetLoss)
+    {
+      goodIntervals = 0;
+      int modeLevel = level - level % PACKET_SIZES.length;
+      if (lossRate > HEAVY_FACTOR * targetLoss && modeLevel > minLevel)
+        stepDown(modeLevel - 1);
+      else if (level > minLevel)
+        stepDown(level - 1);
+    } else if (lossRate <= UP_FRACTION * targetLoss && level < maxLevel)
+    {
+      goodIntervals++;
+      if (goodIntervals >= (level + 1 >= failedLevel || !fits(level + 1) ? holdIntervals : UP_INTERVALS))
+        move(level + 1);
+    } else
+    {
+      goodIntervals = 0;
+    }
+  }
+
+  private void stepDown(int next)
+  {
+    // failing the same rung again waits twice as long before the next try
+    holdIntervals = level == failedLevel ? Math.min(2 * holdIntervals, MAX_HOLD_INTERVALS) : FIRST_HOLD_INTERVALS;
+    failedLevel = level;
+    capacity = receiver.getBandwidth();
+    move(next);
+  }
+
+  // whether the bandwidth seen when loss set in would carry that rung's mode
+  private boolean fits(int next)
+  {
+    CameraMode mode = getMode();
+    CameraMode nextMode = modes[next / PACKET_SIZES.length];
+    double pixels = (double) nextMode.getWidth() * nextMode.getHeight() / (mode.getWidth() * mode.getHeight());
+    return receiver.getBandwidth() * pixels <= capacity;
+  }
+
+  private void move(int next)
+  {
+    level = next;
+    goodIntervals = 0;
+    settleIntervals = SETTLE_INTERVALS;
+    steps++;
+    try
+    {
+      sink.command(getMode(), getPacketSize());
+    } catch (IOException e)
+    {
+      System.out.println("AdaptiveController " + e.toString());
+    }
+  }
+
+  public String toString()
+  {
+    return String.format("AdaptiveController: %s, %d byte packets, loss %.4f, decode load %.2f, %d steps",
+        getMode().getName(), getPacketSize(), lossRate, decodeLoad, steps);
+  }
+
+}
@@ -0,0 +1,257 @@
+package application;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * Live background subtraction. A running average of each pixel's luma is
+ * the background model; a pixel whose luma is further from it than the
+ * threshold is foreground, and moves the average more slowly. Every frame
+ * updates the model and yields a foreground mask, drawn as a translucent
+ * overlay, and a motion score, the fraction of the frame that is foreground.
+ *
+ * The per-pixel work is split into bands of rows run on a ForkJoinPool.
+ * Pixels are packed ARGB ints, as read from a decoded image, so nothing here
+ * depends on JavaFX. process is called from one thread at a time, usually
+ * the decode thread.
+ */
+public class BackgroundSubtractor
+{
+  private static final int BAND_ROWS = 16;
+  // foreground pixels in the overlay, translucent red premultiplied by its alpha
+  private static final int OVERLAY_COLOR = 0x80800000;
+  // foreground is learnt this much more slowly, so a moving object doesn't
+  // leave a ghost behind but one that stops still fades into the background
+  private static final float FOREGROUND_RATE = 0.1f;
+
+  private final ForkJoinPool pool;
+  private volatile float learningRate;
+  private volatile int threshold;
+  private volatile boolean resetPending = false;
+
+  // the processing thread only
+  private int width = 0;
+  private int height = 0;
+  private float[] background = null;
+  private int[] overlay = null;
+  private float rate;
+  private int limit;
+
+  private volatile double motionScore = 0;
+  private volatile long frames = 0;
+  private volatile long processNanos = 0;
+
+  /**
+   * @param learningRate how far the background moves towards each frame,
+   *          between 0 and 1
+   * @param threshold luma difference, out of 255, above which a pixel is
+   *          foreground
+   */
+  public BackgroundSubtractor(ForkJoinPool pool, double learningRate, int threshold)
+  {
+    this.pool = pool;
+    this.learningRate = (float) learningRate;
+    this.threshold = threshold;
+  }
+
+  public void setLearningRate(double learningRate)
+  {
+    this.learningRate = (float) learningRate;
+  }
+
+  public void setThreshold(int threshold)
+  {
+    this.threshold = threshold;
+  }
+
+  // start again from the next frame, which becomes the background
+  public void reset()
+  {
+    resetPending = true;
+  }
+
+  // fraction of the last frame that was foreground
+  public double getMotionScore()
+  {
+    return motionScore;
+  }
+
+  public long getFrames()
+  {
+    return frames;
+  }
+
+  // average time spent per frame
+  public double getProcessMilliseconds()
+  {
+    long n = frames;
+    return n == 0 ? 0 : 1e-6 * processNanos / n;
+  }
+
+  /**
+   * The foreground mask of the last frame as premultiplied ARGB pixels,
+   * transparent where there is background. Only valid on the processing
+   * thread until the next call to process.
+   */
+  public int[] getOverlay()
+  {
+    return overlay;
+  }
+
+  /**
+   * Compare a frame with the background, then fold it in. A frame of a new
+   * size starts a new model from that frame.
+   *
+   * @param pixels ARGB, row by row
+   * @return the motion score
+   */
+  public double process(int[] pixels, int width, int height)
+  {
+    long start = System.nanoTime();
+    if (resetPending || background == null || width != this.width || height != this.height)
+    {
+      resetPending = false;
+      start(pixels, width, height);
+      motionScore = 0;
+      return 0;
+    }
+
+    rate = learningRate;
+    limit = threshold;
+    int foreground = pool.invoke(new Band(pixels, 0, height));
+
+    motionScore = (double) foreground / (width * height);
+    processNanos += System.nanoTime() - start;
+    frames++;
+    return motionScore;
+  }
+
+  private void start(int[] pixels, int width, int height)
+  {
+    this.width = width;
+    this.height = height;
+    if (background == null || background.length != width * height)
+    {
+      background = new float[width * height];
+      overlay = new int[width * height];
+    }
+    for (int i = 0; i < width * height; i++)
+    {
+      background[i] = luma(pixels[i]);
+      overlay[i] = 0;
+    }
+  }
+
+  private static int luma(int argb)
+  {
+    return ((argb >> 16 & 0xff) * 77 + (argb >> 8 & 0xff) * 150 + (argb & 0xff) * 29) >> 8;
+  }
+
+  // rows from, up to but not including to. returns how many of their pixels are foreground
+  private int subtract(int[] pixels, int from, int to)
+  {
+    float[] background = this.background;
+    int[] overlay = this.overlay;
+    float rate = this.rate;
+    int limit = this.limit;
+    int count = 0;
+    for (int i = from * width, end = to * width; i < end; i++)
+    {
+      float difference = luma(pixels[i]) - background[i];
+      boolean foreground = Math.abs(difference) > limit;
+      if (foreground)
+      {
+        count++;
+        overlay[i] = OVERLAY_COLOR;
+        background[i] += FOREGROUND_RATE * rate * difference;
+      } else
+      {
+        overlay[i] = 0;
+        background[i] += rate * difference;
+      }
+    }
+    return count;
+  }
+
+  private class Band extends RecursiveTask<Integer>
+  {
+    private static final long serialVersionUID = 1L;
+    private final int[] pixels;
+    private final int from;
+    private final int to;
+
+    Band(int[] pixels, int from, int to)
+    {
+      this.pixels = pixels;
+      this.from = from;
+      this.to = to;
+    }
+
+    @Override
+    protected Integer compute()
+    {
+      if (to - from <= BAND_ROWS)
+        return subtract(pixels, from, to);
+      int middle = (from + to) >>> 1;
+      Band lower = new Band(pixels, from, middle);
+      lower.fork();
+      int upper = new Band(pixels, middle, to).compute();
+      return upper + lower.join();
+    }
+  }
+
+  public String toString()
+  {
+    return String.format("BackgroundSubtractor: %dx%d, %d frames, %.3f ms per frame, motion %.4f", width, height,
+        frames, getProcessMilliseconds(), motionScore);
+  }
+
+  public static void main(String[] args) throws Exception
+  {
+    // a grey 640x480 scene with noise and a bright square moving across it.
+    // the square should be the only foreground, and the pool should give the
+    // same answers as a single thread
+    final int WIDTH = 640;
+    final int HEIGHT = 480;
+    final int SQUARE = 80;
+    final int FRAMES = 300;
+
+    BackgroundSubtractor parallel = new BackgroundSubtractor(ForkJoinPool.commonPool(), 0.05, 25);
+    BackgroundSubtractor single = new BackgroundSubtractor(new ForkJoinPool(1), 0.05, 25);
+    java.util.Random random = new java.util.Random(1);
+    int[] pixels = new int[WIDTH * HEIGHT];
+    double expected = (double) SQUARE * SQUARE / (WIDTH * HEIGHT);
+    long singleNanos = 0;
+    long parallelNanos = 0;
+    for (int frame = 0; frame < FRAMES; frame++)
+    {
+      int x = 50 + (frame * 7) % (WIDTH - SQUARE - 100);
+      for (int y = 0; y < HEIGHT; y++)
+        for (int i = 0; i < WIDTH; i++)
+        {
+          int grey = 100 + random.nextInt(11) - 5;
+          if (frame > 0 && i >= x && i < x + SQUARE && y >= 200 && y < 200 + SQUARE)
+            grey = 220;
+          pixels[y * WIDTH + i] = 0xff000000 | grey << 16 | grey << 8 | grey;
+        }
+
+      long start = System.nanoTime();
+      double a = parallel.process(pixels, WIDTH, HEIGHT);
+      parallelNanos += System.nanoTime() - start;
+      start = System.nanoTime();
+      double b = single.process(pixels, WIDTH, HEIGHT);
+      singleNanos += System.nanoTime() - start;
+
+      if (a != b || !java.util.Arrays.equals(parallel.getOverlay(), single.getOverlay()))
+        throw new Exception("frame " + frame + " differs between the pool and one thread");
+      // the square moves on 7 pixels a frame so most of it is foreground
+      if (frame > 10 && Math.abs(a - expected) > 0.2 * expected)
+        throw new Exception("frame " + frame + " motion " + a + ", expected about " + expected);
+    }
+    System.out.println(parallel);
+    System.out.printf("%d cores: %.3f ms per 640x480 frame on the pool, %.3f ms on one thread%n",
+        ForkJoinPool.commonPool().getParallelism(), 1e-6 * parallelNanos / FRAMES, 1e-6 * singleNanos / FRAMES);
+
+  }// public static void main(String[] args) throws Exception
+
+}
@@ -0,0 +1,163 @@
+package application;
+
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Flow;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Saves every frame a FramePublisher delivers for a fixed time, as
+ * name-0000.jpg, name-0001.jpg and so on, through a SnapshotWriter. The
+ * completion future completes once the burst is over and every file it
+ * queued has been written or has failed.
+ */
+public class BurstCapture implements Flow.Subscriber<Frame>
+{
+  private final SnapshotWriter writer;
+  private final String name;
+  private final long durationNanos;
+  private final CompletableFuture<BurstCapture> completion = new CompletableFuture<>();
+  private final AtomicInteger saved = new AtomicInteger();
+  private final AtomicInteger failed = new AtomicInteger();
+
+  // guarded by this
+  private Flow.Subscription subscription = null;
+  private long deadline = 0;
+  private boolean finished = false;
+  private int frames = 0;
+  // the writer is first in first out, so when the last write is done they all are
+  private CompletableFuture<?> lastWrite = CompletableFuture.completedFuture(null);
+
+  public BurstCapture(SnapshotWriter writer, String name, double seconds)
+  {
+    this.writer = writer;
+    this.name = name;
+    this.durationNanos = (long) (1e9 * seconds);
+  }
+
+  public CompletableFuture<BurstCapture> getCompletion()
+  {
+    return completion;
+  }
+
+  public String getName()
+  {
+    return name;
+  }
+
+  // frames handed to the writer
+  public synchronized int getFrames()
+  {
+    return frames;
+  }
+
+  public int getSaved()
+  {
+    return saved.get();
+  }
+
+  // refused by a full queue or failed to write
+  public int getFailed()
+  {
+    return failed.get();
+  }
+
+  @Override
+  public synchronized void onSubscribe(Flow.Subscription subscription)
+  {
+    if (finished)
+    {
+      subscription.cancel();
+      return;
+    }
+    this.subscription = subscription;
+    deadline = System.nanoTime() + durationNanos;
+    subscription.request(Long.MAX_VALUE);
+  }
+
+  @Override
+  public synchronized void onNext(Frame frame)
+  {
+    if (finished)
+      return;
+    if (frame.getLastPacketTime() - deadline > 0)
+    {
+      finish();
+      return;
+    }
+
+    Path file = Paths.get(String.format("%s-%04d.jpg", name, frames++));
+    lastWrite = writer.submit(file, frame).whenComplete((path, e) ->
+    {
+      if (e == null)
+        saved.incrementAndGet();
+      else
+        failed.incrementAndGet();
+    });
+  }
+
+  @Override
+  public void onError(Throwable throwable)
+  {
+    System.out.println("BurstCapture " + throwable.toString());
+    finish();
+  }
+
+  @Override
+  public void onComplete()
+  {
+    finish();
+  }
+
+  /**
+   * End the burst now, e.g. when no frame has arrived since its time ran out.
+   * Safe to call more than once and from any thread.
+   */
+  public synchronized void finish()
+  {
+    if (finished)
+      return;
+    finished = true;
+    if (subscription != null)
+      subscription.cancel();
+    lastWrite.handle((v, e) -> completion.complete(this));
+  }
+
+  public String toString()
+  {
+    return String.format("Burst %s: %d frames, %d saved, %d failed", name, getFrames(), getSaved(), getFailed());
+  }
+
+  public static void main(String[] args) throws Exception
+  {
+    // a frame every 10 ms for 0.6 s into a 0.3 s burst, which should keep
+    // about the first 30 and write them all
+    java.nio.file.Path directory = java.nio.file.Files.createTempDirectory("burst");
+    SnapshotWriter writer = new SnapshotWriter(256);
+    Thread thread = new Thread(writer, "SnapshotWriter");
+    thread.start();
+
+    FramePublisher publisher = new FramePublisher();
+    BurstCapture burst = new BurstCapture(writer, directory.resolve("burst").toString(), 0.3);
+    publisher.subscribe(burst, 256, FramePublisher.DropPolicy.DROP_NEWEST);
+    for (int i = 0; i < 60; i++)
+    {
+      long time = System.nanoTime();
+      publisher.submit(new Frame(i, 5, java.nio.ByteBuffer.wrap(new byte[20000]), time, time));
+      Thread.sleep(10);
+    }
+    burst.getCompletion().get(10, java.util.concurrent.TimeUnit.SECONDS);
+    System.out.println(burst);
+    if (burst.getFrames() < 20 || burst.getFrames() > 32 || burst.getSaved() != burst.getFrames())
+      throw new Exception("expected about 30 frames, all saved");
+    if (!java.nio.file.Files.exists(directory.resolve("burst-0000.jpg")))
+      throw new Exception("first frame not written");
+
+    publisher.close();
+    writer.stop();
+    thread.join();
+
+  }// public static void main(String[] args) throws Exception
+
+}
@@ -0,0 +1,60 @@
+package application;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * The command the camera takes on its command port, from desktop to arduino:
+ * a 1-byte mode, corresponding to the camera's resolutions, then the 4-byte
+ * length of the arduino-to-desktop UDP packets, little endian. The camera
+ * marks the first packet it sends after a command.
+ */
+public final class CameraCommand
+{
+  public static final int COMMAND_PORT = 1234;
+  private static final int CONNECT_TIMEOUT = 3000;
+  private static final int READ_TIMEOUT = 3000;
+
+  private CameraCommand()
+  {
+  }
+
+  public static byte[] encode(int mode, int packetSize)
+  {
+    ByteBuffer buffer = ByteBuffer.allocate(5);
+    buffer.order(ByteOrder.LITTLE_ENDIAN);
+    buffer.put((byte) mode);
+    buffer.putInt(packetSize);
+    return buffer.array();
+  }
+
+  // over a connection of its own, as the camera expects
+  public static void send(InetSocketAddress address, int mode, int packetSize) throws IOException
+  {
+    byte[] command = encode(mode, packetSize);
+    show(System.out, address.getHostString(), address.getPort(), command);
+
+    try (Socket socket = new Socket())
+    {
+      socket.connect(address, CONNECT_TIMEOUT);
+      socket.setTcpNoDelay(false);
+      socket.setSoTimeout(READ_TIMEOUT);
+      OutputStream output = socket.getOutputStream();
+      output.write(command);
+    }
+  }
+
+  private static void show(PrintStream ps, String host, int port, byte[] command)
+  {
+    ps.print("Send (" + host + ":" + port + ") --> ");
+    for (byte b : command)
+      ps.printf("%02X ", 0xff & b);
+    ps.println();
+  }
+
+}
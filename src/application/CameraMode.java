@@ -0,0 +1,13 @@
+package application;
+
+// a resolution setting of one of the supported cameras
+public interface CameraMode
+{
+  int getMode();
+
+  String getName();
+
+  int getWidth();
+
+  int getHeight();
+}
@@ -0,0 +1,283 @@
+package application;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.function.Consumer;
+
+/**
+ * Reassembly state and statistics for the packets of one camera. A stream is
+ * fed from a single receive thread and hands completed frames to its sink on
+ * that thread. The statistics are plain volatile fields that any thread may
+ * sample, so nothing is posted anywhere per packet.
+ */
+public class CameraStream
+{
+  // 32-bit packet number
+  // 32-bit image number
+  // 8-bit status
+  // bit 7 : first packet of image flag
+  // bit 6 : last packet of image flag
+  // bit 5 : first packet since being commanded
+  // bit 4 : parity packet, see FrameAssembler.addParity. its packet number is
+  // that of the first data packet it covers, it has none of its own
+  // bits 3 downto 0 : camera mode
+  static final int HEADER_SIZE = 9;
+  static final int MAX_PACKET_SIZE = 2048;
+  static final byte START_OF_IMAGE = (byte) 0x80;
+  static final byte END_OF_IMAGE = (byte) 0x40;
+  static final byte FIRST_PACKET = (byte) 0x20;
+  static final byte PARITY = (byte) 0x10;
+  static final byte COMMAND_MODE = (byte) 0x0f;
+  private static final long BANDWIDTH_WINDOW_MILLISECONDS = 4000;
+  private static final int BANDWIDTH_BUCKETS = 40;
+  private static final long FRAMERATE_WINDOW_MILLISECONDS = 5000;
+  private static final int FRAMERATE_BUCKETS = 50;
+  private static final int MAX_FRAMES_IN_FLIGHT = 4;
+  private static final int REORDER_WINDOW_PACKETS = 64;
+  private static final int MAX_PACKETS_PER_FRAME = 4096;
+  static final long FRAME_TIMEOUT_MILLISECONDS = 1000;
+  // packets are reported to Flight Recorder in batches, whichever comes first
+  private static final int EVENT_BATCH_PACKETS = 1024;
+  private static final long EVENT_BATCH_NANOS = 1000000000L;
+
+  private final String name;
+  private final Consumer<Frame> sink;
+
+  private volatile int packetNumber = 0;
+  private volatile int imageNumber = 0;
+  private FrameRate frameRate;
+  private Bandwidth bandwidth;
+
+  private volatile int droppedPackets = 0;
+  private volatile int droppedFrames = 0;
+  private volatile int recoveredPackets = 0;
+
+  private volatile int resolution = 0;
+  private volatile int numFrames = 0;
+  private volatile Frame lastFrame = null;
+  private FrameAssembler assembler;
+  private PipelineStats stats;
+  private long shortPackets = 0;
+  private volatile boolean resetPending = false;
+
+  // receive thread only
+  private int lastMode = -1;
+  private int batchPackets = 0;
+  private long batchBytes = 0;
+  private long batchStart = 0;
+
+  public CameraStream(String name, Consumer<Frame> sink)
+  {
+    this.name = name;
+    this.sink = sink;
+    frameRate = new FrameRate(FRAMERATE_WINDOW_MILLISECONDS, FRAMERATE_BUCKETS);
+    bandwidth = new Bandwidth(BANDWIDTH_WINDOW_MILLISECONDS, BANDWIDTH_BUCKETS);
+    stats = new PipelineStats();
+    assembler = new FrameAssembler(MAX_FRAMES_IN_FLIGHT, REORDER_WINDOW_PACKETS, MAX_PACKETS_PER_FRAME,
+        MAX_PACKET_SIZE - HEADER_SIZE, FRAME_TIMEOUT_MILLISECONDS, new FrameAssembler.Sink()
+        {
+          @Override
+          public void frameCompleted(Frame frame)
+          {
+            CameraStream.this.frameCompleted(frame);
+          }
+
+          @Override
+          public void frameDropped(int imageNumber)
+          {
+            stats.drop(DropReason.GAP, imageNumber);
+          }
+        });
+  }
+
+  public String getName()
+  {
+    return name;
+  }
+
+  public int getPacketNumber()
+  {
+    return packetNumber;
+  }
+
+  public int getImageNumber()
+  {
+    return imageNumber;
+  }
+
+  // frames per second
+  public double getFrameRate()
+  {
+    return frameRate.getFrameRate();
+  }
+
+  // bytes per second
+  public double getBandwidth()
+  {
+    return bandwidth.getBandwidth();
+  }
+
+  public int getDroppedPackets()
+  {
+    return droppedPackets;
+  }
+
+  public int getDroppedFrames()
+  {
+    return droppedFrames;
+  }
+
+  // lost packets that were rebuilt from parity, they are still counted as dropped
+  public int getRecoveredPackets()
+  {
+    return recoveredPackets;
+  }
+
+  public int getResolution()
+  {
+    return resolution;
+  }
+
+  public PipelineStats getPipelineStats()
+  {
+    return stats;
+  }
+
+  public int getNumFrames()
+  {
+    return numFrames;
+  }
+
+  public Frame getLastFrame()
+  {
+    return lastFrame;
+  }
+
+  // may be called from any thread
+  public void reset()
+  {
+    packetNumber = 0;
+    imageNumber = 0;
+    droppedPackets = 0;
+    droppedFrames = 0;
+    recoveredPackets = 0;
+    numFrames = 0;
+    lastFrame = null;
+    stats.reset();
+
+    // the assembler and rate windows belong to the receive thread, so they
+    // reset themselves there
+    resetPending = true;
+  }
+
+  /**
+   * Process one received datagram. The packet must be positioned at the start
+   * of the header with its limit at the end of the payload. Nothing is
+   * allocated here unless a frame completes.
+   *
+   * @param currentTime System.nanoTime() when the packet arrived
+   */
+  public void handlePacket(ByteBuffer packet, long currentTime)
+  {
+    // count the bytes received
+    int length = packet.remaining();
+
+    if (length < HEADER_SIZE)
+    {
+      // we received a bad packet, counted and recorded as a drop event
+      shortPackets++;
+      stats.drop(DropReason.SHORT_PACKET);
+      droppedPackets++;
+      return;
+    }
+
+    // parse the header
+    packet.order(ByteOrder.LITTLE_ENDIAN);
+    int start = packet.position();
+    int packetNumber = packet.getInt(start);
+    int imageNumber = packet.getInt(start + 4);
+    byte status = packet.get(start + 8);
+
+    // System.out.println("packetNumber=" + packetNumber + ", imageNumber=" +
+    // imageNumber + ", status=" + Integer.toHexString(0xff & status));
+
+    boolean startOfImage = (status & START_OF_IMAGE) == START_OF_IMAGE;
+    boolean endOfImage = (status & END_OF_IMAGE) == END_OF_IMAGE;
+    boolean firstPacket = (status & FIRST_PACKET) == FIRST_PACKET;
+    boolean parity = (status & PARITY) == PARITY;
+    int mode = status & COMMAND_MODE;
+    this.resolution = mode;
+    if (mode != lastMode)
+      modeChanged(lastMode, mode);
+
+    // check to see if this is the first packet and reset the statistics
+    if (firstPacket)
+      reset();
+    if (resetPending)
+    {
+      resetPending = false;
+      shortPackets = 0;
+      assembler.reset();
+      frameRate.reset();
+      bandwidth.reset();
+    }
+
+    if (!parity)
+      this.packetNumber = packetNumber;
+    this.imageNumber = imageNumber;
+
+    // place the payload in its frame. completed frames come back through
+    // frameCompleted before this returns
+    packet.position(start + HEADER_SIZE);
+    if (parity)
+      assembler.addParity(packetNumber, imageNumber, mode, packet, currentTime);
+    else
+      assembler.addPacket(packetNumber, imageNumber, mode, startOfImage, endOfImage, packet, currentTime);
+    packet.position(start);
+
+    this.droppedPackets = (int) (shortPackets + assembler.getLostPackets());
+    this.droppedFrames = (int) assembler.getDroppedFrames();
+    this.recoveredPackets = (int) assembler.getRecoveredPackets();
+
+    // compute the bandwidth on every packet
+    bandwidth.addPacket(length);
+
+    batchPackets++;
+    batchBytes += length;
+    if (batchPackets == 1)
+      batchStart = currentTime;
+    if (batchPackets >= EVENT_BATCH_PACKETS || currentTime - batchStart >= EVENT_BATCH_NANOS)
+      packetsReceived(currentTime);
+  }
+
+  private void packetsReceived(long currentTime)
+  {
+    IngestEvents.packetsReceived(name, batchPackets, batchBytes, currentTime - batchStart);
+    batchPackets = 0;
+    batchBytes = 0;
+  }
+
+  private void modeChanged(int oldMode, int newMode)
+  {
+    lastMode = newMode;
+    IngestEvents.modeChanged(name, oldMode, newMode);
+  }
+
+  private void frameCompleted(Frame frame)
+  {
+    numFrames++;
+    lastFrame = frame;
+    stats.recordReassembled(frame);
+    IngestEvents.frameCompleted(name, frame);
+    sink.accept(frame);
+
+    // only compute the frame rate when we get a new frame
+    frameRate.addFrame();
+  }
+
+  public String toString()
+  {
+    return String.format("%s: image %d, %.1f Hz, %.1f KB/s, dropped packets %d, dropped frames %d", name,
+        imageNumber, getFrameRate(), 0.001 * getBandwidth(), droppedPackets, droppedFrames);
+  }
+}
@@ -0,0 +1,26 @@
+package application;
+
+public enum DropReason
+{
+  SHORT_PACKET("short packet"),
+  GAP("gap"),
+  STALE("stale"),
+  DECODE_FAILURE("decode failure");
+
+  private final String name;
+
+  DropReason(String name)
+  {
+    this.name = name;
+  }
+
+  public String getName()
+  {
+    return name;
+  }
+
+  public String toString()
+  {
+    return name;
+  }
+}
@@ -0,0 +1,119 @@
+package application;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * One complete JPEG image as it came off the wire. A frame is immutable; the
+ * JPEG bytes are only handed out as read-only views or streams.
+ */
+public final class Frame
+{
+  private final int imageNumber;
+  private final int mode;
+  private final ByteBuffer data;
+  private final long firstPacketTime;
+  private final long lastPacketTime;
+
+  /**
+   * The frame takes data as it is, from its position to its limit, without
+   * copying it, so recorded and mapped frames cost nothing to wrap. Whoever
+   * builds a frame hands the bytes over: the buffer must never be written or
+   * reused afterwards.
+   */
+  public Frame(int imageNumber, int mode, ByteBuffer data, long firstPacketTime, long lastPacketTime)
+  {
+    this.imageNumber = imageNumber;
+    this.mode = mode;
+    this.data = data.slice();
+    this.firstPacketTime = firstPacketTime;
+    this.lastPacketTime = lastPacketTime;
+  }
+
+  public int getImageNumber()
+  {
+    return imageNumber;
+  }
+
+  public int getMode()
+  {
+    return mode;
+  }
+
+  public int getLength()
+  {
+    return data.remaining();
+  }
+
+  // System.nanoTime() when the first packet of the frame arrived
+  public long getFirstPacketTime()
+  {
+    return firstPacketTime;
+  }
+
+  // System.nanoTime() when the last missing packet of the frame arrived
+  public long getLastPacketTime()
+  {
+    return lastPacketTime;
+  }
+
+  public ByteBuffer getData()
+  {
+    return data.asReadOnlyBuffer();
+  }
+
+  public InputStream openStream()
+  {
+    // heap frames are read in place, anything else goes through the buffer
+    if (data.hasArray())
+      return new ByteArrayInputStream(data.array(), data.arrayOffset() + data.position(), data.remaining());
+    return new ByteBufferInputStream(data.duplicate());
+  }
+
+  public byte[] toByteArray()
+  {
+    byte[] bytes = new byte[data.remaining()];
+    data.get(data.position(), bytes);
+    return bytes;
+  }
+
+  public String toString()
+  {
+    return "Frame[image=" + imageNumber + ", mode=" + mode + ", length=" + getLength() + "]";
+  }
+
+  private static class ByteBufferInputStream extends InputStream
+  {
+    private final ByteBuffer buffer;
+
+    ByteBufferInputStream(ByteBuffer buffer)
+    {
+      this.buffer = buffer;
+    }
+
+    @Override
+    public int read()
+    {
+      return buffer.hasRemaining() ? buffer.get() & 0xff : -1;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len)
+    {
+      if (len == 0)
+        return 0;
+      if (!buffer.hasRemaining())
+        return -1;
+      len = Math.min(len, buffer.remaining());
+      buffer.get(b, off, len);
+      return len;
+    }
+
+    @Override
+    public int available()
+    {
+      return buffer.remaining();
+    }
+  }
+}
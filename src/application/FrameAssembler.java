@@ -0,0 +1,743 @@
+package application;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Rebuilds frames from packets that may arrive out of order. Several frames
+ * can be in flight at once, each keyed by its image number. A frame is handed
+ * to the sink once its start packet, its end packet and every packet in
+ * between have arrived.
+ *
+ * Packet and image numbers are 32-bit counters that are allowed to wrap, so
+ * they are only ever compared by the sign of their difference.
+ *
+ * A sender may follow each group of data packets with a parity packet, the
+ * XOR of their payloads. When all but one packet of a group has arrived, the
+ * missing one is rebuilt in place from the others, so a single lost packet
+ * doesn't cost the whole frame.
+ */
+public class FrameAssembler
+{
+  public interface Sink
+  {
+    void frameCompleted(Frame frame);
+
+    void frameDropped(int imageNumber);
+  }
+
+  // a parity payload starts with this header, then the XOR of the payloads it
+  // covers, each padded with zeros to the longest
+  static final int PARITY_HEADER_SIZE = 5;
+  // data packets per group, the last group of a frame may have fewer
+  static final int PARITY_GROUP_SIZE = 0;
+  // data packets covered, starting at the parity packet's packet number
+  static final int PARITY_COUNT = 1;
+  // XOR of their start and end of image flags
+  static final int PARITY_FLAGS = 2;
+  // XOR of their payload lengths, 16 bits little endian
+  static final int PARITY_LENGTH = 3;
+
+  // packet numbers remembered behind the highest one, so a packet that turns
+  // up again is only counted as arriving once. a power of two
+  private static final int SEEN_PACKETS = 4096;
+
+  private final int reorderWindow;
+  private final int capacity;
+  private final int maxPayloadSize;
+  private final long timeoutNanos;
+  private final Slot[] slots;
+  private final Sink sink;
+
+  // the last image handed to the sink. anything at or before it is late
+  private boolean emitted = false;
+  private int lastImageNumber = 0;
+
+  // loss accounting over the packet number sequence. arrivedPackets counts
+  // each packet number once, whether or not its packet could be used
+  private boolean started = false;
+  private int highestPacketNumber = 0;
+  private long expectedPackets = 0;
+  private long arrivedPackets = 0;
+  private final long[] seen = new long[SEEN_PACKETS / 64];
+
+  private long completedFrames = 0;
+  private long droppedFrames = 0;
+  private long duplicatePackets = 0;
+  private long latePackets = 0;
+  private long outOfWindowPackets = 0;
+  private long parityPackets = 0;
+  private long recoveredPackets = 0;
+
+  /**
+   * @param maxFrames number of frames that can be reassembled at the same time
+   * @param reorderWindow how many packets early a packet may arrive before the
+   *          first packet seen for its frame
+   * @param maxPacketsPerFrame largest frame, in packets
+   * @param maxPayloadSize largest packet payload, in bytes
+   * @param timeoutMilliseconds an incomplete frame is dropped this long after
+   *          its first packet arrived
+   * @param sink told about every completed or dropped frame on the calling
+   *          thread
+   */
+  public FrameAssembler(int maxFrames, int reorderWindow, int maxPacketsPerFrame, int maxPayloadSize,
+      long timeoutMilliseconds, Sink sink)
+  {
+    this.reorderWindow = reorderWindow;
+    this.capacity = maxPacketsPerFrame + reorderWindow;
+    this.maxPayloadSize = maxPayloadSize;
+    this.timeoutNanos = timeoutMilliseconds * 1000000L;
+    this.sink = sink;
+    slots = new Slot[maxFrames];
+    for (int i = 0; i < maxFrames; i++)
+      slots[i] = new Slot(capacity);
+  }
+
+  public void reset()
+  {
+    for (Slot slot : slots)
+      slot.busy = false;
+    emitted = false;
+    started = false;
+    expectedPackets = 0;
+    arrivedPackets = 0;
+    completedFrames = 0;
+    droppedFrames = 0;
+    duplicatePackets = 0;
+    latePackets = 0;
+    outOfWindowPackets = 0;
+    parityPackets = 0;
+    recoveredPackets = 0;
+  }
+
+  public long getCompletedFrames()
+  {
+    return completedFrames;
+  }
+
+  // image numbers that were skipped between completed frames
+  public long getDroppedFrames()
+  {
+    return droppedFrames;
+  }
+
+  // packets that never arrived, counted over the whole packet number
+  // sequence. late, out of window and duplicate packets did arrive, so they
+  // aren't lost, only unusable
+  public long getLostPackets()
+  {
+    return Math.max(0, expectedPackets - arrivedPackets);
+  }
+
+  public long getDuplicatePackets()
+  {
+    return duplicatePackets;
+  }
+
+  // packets for frames that were already completed or dropped
+  public long getLatePackets()
+  {
+    return latePackets;
+  }
+
+  // packets too far from the rest of their frame to be placed
+  public long getOutOfWindowPackets()
+  {
+    return outOfWindowPackets;
+  }
+
+  public long getParityPackets()
+  {
+    return parityPackets;
+  }
+
+  // lost data packets rebuilt from parity, these still count as lost
+  public long getRecoveredPackets()
+  {
+    return recoveredPackets;
+  }
+
+  /**
+   * Add one packet. The payload must be positioned at the first byte after the
+   * header with its limit at the end of the packet; it is copied, so the
+   * caller may reuse the buffer as soon as this returns.
+   */
+  public void addPacket(int packetNumber, int imageNumber, int mode, boolean startOfImage, boolean endOfImage,
+      ByteBuffer payload, long currentTime)
+  {
+    countPacket(packetNumber);
+    evictExpired(currentTime);
+
+    if (emitted && imageNumber - lastImageNumber <= 0)
+    {
+      latePackets++;
+      return;
+    }
+
+    int length = payload.remaining();
+    if (length > maxPayloadSize)
+    {
+      outOfWindowPackets++;
+      return;
+    }
+
+    Slot slot = find(imageNumber);
+    if (slot == null)
+    {
+      slot = allocate(imageNumber, currentTime);
+      slot.mode = mode;
+      // nothing can come before the start of an image, otherwise leave room
+      // for packets of this frame that are still on their way
+      slot.anchor = startOfImage ? packetNumber : packetNumber - reorderWindow;
+    }
+
+    int index = packetNumber - slot.anchor;
+    if (index < 0 || index >= capacity)
+    {
+      outOfWindowPackets++;
+      return;
+    }
+
+    if (slot.isReceived(index))
+    {
+      duplicatePackets++;
+      return;
+    }
+
+    // keep the payload in its slot
+    if (slot.payloads[index] == null)
+      slot.payloads[index] = new byte[maxPayloadSize];
+    payload.get(payload.position(), slot.payloads[index], 0, length);
+    slot.lengths[index] = length;
+    slot.setReceived(index);
+    slot.receivedCount++;
+    slot.lastTime = currentTime;
+
+    if (startOfImage)
+    {
+      slot.startIndex = index;
+      slot.mode = mode;
+    }
+    if (endOfImage)
+      slot.endIndex = index;
+
+    // this may leave its group one packet short, which the parity can fill
+    if (slot.groupSize > 0)
+      recover(slot, slot.groupAnchor + Math.floorDiv(index - slot.groupAnchor, slot.groupSize) * slot.groupSize);
+
+    if (slot.isComplete())
+      complete(slot);
+  }
+
+  /**
+   * Add one parity packet. The payload must be positioned at the parity
+   * header, see PARITY_HEADER_SIZE; it is copied like a data packet's.
+   *
+   * @param firstPacketNumber packet number of the first data packet covered
+   */
+  public void addParity(int firstPacketNumber, int imageNumber, int mode, ByteBuffer payload, long currentTime)
+  {
+    parityPackets++;
+    evictExpired(currentTime);
+
+    // parity for a frame that has already completed is normal, it was simply
+    // not needed
+    if (emitted && imageNumber - lastImageNumber <= 0)
+      return;
+
+    int length = payload.remaining();
+    int start = payload.position();
+    if (length < PARITY_HEADER_SIZE || length > maxPayloadSize)
+    {
+      outOfWindowPackets++;
+      return;
+    }
+    int groupSize = payload.get(start + PARITY_GROUP_SIZE) & 0xff;
+    int count = payload.get(start + PARITY_COUNT) & 0xff;
+    if (count == 0 || count > groupSize)
+    {
+      outOfWindowPackets++;
+      return;
+    }
+
+    Slot slot = find(imageNumber);
+    if (slot == null)
+    {
+      slot = allocate(imageNumber, currentTime);
+      slot.mode = mode;
+      slot.anchor = firstPacketNumber - reorderWindow;
+    }
+
+    int index = firstPacketNumber - slot.anchor;
+    if (index < 0 || index + count > capacity)
+    {
+      outOfWindowPackets++;
+      return;
+    }
+
+    if (slot.hasParity(index))
+    {
+      duplicatePackets++;
+      return;
+    }
+
+    if (slot.parity[index] == null)
+      slot.parity[index] = new byte[maxPayloadSize];
+    payload.get(start, slot.parity[index], 0, length);
+    slot.parityLengths[index] = length;
+    slot.setParity(index);
+    slot.groupSize = groupSize;
+    slot.groupAnchor = index;
+    slot.lastTime = currentTime;
+
+    recover(slot, index);
+    if (slot.isComplete())
+      complete(slot);
+  }
+
+  // rebuild the data packet missing from a parity group, if only one is
+  private void recover(Slot slot, int group)
+  {
+    if (group < 0 || group >= capacity || !slot.hasParity(group))
+      return;
+
+    byte[] parity = slot.parity[group];
+    int count = parity[PARITY_COUNT] & 0xff;
+    int missing = -1;
+    for (int i = group; i < group + count; i++)
+    {
+      if (!slot.isReceived(i))
+      {
+        if (missing >= 0)
+          return;
+        missing = i;
+      }
+    }
+    if (missing < 0)
+      return;
+
+    // XOR every packet that did arrive out of the parity and what is left is
+    // the one that didn't
+    int parityLength = slot.parityLengths[group] - PARITY_HEADER_SIZE;
+    int length = (parity[PARITY_LENGTH] & 0xff) | (parity[PARITY_LENGTH + 1] & 0xff) << 8;
+    int flags = parity[PARITY_FLAGS] & 0xff;
+    if (slot.payloads[missing] == null)
+      slot.payloads[missing] = new byte[maxPayloadSize];
+    byte[] rebuilt = slot.payloads[missing];
+    System.arraycopy(parity, PARITY_HEADER_SIZE, rebuilt, 0, parityLength);
+    for (int i = group; i < group + count; i++)
+    {
+      if (i == missing)
+        continue;
+      byte[] data = slot.payloads[i];
+      int n = Math.min(slot.lengths[i], parityLength);
+      for (int j = 0; j < n; j++)
+        rebuilt[j] ^= data[j];
+      length ^= slot.lengths[i];
+      if (i == slot.startIndex)
+        flags ^= CameraStream.START_OF_IMAGE & 0xff;
+      if (i == slot.endIndex)
+        flags ^= CameraStream.END_OF_IMAGE & 0xff;
+    }
+    // the parity doesn't match the packets it covers
+    if (length > parityLength)
+      return;
+
+    slot.lengths[missing] = length;
+    slot.setReceived(missing);
+    slot.receivedCount++;
+    recoveredPackets++;
+    if ((flags & CameraStream.START_OF_IMAGE) != 0)
+      slot.startIndex = missing;
+    if ((flags & CameraStream.END_OF_IMAGE) != 0)
+      slot.endIndex = missing;
+  }
+
+  private void countPacket(int packetNumber)
+  {
+    if (!started)
+    {
+      started = true;
+      highestPacketNumber = packetNumber;
+      expectedPackets = 1;
+      arrivedPackets = 1;
+      Arrays.fill(seen, 0);
+      markSeen(packetNumber);
+      return;
+    }
+
+    int delta = packetNumber - highestPacketNumber;
+    if (delta > 0)
+    {
+      // the numbers skipped over haven't been seen yet
+      if (delta >= SEEN_PACKETS)
+        Arrays.fill(seen, 0);
+      else
+        for (int i = 1; i < delta; i++)
+          clearSeen(highestPacketNumber + i);
+      expectedPackets += delta;
+      highestPacketNumber = packetNumber;
+      markSeen(packetNumber);
+      arrivedPackets++;
+    } else if (-delta >= SEEN_PACKETS)
+    {
+      // too old to tell whether it came before, take it as new
+      arrivedPackets++;
+    } else if (!isSeen(packetNumber))
+    {
+      markSeen(packetNumber);
+      arrivedPackets++;
+    }
+  }
+
+  private boolean isSeen(int packetNumber)
+  {
+    int bit = packetNumber & (SEEN_PACKETS - 1);
+    return (seen[bit >>> 6] & (1L << bit)) != 0;
+  }
+
+  private void markSeen(int packetNumber)
+  {
+    int bit = packetNumber & (SEEN_PACKETS - 1);
+    seen[bit >>> 6] |= 1L << bit;
+  }
+
+  private void clearSeen(int packetNumber)
+  {
+    int bit = packetNumber & (SEEN_PACKETS - 1);
+    seen[bit >>> 6] &= ~(1L << bit);
+  }
+
+  private void evictExpired(long currentTime)
+  {
+    for (Slot slot : slots)
+    {
+      if (slot.busy && currentTime - slot.firstTime > timeoutNanos)
+        drop(slot);
+    }
+  }
+
+  private Slot find(int imageNumber)
+  {
+    for (Slot slot : slots)
+    {
+      if (slot.busy && slot.imageNumber == imageNumber)
+        return slot;
+    }
+    return null;
+  }
+
+  private Slot allocate(int imageNumber, long currentTime)
+  {
+    Slot free = null;
+    Slot oldest = null;
+    for (Slot slot : slots)
+    {
+      if (!slot.busy)
+      {
+        free = slot;
+        break;
+      }
+      if (oldest == null || slot.imageNumber - oldest.imageNumber < 0)
+        oldest = slot;
+    }
+
+    // every slot is in use so give up on the oldest frame
+    if (free == null)
+    {
+      drop(oldest);
+      free = oldest;
+    }
+
+    free.clear();
+    free.busy = true;
+    free.imageNumber = imageNumber;
+    free.firstTime = currentTime;
+    return free;
+  }
+
+  private void drop(Slot slot)
+  {
+    slot.busy = false;
+    sink.frameDropped(slot.imageNumber);
+  }
+
+  private void complete(Slot slot)
+  {
+    int length = 0;
+    for (int i = slot.startIndex; i <= slot.endIndex; i++)
+      length += slot.lengths[i];
+
+    byte[] data = new byte[length];
+    int offset = 0;
+    for (int i = slot.startIndex; i <= slot.endIndex; i++)
+    {
+      System.arraycopy(slot.payloads[i], 0, data, offset, slot.lengths[i]);
+      offset += slot.lengths[i];
+    }
+
+    Frame frame = new Frame(slot.imageNumber, slot.mode, ByteBuffer.wrap(data), slot.firstTime, slot.lastTime);
+    slot.busy = false;
+    completedFrames++;
+
+    // every image number skipped since the last frame is a dropped frame,
+    // whether or not any of its packets arrived
+    if (emitted)
+      droppedFrames += slot.imageNumber - lastImageNumber - 1;
+    emitted = true;
+    lastImageNumber = slot.imageNumber;
+
+    // older frames still in flight would be shown out of order, so drop them
+    for (Slot other : slots)
+    {
+      if (other.busy && other.imageNumber - lastImageNumber < 0)
+        drop(other);
+    }
+
+    sink.frameCompleted(frame);
+  }
+
+  private static class Slot
+  {
+    boolean busy = false;
+    int imageNumber;
+    int mode;
+    int anchor;
+    int startIndex;
+    int endIndex;
+    int receivedCount;
+    long firstTime;
+    long lastTime;
+    final long[] received;
+    final byte[][] payloads;
+    final int[] lengths;
+
+    // parity packets are kept at the index of the first packet they cover.
+    // groupSize is 0 until one arrives, then any group starts a whole number
+    // of groups from groupAnchor
+    int groupSize;
+    int groupAnchor;
+    final long[] parityReceived;
+    final byte[][] parity;
+    final int[] parityLengths;
+
+    Slot(int capacity)
+    {
+      received = new long[(capacity + 63) / 64];
+      payloads = new byte[capacity][];
+      lengths = new int[capacity];
+      parityReceived = new long[(capacity + 63) / 64];
+      parity = new byte[capacity][];
+      parityLengths = new int[capacity];
+    }
+
+    void clear()
+    {
+      Arrays.fill(received, 0);
+      Arrays.fill(parityReceived, 0);
+      startIndex = -1;
+      endIndex = -1;
+      receivedCount = 0;
+      groupSize = 0;
+    }
+
+    boolean isReceived(int index)
+    {
+      return (received[index >>> 6] & (1L << index)) != 0;
+    }
+
+    void setReceived(int index)
+    {
+      received[index >>> 6] |= 1L << index;
+    }
+
+    boolean hasParity(int index)
+    {
+      return (parityReceived[index >>> 6] & (1L << index)) != 0;
+    }
+
+    void setParity(int index)
+    {
+      parityReceived[index >>> 6] |= 1L << index;
+    }
+
+    boolean isComplete()
+    {
+      if (startIndex < 0 || endIndex < startIndex)
+        return false;
+      if (receivedCount < endIndex - startIndex + 1)
+        return false;
+
+      // packets outside start..end don't belong to the image, so check the
+      // range itself rather than trusting the count
+      for (int i = startIndex; i <= endIndex; i++)
+      {
+        if (!isReceived(i))
+          return false;
+      }
+      return true;
+    }
+  }
+
+  public static void main(String[] args)
+  {
+    // send three frames with their packets shuffled and one duplicated, with
+    // packet numbers that wrap through zero, then a late packet for one of
+    // them, a frame that loses a packet and times out, and one more frame
+    final int PACKETS_PER_FRAME = 10;
+    final long MILLISECOND = 1000000L;
+    List<Frame> completed = new ArrayList<>();
+    List<Integer> dropped = new ArrayList<>();
+    FrameAssembler assembler = new FrameAssembler(4, 16, 64, 16, 1000, new Sink()
+    {
+      @Override
+      public void frameCompleted(Frame frame)
+      {
+        System.out.println(frame);
+        completed.add(frame);
+      }
+
+      @Override
+      public void frameDropped(int imageNumber)
+      {
+        System.out.println("dropped " + imageNumber);
+        dropped.add(imageNumber);
+      }
+    });
+
+    Random random = new Random(1);
+    long time = 0;
+    int packetNumber = -15;
+    for (int imageNumber = Integer.MAX_VALUE; imageNumber != Integer.MIN_VALUE + 4; imageNumber++)
+    {
+      List<Integer> order = new ArrayList<>();
+      for (int i = 0; i < PACKETS_PER_FRAME; i++)
+        order.add(i);
+      order.add(PACKETS_PER_FRAME / 2);
+      Collections.shuffle(order, random);
+
+      for (int i : order)
+      {
+        // the third frame never gets packet 4, and the next one starts after
+        // it has timed out
+        if (imageNumber == Integer.MIN_VALUE + 2 && i == 4)
+          continue;
+        ByteBuffer payload = ByteBuffer.allocate(8);
+        payload.putInt(0, imageNumber);
+        payload.putInt(4, i);
+        assembler.addPacket(packetNumber + i, imageNumber, 5, i == 0, i == PACKETS_PER_FRAME - 1, payload, time);
+        time += MILLISECOND;
+      }
+      if (imageNumber == Integer.MIN_VALUE)
+        assembler.addPacket(packetNumber, imageNumber, 5, true, false, ByteBuffer.allocate(8), time);
+      if (imageNumber == Integer.MIN_VALUE + 2)
+        time += 2000 * MILLISECOND;
+      packetNumber += PACKETS_PER_FRAME;
+    }
+
+    System.out.println("completed=" + assembler.getCompletedFrames() + " dropped=" + assembler.getDroppedFrames()
+        + " lost=" + assembler.getLostPackets() + " duplicates=" + assembler.getDuplicatePackets() + " late="
+        + assembler.getLatePackets());
+    if (assembler.getCompletedFrames() != 4 || assembler.getDroppedFrames() != 1 || assembler.getLostPackets() != 1
+        || assembler.getDuplicatePackets() != 5 || assembler.getLatePackets() != 1
+        || !dropped.equals(List.of(Integer.MIN_VALUE + 2)))
+      throw new IllegalStateException("reassembly counts are wrong");
+    // the packet the third frame lost turns up after all. it is late, and no
+    // longer lost
+    assembler.addPacket(-15 + 3 * PACKETS_PER_FRAME + 4, Integer.MIN_VALUE + 2, 5, false, false,
+        ByteBuffer.allocate(8), time);
+    System.out.println("after the missing packet: lost=" + assembler.getLostPackets() + " late="
+        + assembler.getLatePackets());
+    if (assembler.getLostPackets() != 0 || assembler.getLatePackets() != 2)
+      throw new IllegalStateException("a late packet was counted as lost");
+
+    int[] expectedImages = { Integer.MAX_VALUE, Integer.MIN_VALUE, Integer.MIN_VALUE + 1, Integer.MIN_VALUE + 3 };
+    for (int f = 0; f < expectedImages.length; f++)
+    {
+      Frame frame = completed.get(f);
+      ByteBuffer data = ByteBuffer.wrap(frame.toByteArray());
+      if (frame.getImageNumber() != expectedImages[f] || data.remaining() != 8 * PACKETS_PER_FRAME)
+        throw new IllegalStateException("frame " + f + " is " + frame);
+      for (int i = 0; i < PACKETS_PER_FRAME; i++)
+      {
+        if (data.getInt() != expectedImages[f] || data.getInt() != i)
+          throw new IllegalStateException("frame " + frame.getImageNumber() + " packet " + i + " is out of order");
+      }
+    }
+
+    // frames of ten packets, the last one short, with parity over groups of
+    // four. one packet of every group is lost, the start and end included,
+    // and every frame should still come out whole
+    final int GROUP_SIZE = 4;
+    final int PAYLOAD_SIZE = 12;
+    List<byte[]> rebuilt = new ArrayList<>();
+    FrameAssembler recovering = new FrameAssembler(4, 16, 64, 32, 1000, new Sink()
+    {
+      @Override
+      public void frameCompleted(Frame frame)
+      {
+        rebuilt.add(frame.toByteArray());
+      }
+
+      @Override
+      public void frameDropped(int imageNumber)
+      {
+        System.out.println("dropped " + imageNumber);
+      }
+    });
+
+    packetNumber = 1;
+    List<byte[]> sent = new ArrayList<>();
+    for (int imageNumber = 1; imageNumber <= GROUP_SIZE; imageNumber++)
+    {
+      byte[] frame = new byte[PACKETS_PER_FRAME * PAYLOAD_SIZE - 5];
+      for (int i = 0; i < frame.length; i++)
+        frame[i] = (byte) (imageNumber * 31 + i);
+      sent.add(frame);
+
+      for (int group = 0; group < PACKETS_PER_FRAME; group += GROUP_SIZE)
+      {
+        int count = Math.min(GROUP_SIZE, PACKETS_PER_FRAME - group);
+        ByteBuffer parity = ByteBuffer.allocate(PARITY_HEADER_SIZE + PAYLOAD_SIZE);
+        int lengths = 0;
+        int flags = 0;
+        for (int i = group; i < group + count; i++)
+        {
+          int offset = i * PAYLOAD_SIZE;
+          int length = Math.min(PAYLOAD_SIZE, frame.length - offset);
+          for (int j = 0; j < length; j++)
+            parity.put(PARITY_HEADER_SIZE + j, (byte) (parity.get(PARITY_HEADER_SIZE + j) ^ frame[offset + j]));
+          lengths ^= length;
+          flags ^= (i == 0 ? CameraStream.START_OF_IMAGE & 0xff : 0)
+              | (i == PACKETS_PER_FRAME - 1 ? CameraStream.END_OF_IMAGE & 0xff : 0);
+
+          if ((i - group) == (imageNumber + group / GROUP_SIZE) % count)
+            continue;
+          recovering.addPacket(packetNumber + i, imageNumber, 5, i == 0, i == PACKETS_PER_FRAME - 1,
+              ByteBuffer.wrap(frame, offset, length), System.nanoTime());
+        }
+        parity.put(PARITY_GROUP_SIZE, (byte) GROUP_SIZE);
+        parity.put(PARITY_COUNT, (byte) count);
+        parity.put(PARITY_FLAGS, (byte) flags);
+        parity.put(PARITY_LENGTH, (byte) lengths);
+        parity.put(PARITY_LENGTH + 1, (byte) (lengths >> 8));
+        recovering.addParity(packetNumber + group, imageNumber, 5, parity, System.nanoTime());
+      }
+      packetNumber += PACKETS_PER_FRAME;
+    }
+
+    System.out.println("completed=" + recovering.getCompletedFrames() + " lost=" + recovering.getLostPackets()
+        + " recovered=" + recovering.getRecoveredPackets());
+    for (int i = 0; i < sent.size(); i++)
+    {
+      if (i >= rebuilt.size() || !Arrays.equals(sent.get(i), rebuilt.get(i)))
+        throw new IllegalStateException("frame " + (i + 1) + " was not rebuilt");
+    }
+
+  }// public static void main(String[] args)
+
+}
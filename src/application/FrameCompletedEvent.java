@@ -0,0 +1,34 @@
+package application;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Timespan;
+
+@Name("application.FrameCompleted")
+@Label("Frame Completed")
+@Category({ "Video", "Ingest" })
+@Description("Every packet of a frame has arrived")
+class FrameCompletedEvent extends Event
+{
+  @Label("Camera")
+  String camera;
+
+  @Label("Image Number")
+  int imageNumber;
+
+  @Label("Mode")
+  int mode;
+
+  @Label("Size")
+  @DataAmount
+  int size;
+
+  @Label("Reassembly Time")
+  @Description("First to last packet of the frame")
+  @Timespan(Timespan.NANOSECONDS)
+  long reassemblyNanos;
+}
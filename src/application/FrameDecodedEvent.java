@@ -0,0 +1,26 @@
+package application;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+@Name("application.FrameDecoded")
+@Label("Frame Decoded")
+@Category({ "Video", "Decode" })
+@Description("A JPEG frame was decoded for display, lasting as long as the decode")
+class FrameDecodedEvent extends Event
+{
+  @Label("Image Number")
+  int imageNumber;
+
+  @Label("Width")
+  int width;
+
+  @Label("Height")
+  int height;
+
+  @Label("Failed")
+  boolean failed;
+}
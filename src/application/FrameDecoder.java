@@ -0,0 +1,251 @@
+package application;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
+
+import javafx.scene.image.Image;
+import javafx.scene.image.PixelFormat;
+
+/**
+ * Decode stage of the receive pipeline. Frames are handed over from the
+ * receive thread through a single slot and decoded on this stage's own
+ * thread. The latest frame wins: a frame that is still waiting when a newer
+ * one arrives is dropped as stale, so if decoding falls behind it is always
+ * the newest frame that gets decoded next.
+ *
+ * Frames are decoded at the size they are displayed at. When the camera mode
+ * is larger than the display, the JPEG decoder is asked for a smaller image
+ * and scales in the DCT domain, which is far cheaper than decoding every
+ * pixel and shrinking afterwards.
+ */
+public class FrameDecoder implements Runnable
+{
+  private static final long IDLE_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+
+  // the frame waiting to be decoded, null when there is none
+  private final AtomicReference<Frame> pending = new AtomicReference<>();
+  private final PipelineStats stats;
+  private volatile Image image = null;
+  private volatile PixelBufferRenderer renderer = null;
+
+  // background subtraction of the decoded pixels, and where its mask is drawn
+  private volatile BackgroundSubtractor subtractor = null;
+  private volatile PixelBufferRenderer overlay = null;
+  private int[] pixels = new int[0];
+
+  // modes of the camera in use, and the size frames are shown at
+  private volatile CameraMode[] cameraModes = new CameraMode[0];
+  private volatile int displayWidth = 0;
+  private volatile int displayHeight = 0;
+  private volatile boolean fullResolution = false;
+
+  private volatile boolean running;
+  private volatile Thread thread;
+
+  // held by the decode thread while it decodes and draws a frame
+  private final Object decoding = new Object();
+  private volatile boolean paused = false;
+
+  public FrameDecoder(PipelineStats stats)
+  {
+    this.stats = stats;
+    running = false;
+    stats.setDecodePending(() -> pending.get() != null);
+  }
+
+  // the newest decoded image, may be read from any thread
+  public Image getImage()
+  {
+    return image;
+  }
+
+  // decoded pixels are also copied here, on the decode thread
+  public void setRenderer(PixelBufferRenderer renderer)
+  {
+    this.renderer = renderer;
+  }
+
+  /**
+   * Run each decoded frame through background subtraction, on this thread,
+   * and draw the foreground mask through overlay if it isn't null. Pass a
+   * null subtractor to stop.
+   */
+  public void setBackgroundSubtractor(BackgroundSubtractor subtractor, PixelBufferRenderer overlay)
+  {
+    this.overlay = overlay;
+    this.subtractor = subtractor;
+  }
+
+  // used to look up the native size of each frame's mode
+  public void setCameraModes(CameraMode[] cameraModes)
+  {
+    this.cameraModes = cameraModes.clone();
+  }
+
+  // 0 means unknown, and frames are decoded at full resolution
+  public void setDisplaySize(int width, int height)
+  {
+    displayWidth = width;
+    displayHeight = height;
+  }
+
+  // decode every pixel, e.g. while zoomed in to full size
+  public void setFullResolution(boolean fullResolution)
+  {
+    this.fullResolution = fullResolution;
+  }
+
+  /**
+   * Called from the receive thread only. Never blocks; returns false if this
+   * frame replaced one that was still waiting.
+   */
+  public boolean offer(Frame frame)
+  {
+    if (paused)
+      return true;
+    Frame replaced = pending.getAndSet(frame);
+    if (replaced != null)
+      stats.drop(DropReason.STALE, replaced.getImageNumber());
+
+    Thread t = thread;
+    if (t != null)
+      LockSupport.unpark(t);
+    return replaced == null;
+  }
+
+  // true when no offered frame is waiting for the decode thread, so an offer
+  // now won't replace one
+  public boolean isReady()
+  {
+    return pending.get() == null;
+  }
+
+  /**
+   * Stop decoding until resume, without stopping the thread; frames offered
+   * meanwhile are ignored. Returns once a frame already being decoded has
+   * been drawn, so nothing reaches the renderer after this and it can be
+   * handed to another decoder.
+   */
+  public void pause()
+  {
+    paused = true;
+    pending.set(null);
+    synchronized (decoding)
+    {
+      // the decode thread sees paused before it draws anything else
+    }
+  }
+
+  public void resume()
+  {
+    paused = false;
+  }
+
+  public void stop()
+  {
+    running = false;
+    Thread t = thread;
+    if (t != null)
+      LockSupport.unpark(t);
+  }
+
+  @Override
+  public void run()
+  {
+    thread = Thread.currentThread();
+    running = true;
+
+    while (running)
+    {
+      Frame frame = pending.getAndSet(null);
+      if (frame == null)
+      {
+        LockSupport.parkNanos(this, IDLE_NANOS);
+        continue;
+      }
+
+      synchronized (decoding)
+      {
+        if (!paused)
+          decode(frame);
+      }
+    }
+
+    thread = null;
+  }
+
+  private void decode(Frame frame)
+  {
+    FrameDecodedEvent event = IngestEvents.frameDecodeStarted();
+    long start = System.nanoTime();
+    Image decoded = decodeForDisplay(frame);
+    long decodedTime = System.nanoTime();
+    stats.addDecodeTime(decodedTime - start);
+
+    IngestEvents.frameDecoded(event, frame, (int) decoded.getWidth(), (int) decoded.getHeight(), decoded.isError());
+
+    if (decoded.isError())
+    {
+      stats.drop(DropReason.DECODE_FAILURE, frame.getImageNumber());
+      return;
+    }
+    image = decoded;
+    stats.recordDecoded(frame, decodedTime);
+
+    PixelBufferRenderer r = renderer;
+    if (r != null)
+      r.write(decoded, frame, decodedTime, stats);
+
+    BackgroundSubtractor s = subtractor;
+    if (s != null)
+      subtract(decoded, s);
+  }
+
+  private void subtract(Image decoded, BackgroundSubtractor s)
+  {
+    int width = (int) decoded.getWidth();
+    int height = (int) decoded.getHeight();
+    if (pixels.length != width * height)
+      pixels = new int[width * height];
+    decoded.getPixelReader().getPixels(0, 0, width, height, PixelFormat.getIntArgbInstance(), pixels, 0, width);
+    s.process(pixels, width, height);
+
+    PixelBufferRenderer o = overlay;
+    if (o != null)
+      o.write(s.getOverlay(), width, height);
+  }
+
+  private Image decodeForDisplay(Frame frame)
+  {
+    int width = displayWidth;
+    int height = displayHeight;
+    CameraMode mode = findMode(frame.getMode());
+    if (fullResolution || width <= 0 || height <= 0 || mode == null)
+      return decodeFullResolution(frame);
+
+    // the panel is at least as big as the image, nothing to gain
+    if (mode.getWidth() <= width && mode.getHeight() <= height)
+      return decodeFullResolution(frame);
+
+    // smooth resampling on top of the DCT scaling costs more than the decode
+    // saves, and the panel scales the result again anyway
+    double scale = Math.min((double) width / mode.getWidth(), (double) height / mode.getHeight());
+    return new Image(frame.openStream(), Math.ceil(mode.getWidth() * scale), Math.ceil(mode.getHeight() * scale), true,
+        false);
+  }
+
+  private CameraMode findMode(int mode)
+  {
+    for (CameraMode m : cameraModes)
+      if (m.getMode() == mode)
+        return m;
+    return null;
+  }
+
+  // every pixel of the frame, for snapshots
+  public static Image decodeFullResolution(Frame frame)
+  {
+    return new Image(frame.openStream());
+  }
+}
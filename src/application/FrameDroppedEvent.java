@@ -0,0 +1,21 @@
+package application;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+@Name("application.FrameDropped")
+@Label("Frame Dropped")
+@Category({ "Video", "Ingest" })
+@Description("A frame or packet was thrown away")
+class FrameDroppedEvent extends Event
+{
+  @Label("Image Number")
+  @Description("-1 when the frame isn't known, e.g. for a short packet")
+  int imageNumber;
+
+  @Label("Reason")
+  String reason;
+}
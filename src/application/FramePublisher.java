@@ -0,0 +1,259 @@
+package application;
+
+import java.util.ArrayDeque;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Flow;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Publishes completed frames to any number of independent subscribers. Each
+ * subscriber has its own bounded buffer, its own demand and its own drop
+ * policy, and is called on the executor rather than on the thread that
+ * submits frames. submit never blocks, so a slow subscriber only loses its
+ * own frames and can't hold up ingest or the other subscribers.
+ */
+public class FramePublisher implements Flow.Publisher<Frame>, AutoCloseable
+{
+  public enum DropPolicy
+  {
+    // keep the newest frames, the usual choice for live display
+    DROP_OLDEST,
+    // keep what is already buffered, for consumers that want contiguous runs
+    DROP_NEWEST
+  }
+
+  private static final int DEFAULT_BUFFER_SIZE = 4;
+
+  private final Executor executor;
+  private final List<FrameSubscription> subscriptions = new CopyOnWriteArrayList<>();
+  private final AtomicLong dropped = new AtomicLong();
+  private volatile boolean closed = false;
+
+  // a subscriber that blocks in onNext holds on to a thread, so by default
+  // every drain gets a thread of its own instead of sharing a fixed pool
+  public FramePublisher()
+  {
+    this(Executors.newCachedThreadPool(r ->
+    {
+      Thread thread = new Thread(r, "FramePublisher");
+      thread.setDaemon(true);
+      return thread;
+    }));
+  }
+
+  public FramePublisher(Executor executor)
+  {
+    this.executor = executor;
+  }
+
+  @Override
+  public void subscribe(Flow.Subscriber<? super Frame> subscriber)
+  {
+    subscribe(subscriber, DEFAULT_BUFFER_SIZE, DropPolicy.DROP_OLDEST);
+  }
+
+  public void subscribe(Flow.Subscriber<? super Frame> subscriber, int bufferSize, DropPolicy policy)
+  {
+    if (subscriber == null)
+      throw new NullPointerException("subscriber");
+    if (bufferSize < 1)
+      throw new IllegalArgumentException("buffer size " + bufferSize);
+    if (policy == null)
+      throw new NullPointerException("policy");
+
+    // onSubscribe is called by the subscription's first drain, on the
+    // executor, so nothing can reach onNext before it has returned
+    FrameSubscription subscription = new FrameSubscription(subscriber, bufferSize, policy);
+    if (closed)
+    {
+      subscription.complete();
+      return;
+    }
+    subscriptions.add(subscription);
+    subscription.signal();
+  }
+
+  public int getNumberOfSubscribers()
+  {
+    return subscriptions.size();
+  }
+
+  // frames thrown away over every subscriber because they fell behind
+  public long getDroppedFrames()
+  {
+    return dropped.get();
+  }
+
+  // the frame's data is shared with every subscriber, not copied
+  public void submit(Frame frame)
+  {
+    if (closed)
+      return;
+    for (FrameSubscription subscription : subscriptions)
+      subscription.offer(frame);
+  }
+
+  @Override
+  public void close()
+  {
+    closed = true;
+    for (FrameSubscription subscription : subscriptions)
+      subscription.complete();
+    subscriptions.clear();
+  }
+
+  private class FrameSubscription implements Flow.Subscription
+  {
+    private final Flow.Subscriber<? super Frame> subscriber;
+    private final int bufferSize;
+    private final DropPolicy policy;
+    private final ArrayDeque<Frame> buffer;
+    private final AtomicLong demand = new AtomicLong();
+
+    // number of outstanding drain requests, so only one drain runs at a time
+    private final AtomicInteger work = new AtomicInteger();
+
+    private volatile boolean cancelled = false;
+    private volatile boolean done = false;
+    private volatile Throwable error = null;
+    // drain only
+    private boolean subscribed = false;
+
+    FrameSubscription(Flow.Subscriber<? super Frame> subscriber, int bufferSize, DropPolicy policy)
+    {
+      this.subscriber = subscriber;
+      this.bufferSize = bufferSize;
+      this.policy = policy;
+      buffer = new ArrayDeque<>(bufferSize);
+    }
+
+    void offer(Frame frame)
+    {
+      synchronized (buffer)
+      {
+        if (buffer.size() == bufferSize)
+        {
+          dropped.incrementAndGet();
+          if (policy == DropPolicy.DROP_NEWEST)
+            return;
+          buffer.poll();
+        }
+        buffer.add(frame);
+      }
+      signal();
+    }
+
+    void complete()
+    {
+      done = true;
+      signal();
+    }
+
+    @Override
+    public void request(long n)
+    {
+      if (n <= 0)
+      {
+        error = new IllegalArgumentException("non-positive request " + n);
+        done = true;
+      } else
+      {
+        // saturate at Long.MAX_VALUE, which means unbounded
+        demand.getAndAccumulate(n, (current, add) -> current + add < 0 ? Long.MAX_VALUE : current + add);
+      }
+      signal();
+    }
+
+    @Override
+    public void cancel()
+    {
+      cancelled = true;
+      subscriptions.remove(this);
+    }
+
+    private void signal()
+    {
+      if (work.getAndIncrement() == 0)
+        executor.execute(this::drain);
+    }
+
+    private void drain()
+    {
+      int missed = 1;
+      do
+      {
+        if (cancelled)
+          return;
+
+        if (!subscribed)
+        {
+          subscribed = true;
+          try
+          {
+            subscriber.onSubscribe(this);
+          } catch (Throwable t)
+          {
+            cancel();
+            System.out.println("FramePublisher " + t.toString());
+            return;
+          }
+        }
+
+        if (error != null)
+        {
+          cancel();
+          subscriber.onError(error);
+          return;
+        }
+
+        long requested = demand.get();
+        long emitted = 0;
+        while (emitted != requested && !cancelled)
+        {
+          Frame frame;
+          synchronized (buffer)
+          {
+            frame = buffer.poll();
+          }
+          if (frame == null)
+            break;
+
+          try
+          {
+            subscriber.onNext(frame);
+          } catch (Throwable t)
+          {
+            cancel();
+            subscriber.onError(t);
+            return;
+          }
+          emitted++;
+        }
+
+        if (emitted != 0 && requested != Long.MAX_VALUE)
+          demand.addAndGet(-emitted);
+
+        if (done && !cancelled)
+        {
+          boolean empty;
+          synchronized (buffer)
+          {
+            empty = buffer.isEmpty();
+          }
+          if (empty)
+          {
+            cancel();
+            subscriber.onComplete();
+            return;
+          }
+        }
+
+        missed = work.addAndGet(-missed);
+      } while (missed != 0);
+    }
+  }
+}
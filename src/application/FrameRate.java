@@ -1,122 +1,53 @@
 package application;
 
-import javafx.beans.property.SimpleDoubleProperty;
+import java.util.function.LongSupplier;
 
 public class FrameRate
 {
-  private double milliseconds = 0;
-  private long[] timeStamps;
-  private int head = 0;
-  private int tail = 0;
-  private SimpleDoubleProperty frameRate;
-  private int totalFrames = 0;
+  private RateEstimator estimator;
+  private LongSupplier clock;
   
-  public FrameRate(long milliseconds, int numSamples)
+  public FrameRate(long milliseconds, int numBuckets)
   {
-    this.milliseconds = milliseconds;
-    timeStamps = new long[numSamples];
-    frameRate = new SimpleDoubleProperty();
+    this(milliseconds, numBuckets, System::nanoTime);
   }
   
-  public void reset()
+  public FrameRate(long milliseconds, int numBuckets, LongSupplier clock)
   {
-    head = tail;
-    totalFrames = 0;
-    frameRate.set(0);
+    this.clock = clock;
+    estimator = new RateEstimator(milliseconds, numBuckets, clock);
   }
   
-  private long totalTime()
+  public void reset()
   {
-    // check to see if the queue is empty
-    if(head == tail)
-      return 0;
-    
-    int length = timeStamps.length;
-    int last = (tail + length - 1) % length;
-    return timeStamps[last] - timeStamps[head];
+    estimator.reset();
   }
 
-  public SimpleDoubleProperty frameRateProperty()
+  // frames per second, may be read from any thread
+  public double getFrameRate()
   {
-    return frameRate;
+    // worked out now, so it falls to 0 once nothing arrives
+    return estimator.getRate(clock.getAsLong());
   }
   
-  private void removeOldPackets(long currentTime)
+  public void addFrame()
   {
-    // keep removing data until we exit the loop
-    while(head != tail)
-    {
-      // check to see if this data is old
-      if(timeStamps[head] + milliseconds < currentTime)
-      {
-        // remove old data from the total
-        totalFrames--;
-        head = (head+1)%timeStamps.length;        
-      }
-      else
-      {
-        // no more old data found
-        return;
-      }
-    }
-  }
-  
-  public void addFrame() throws Exception
-  {
-    // get the current time
-    long currentTime = System.currentTimeMillis();
-    
-    // remove old data
-    removeOldPackets(currentTime);
-    
-    // check for overflow
-    int nextTail = (tail+1)%timeStamps.length;
-    if(nextTail == head)
-    {
-      throw new Exception("overflow capacity " + timeStamps.length);
-    }
-    
-    // keep this data
-    timeStamps[tail] = currentTime;    
-    tail = nextTail;
-    totalFrames++;
-    
-    // update the bandwidth
-    long duration = totalTime();
-    if(duration == 0)
-    {
-      frameRate.set(0);
-    }
-    else
-    {
-      frameRate.set(1000.0 * totalFrames / duration);
-    }    
+    estimator.add(1);
   }
   
   public String toString()
   {
-    StringBuilder sb = new StringBuilder();
-    int curr = head;
-    while(curr != tail)
-    {
-      sb.append(String.format("%d\n", timeStamps[curr]));
-      curr = (curr+1)%timeStamps.length;
-    }
-    return sb.toString();
+    return String.format("%d frames, %.3f frames/s", estimator.getTotal(), getFrameRate());
   }
   
   public static void main(String[] args) throws Exception
   {
     FrameRate fr = new FrameRate(10000, 20);
-    fr.frameRateProperty().addListener(e -> {
-      System.out.println(e);
-    });
-    
     for(int i=0; i<20; i++)
     {  
       fr.addFrame();
       System.out.println("-------------------------------------------");
-      System.out.print(fr.toString());
+      System.out.println(fr.toString());
       Thread.sleep(1000);
     }
 
@@ -0,0 +1,490 @@
+package application;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Flow;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32C;
+
+/**
+ * Records frames as they arrive into a directory of segments. Each segment is
+ * a pair of pre-allocated, memory-mapped files: a data file the JPEG bytes are
+ * appended to, and an index file with one fixed-width entry per frame. A new
+ * segment is started when either file is full, the segment has been open for
+ * long enough, or a new stream starts.
+ *
+ * A session is everything one recorder writes, and a stream is a run of
+ * frames from the camera in one mode without a restart, so its image numbers
+ * keep counting up. The camera doesn't say when it restarts, so a frame in a
+ * different mode or whose image number doesn't follow on starts a new stream.
+ * Both are numbered by their first segment, which each segment's header
+ * records.
+ *
+ * The recorder subscribes to a FramePublisher, so it writes on the
+ * publisher's thread and a slow disk only costs recorded frames, never
+ * received ones. Data and index are forced to disk together every few frames,
+ * or by a timer once a frame has waited long enough, and the index header
+ * then records how many entries are known to be safe.
+ * Entries after that carry a checksum of their frame, so after a crash
+ * everything up to the last frame that was completely written can be
+ * recovered.
+ *
+ * index file: a 32 byte header followed by 32 byte entries, little endian
+ *
+ * <pre>
+ * header: int magic, int version, int entry size, int committed entries,
+ *         long start time (epoch nanoseconds), int session, int stream
+ * entry:  long timestamp (epoch nanoseconds), int image number, int mode,
+ *         long offset in the data file, int length, int CRC-32C of the frame
+ * </pre>
+ */
+public class FrameRecorder implements Flow.Subscriber<Frame>, AutoCloseable
+{
+  static final int INDEX_MAGIC = 0x58495641; // "AVIX"
+  // version 1 had no session or stream, those bytes were zero
+  static final int INDEX_VERSION = 2;
+  static final int HEADER_SIZE = 32;
+  static final int ENTRY_SIZE = 32;
+  static final int HEADER_MAGIC = 0;
+  static final int HEADER_VERSION = 4;
+  static final int HEADER_ENTRY_SIZE = 8;
+  static final int HEADER_COMMITTED = 12;
+  static final int HEADER_START_TIME = 16;
+  static final int HEADER_SESSION = 24;
+  static final int HEADER_STREAM = 28;
+  static final int ENTRY_TIME = 0;
+  static final int ENTRY_IMAGE_NUMBER = 8;
+  static final int ENTRY_MODE = 12;
+  static final int ENTRY_OFFSET = 16;
+  static final int ENTRY_LENGTH = 24;
+  static final int ENTRY_CRC = 28;
+  static final String SEGMENT_PREFIX = "segment-";
+  static final String DATA_SUFFIX = ".data";
+  static final String INDEX_SUFFIX = ".index";
+
+  // frames per group commit, or sooner if this much time has passed
+  private static final int GROUP_COMMIT_FRAMES = 32;
+  private static final long GROUP_COMMIT_NANOS = 250000000L;
+  // how often the timer looks for frames that have waited that long
+  private static final long COMMIT_CHECK_MILLISECONDS = 50;
+  // index entries per data byte, frames are rarely smaller than this
+  private static final int MIN_FRAME_BYTES = 2048;
+
+  private final Path directory;
+  private final long segmentBytes;
+  private final long segmentNanos;
+  private final int maxEntries;
+  private final CRC32C crc = new CRC32C();
+  private final ScheduledExecutorService timer;
+
+  // frame times are System.nanoTime(), stored as wall clock time
+  private final long epochNanos;
+  private final long nanoTime;
+
+  private Flow.Subscription subscription = null;
+  private volatile boolean closed = false;
+
+  // the open segment
+  private int segmentNumber;
+  private MappedByteBuffer data = null;
+  private MappedByteBuffer index = null;
+  private long segmentStart = 0;
+  private int dataOffset = 0;
+  private int entries = 0;
+
+  // numbers of the first segments of this session and of the current stream
+  private int session = 0;
+  private int stream = 0;
+  private int lastImageNumber = 0;
+  private int lastMode = -1;
+
+  // what has been forced to disk
+  private int committedOffset = 0;
+  private int committedEntries = 0;
+  private long lastCommit = 0;
+
+  private volatile long recordedFrames = 0;
+  private volatile long recordedBytes = 0;
+  private volatile long droppedFrames = 0;
+  private volatile int segments = 0;
+
+  /**
+   * @param directory created if need be; existing segments are left alone and
+   *          numbering carries on after them
+   * @param segmentBytes size of each data file, at most 2 GB
+   * @param segmentMilliseconds a segment is closed after this long, 0 for no
+   *          limit
+   */
+  public FrameRecorder(Path directory, long segmentBytes, long segmentMilliseconds) throws IOException
+  {
+    if (segmentBytes <= 0 || segmentBytes > Integer.MAX_VALUE)
+      throw new IllegalArgumentException("segment size " + segmentBytes);
+
+    this.directory = directory;
+    this.segmentBytes = segmentBytes;
+    this.segmentNanos = segmentMilliseconds * 1000000L;
+    this.maxEntries = (int) Math.max(1024, segmentBytes / MIN_FRAME_BYTES);
+    this.epochNanos = System.currentTimeMillis() * 1000000L;
+    this.nanoTime = System.nanoTime();
+
+    Files.createDirectories(directory);
+    segmentNumber = lastSegmentNumber(directory);
+
+    // commit a last few frames even if no more arrive to trigger it
+    timer = Executors.newSingleThreadScheduledExecutor(r ->
+    {
+      Thread thread = new Thread(r, "FrameRecorder commit");
+      thread.setDaemon(true);
+      return thread;
+    });
+    timer.scheduleWithFixedDelay(this::commitIfIdle, COMMIT_CHECK_MILLISECONDS, COMMIT_CHECK_MILLISECONDS,
+        TimeUnit.MILLISECONDS);
+  }
+
+  public Path getDirectory()
+  {
+    return directory;
+  }
+
+  public long getRecordedFrames()
+  {
+    return recordedFrames;
+  }
+
+  public long getRecordedBytes()
+  {
+    return recordedBytes;
+  }
+
+  // frames that couldn't be written, e.g. larger than a whole segment
+  public long getDroppedFrames()
+  {
+    return droppedFrames;
+  }
+
+  // segments started by this recorder
+  public int getSegments()
+  {
+    return segments;
+  }
+
+  // closed, e.g. by the publisher completing once the frames it held are written
+  public boolean isClosed()
+  {
+    return closed;
+  }
+
+  @Override
+  public void onSubscribe(Flow.Subscription subscription)
+  {
+    synchronized (this)
+    {
+      if (closed)
+      {
+        subscription.cancel();
+        return;
+      }
+      this.subscription = subscription;
+    }
+    subscription.request(Long.MAX_VALUE);
+  }
+
+  @Override
+  public void onNext(Frame frame)
+  {
+    try
+    {
+      record(frame);
+    } catch (IOException e)
+    {
+      System.out.println("FrameRecorder " + e.toString());
+      close();
+    }
+  }
+
+  @Override
+  public void onError(Throwable throwable)
+  {
+    System.out.println("FrameRecorder " + throwable.toString());
+    close();
+  }
+
+  @Override
+  public void onComplete()
+  {
+    close();
+  }
+
+  /**
+   * Append one frame. Called on the publisher's thread when subscribed, but
+   * may also be called directly.
+   */
+  public synchronized void record(Frame frame) throws IOException
+  {
+    if (closed)
+      return;
+
+    int length = frame.getLength();
+    if (length > segmentBytes)
+    {
+      droppedFrames++;
+      return;
+    }
+
+    long now = System.nanoTime();
+    boolean newStream = frame.getMode() != lastMode || frame.getImageNumber() - lastImageNumber <= 0;
+    if (data == null || newStream || dataOffset + (long) length > segmentBytes || entries == maxEntries
+        || (segmentNanos > 0 && now - segmentStart > segmentNanos))
+      nextSegment(now, newStream);
+    lastImageNumber = frame.getImageNumber();
+    lastMode = frame.getMode();
+
+    // the frame first, then the entry that points at it
+    ByteBuffer jpeg = frame.getData();
+    data.put(dataOffset, jpeg, jpeg.position(), length);
+    crc.reset();
+    crc.update(jpeg);
+
+    int entry = HEADER_SIZE + entries * ENTRY_SIZE;
+    index.putLong(entry + ENTRY_TIME, epochNanos + frame.getLastPacketTime() - nanoTime);
+    index.putInt(entry + ENTRY_IMAGE_NUMBER, frame.getImageNumber());
+    index.putInt(entry + ENTRY_MODE, frame.getMode());
+    index.putLong(entry + ENTRY_OFFSET, dataOffset);
+    index.putInt(entry + ENTRY_CRC, (int) crc.getValue());
+    index.putInt(entry + ENTRY_LENGTH, length);
+
+    dataOffset += length;
+    entries++;
+    recordedFrames++;
+    recordedBytes += length;
+
+    if (entries - committedEntries >= GROUP_COMMIT_FRAMES || now - lastCommit >= GROUP_COMMIT_NANOS)
+      commit(now);
+  }
+
+  // force everything recorded so far to disk
+  public synchronized void flush()
+  {
+    if (data != null)
+      commit(System.nanoTime());
+  }
+
+  /**
+   * Force what is left to disk and drop the mappings. Forcing waits for the
+   * disk, so don't call this on the JavaFX application thread. There is no
+   * way to unmap a file, so the segments stay mapped until the buffers are
+   * garbage collected; until then Windows won't let them be renamed or
+   * deleted, and elsewhere a deleted segment's space isn't freed.
+   */
+  @Override
+  public void close()
+  {
+    Flow.Subscription s;
+    synchronized (this)
+    {
+      if (closed)
+        return;
+      closed = true;
+      closeSegment();
+      s = subscription;
+      subscription = null;
+    }
+    timer.shutdown();
+    if (s != null)
+      s.cancel();
+  }
+
+  private synchronized void commitIfIdle()
+  {
+    long now = System.nanoTime();
+    if (!closed && data != null && entries > committedEntries && now - lastCommit >= GROUP_COMMIT_NANOS)
+      commit(now);
+  }
+
+  private void commit(long now)
+  {
+    // the frames must be on disk before the index says they are
+    if (dataOffset > committedOffset)
+      data.force(committedOffset, dataOffset - committedOffset);
+    int from = HEADER_SIZE + committedEntries * ENTRY_SIZE;
+    int to = HEADER_SIZE + entries * ENTRY_SIZE;
+    if (to > from)
+      index.force(from, to - from);
+
+    index.putInt(HEADER_COMMITTED, entries);
+    index.force(0, HEADER_SIZE);
+
+    committedOffset = dataOffset;
+    committedEntries = entries;
+    lastCommit = now;
+  }
+
+  private void closeSegment()
+  {
+    if (data == null)
+      return;
+    commit(System.nanoTime());
+    // the mappings go when they are garbage collected
+    data = null;
+    index = null;
+  }
+
+  private void nextSegment(long now, boolean newStream) throws IOException
+  {
+    closeSegment();
+    segmentNumber++;
+    if (session == 0)
+      session = segmentNumber;
+    if (newStream)
+      stream = segmentNumber;
+
+    data = map(directory.resolve(segmentName(segmentNumber) + DATA_SUFFIX), segmentBytes);
+    index = map(directory.resolve(segmentName(segmentNumber) + INDEX_SUFFIX),
+        HEADER_SIZE + (long) maxEntries * ENTRY_SIZE);
+    index.putInt(HEADER_MAGIC, INDEX_MAGIC);
+    index.putInt(HEADER_VERSION, INDEX_VERSION);
+    index.putInt(HEADER_ENTRY_SIZE, ENTRY_SIZE);
+    index.putInt(HEADER_COMMITTED, 0);
+    index.putLong(HEADER_START_TIME, epochNanos + now - nanoTime);
+    index.putInt(HEADER_SESSION, session);
+    index.putInt(HEADER_STREAM, stream);
+    index.force(0, HEADER_SIZE);
+
+    segmentStart = now;
+    dataOffset = 0;
+    entries = 0;
+    committedOffset = 0;
+    committedEntries = 0;
+    lastCommit = now;
+    segments++;
+  }
+
+  private static MappedByteBuffer map(Path path, long size) throws IOException
+  {
+    try (RandomAccessFile file = new RandomAccessFile(path.toFile(), "rw"))
+    {
+      file.setLength(size);
+      MappedByteBuffer buffer = file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+      buffer.order(ByteOrder.LITTLE_ENDIAN);
+      return buffer;
+    }
+  }
+
+  static String segmentName(int number)
+  {
+    return String.format("%s%06d", SEGMENT_PREFIX, number);
+  }
+
+  // the highest segment number in a directory, 0 if there are none
+  static int lastSegmentNumber(Path directory) throws IOException
+  {
+    int last = 0;
+    try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, SEGMENT_PREFIX + "*" + INDEX_SUFFIX))
+    {
+      for (Path path : stream)
+      {
+        String name = path.getFileName().toString();
+        try
+        {
+          last = Math.max(last,
+              Integer.parseInt(name.substring(SEGMENT_PREFIX.length(), name.length() - INDEX_SUFFIX.length())));
+        } catch (NumberFormatException e)
+        {
+          // not one of ours
+        }
+      }
+    }
+    return last;
+  }
+
+  public String toString()
+  {
+    return String.format("%s: %d frames, %.1f MB in %d segments, dropped %d", directory, recordedFrames,
+        1e-6 * recordedBytes, segments, droppedFrames);
+  }
+
+  public static void main(String[] args) throws Exception
+  {
+    // record a few thousand frames into small segments so they roll over,
+    // then check every index entry against the data it points at
+    Path directory = Files.createTempDirectory("recording");
+    final int FRAMES = 3000;
+    final long SEGMENT_BYTES = 1 << 20;
+
+    FrameRecorder recorder = new FrameRecorder(directory, SEGMENT_BYTES, 0);
+    FramePublisher publisher = new FramePublisher();
+    publisher.subscribe(recorder, 4096, FramePublisher.DropPolicy.DROP_NEWEST);
+
+    java.util.Random random = new java.util.Random(1);
+    long start = System.nanoTime();
+    for (int i = 0; i < FRAMES; i++)
+    {
+      byte[] jpeg = new byte[1000 + random.nextInt(9000)];
+      random.nextBytes(jpeg);
+      long time = System.nanoTime();
+      publisher.submit(new Frame(i + 1, 5, ByteBuffer.wrap(jpeg), time, time));
+    }
+    publisher.close();
+    while (!recorder.isClosed())
+      Thread.sleep(10);
+    System.out.printf("%s in %.1f ms%n", recorder, 1e-6 * (System.nanoTime() - start));
+
+    long checked = 0;
+    int expected = 1;
+    for (int number = 1; number <= lastSegmentNumber(directory); number++)
+    {
+      Path indexPath = directory.resolve(segmentName(number) + INDEX_SUFFIX);
+      Path dataPath = directory.resolve(segmentName(number) + DATA_SUFFIX);
+      ByteBuffer index = ByteBuffer.wrap(Files.readAllBytes(indexPath)).order(ByteOrder.LITTLE_ENDIAN);
+      ByteBuffer data = ByteBuffer.wrap(Files.readAllBytes(dataPath));
+      if (index.getInt(HEADER_MAGIC) != INDEX_MAGIC)
+        throw new Exception(indexPath + " has no header");
+
+      int committed = index.getInt(HEADER_COMMITTED);
+      for (int i = 0; i < committed; i++)
+      {
+        int entry = HEADER_SIZE + i * ENTRY_SIZE;
+        int length = index.getInt(entry + ENTRY_LENGTH);
+        int offset = (int) index.getLong(entry + ENTRY_OFFSET);
+        CRC32C check = new CRC32C();
+        check.update(data.slice(offset, length));
+        if ((int) check.getValue() != index.getInt(entry + ENTRY_CRC))
+          throw new Exception(dataPath + " entry " + i + " fails its checksum");
+        if (index.getInt(entry + ENTRY_IMAGE_NUMBER) != expected++)
+          throw new Exception(indexPath + " entry " + i + " is out of order");
+        checked++;
+      }
+    }
+    System.out.println("checked " + checked + " frames in " + lastSegmentNumber(directory) + " segments");
+    if (checked != FRAMES)
+      throw new Exception("expected " + FRAMES + " frames");
+
+    // a few frames and then nothing, the timer must commit them on its own
+    FrameRecorder idle = new FrameRecorder(directory, SEGMENT_BYTES, 0);
+    for (int i = 0; i < 3; i++)
+    {
+      long time = System.nanoTime();
+      idle.record(new Frame(i + 1, 5, ByteBuffer.wrap(new byte[1000]), time, time));
+    }
+    Path idleIndex = directory.resolve(segmentName(lastSegmentNumber(directory)) + INDEX_SUFFIX);
+    int before = ByteBuffer.wrap(Files.readAllBytes(idleIndex)).order(ByteOrder.LITTLE_ENDIAN).getInt(HEADER_COMMITTED);
+    Thread.sleep(2 * GROUP_COMMIT_NANOS / 1000000);
+    int after = ByteBuffer.wrap(Files.readAllBytes(idleIndex)).order(ByteOrder.LITTLE_ENDIAN).getInt(HEADER_COMMITTED);
+    idle.close();
+    System.out.println("idle: " + before + " committed at once, " + after + " after " + 2 * GROUP_COMMIT_NANOS / 1000000
+        + " ms");
+    if (after != 3)
+      throw new Exception("idle frames not committed");
+
+  }// public static void main(String[] args) throws Exception
+
+}
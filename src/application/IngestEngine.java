@@ -0,0 +1,327 @@
+package application;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+
+/**
+ * Receives many cameras on one thread. Any number of non-blocking data
+ * channels are served by a single Selector, and the packets on each channel
+ * are demultiplexed by source address so every camera gets its own
+ * CameraStream. A source that has sent nothing for longer than the frame
+ * timeout is forgotten when a new one turns up, so a camera that comes back
+ * on another port doesn't leave its old stream behind, and each channel
+ * takes at most MAX_SOURCES at once.
+ */
+public class IngestEngine implements Runnable
+{
+  // packets read from one channel before the others get a turn
+  private static final int RECEIVE_BUDGET = 64;
+  private static final long SELECT_TIMEOUT_MILLISECONDS = 500;
+  // cameras on one channel, packets from any more sources are ignored
+  private static final int MAX_SOURCES = 64;
+  private static final long IDLE_NANOS = CameraStream.FRAME_TIMEOUT_MILLISECONDS * 1000000L;
+
+  private final Selector selector;
+  private final BiConsumer<CameraStream, Frame> sink;
+  private final ConcurrentLinkedQueue<DatagramChannel> pendingChannels = new ConcurrentLinkedQueue<>();
+  private final List<CameraStream> cameras = new CopyOnWriteArrayList<>();
+  private final ByteBuffer packet;
+
+  private volatile boolean running;
+  private volatile long receivedPackets = 0;
+  private volatile long receivedBytes = 0;
+  private volatile long rejectedPackets = 0;
+
+  /**
+   * @param sink receives every completed frame, with the camera it came from,
+   *          on the ingest thread. may be null
+   */
+  public IngestEngine(BiConsumer<CameraStream, Frame> sink) throws IOException
+  {
+    this.sink = sink;
+    selector = Selector.open();
+    packet = ByteBuffer.allocateDirect(CameraStream.MAX_PACKET_SIZE);
+    packet.order(ByteOrder.LITTLE_ENDIAN);
+    running = false;
+  }
+
+  // may be called before or after the engine starts
+  public void addPort(int port) throws IOException
+  {
+    DatagramChannel channel = DatagramChannel.open();
+    channel.configureBlocking(false);
+    channel.bind(new InetSocketAddress(port));
+    addChannel(channel);
+  }
+
+  public void addChannel(DatagramChannel channel)
+  {
+    pendingChannels.add(channel);
+    selector.wakeup();
+  }
+
+  // cameras in the order their first packet arrived, idle ones are removed
+  public List<CameraStream> getCameras()
+  {
+    return cameras;
+  }
+
+  // totals over every camera, written by the ingest thread only
+  public long getReceivedPackets()
+  {
+    return receivedPackets;
+  }
+
+  public long getReceivedBytes()
+  {
+    return receivedBytes;
+  }
+
+  // packets from sources beyond MAX_SOURCES on their channel
+  public long getRejectedPackets()
+  {
+    return rejectedPackets;
+  }
+
+  public void stop()
+  {
+    running = false;
+    selector.wakeup();
+  }
+
+  @Override
+  public void run()
+  {
+    running = true;
+
+    try
+    {
+      while (running)
+      {
+        registerPendingChannels();
+        selector.select(SELECT_TIMEOUT_MILLISECONDS);
+
+        for (SelectionKey key : selector.selectedKeys())
+        {
+          if (key.isValid() && key.isReadable())
+            drain(key);
+        }
+        selector.selectedKeys().clear();
+      }
+    } catch (IOException | ClosedSelectorException e)
+    {
+      e.printStackTrace();
+    } finally
+    {
+      close();
+    }
+
+    System.out.println("IngestEngine exit");
+  }
+
+  private void registerPendingChannels() throws IOException
+  {
+    for (DatagramChannel channel = pendingChannels.poll(); channel != null; channel = pendingChannels.poll())
+    {
+      channel.configureBlocking(false);
+      channel.register(selector, SelectionKey.OP_READ, new Sources(channel));
+    }
+  }
+
+  private void drain(SelectionKey key)
+  {
+    DatagramChannel channel = (DatagramChannel) key.channel();
+    Sources sources = (Sources) key.attachment();
+
+    for (int i = 0; i < RECEIVE_BUDGET; i++)
+    {
+      try
+      {
+        packet.clear();
+        SocketAddress source = channel.receive(packet);
+        if (source == null)
+          return;
+        packet.flip();
+        receivedPackets++;
+        receivedBytes += packet.remaining();
+
+        long received = System.nanoTime();
+        CameraStream camera = sources.get(source, received);
+        if (camera == null)
+        {
+          rejectedPackets++;
+          continue;
+        }
+        camera.handlePacket(packet, received);
+        camera.getPipelineStats().addReceiveTime(System.nanoTime() - received);
+
+      } catch (ClosedChannelException e)
+      {
+        System.out.println("IngestEngine " + e.toString());
+        key.cancel();
+        return;
+      } catch (IOException e)
+      {
+        // e.g. an ICMP port unreachable reported on the channel. it says
+        // nothing about the other cameras, so keep the channel unless it is
+        // actually closed
+        System.out.println("IngestEngine " + e.toString());
+        if (!channel.isOpen())
+          key.cancel();
+        return;
+      } catch (Exception e)
+      {
+        System.out.println("IngestEngine " + e.toString());
+      }
+    }
+  }
+
+  // also closes an engine that never ran, and channels it never registered
+  void close()
+  {
+    for (DatagramChannel channel = pendingChannels.poll(); channel != null; channel = pendingChannels.poll())
+    {
+      try
+      {
+        channel.close();
+      } catch (IOException e)
+      {
+        e.printStackTrace();
+      }
+    }
+    for (SelectionKey key : selector.keys())
+    {
+      try
+      {
+        key.channel().close();
+      } catch (IOException e)
+      {
+        e.printStackTrace();
+      }
+    }
+    try
+    {
+      selector.close();
+    } catch (IOException e)
+    {
+      e.printStackTrace();
+    }
+  }
+
+  // the cameras sending to one channel, keyed by source address
+  private class Sources
+  {
+    private final Map<SocketAddress, Source> streams = new HashMap<>();
+    private final String local;
+
+    Sources(DatagramChannel channel) throws IOException
+    {
+      local = String.valueOf(channel.getLocalAddress());
+    }
+
+    // null if the channel already has as many sources as it takes
+    CameraStream get(SocketAddress source, long currentTime)
+    {
+      Source known = streams.get(source);
+      if (known != null)
+      {
+        known.lastPacketTime = currentTime;
+        return known.camera;
+      }
+
+      removeIdle(currentTime);
+      if (streams.size() >= MAX_SOURCES)
+        return null;
+
+      CameraSink cameraSink = new CameraSink();
+      CameraStream camera = new CameraStream(source + " -> " + local, cameraSink);
+      cameraSink.camera = camera;
+      streams.put(source, new Source(camera, currentTime));
+      cameras.add(camera);
+      return camera;
+    }
+
+    private void removeIdle(long currentTime)
+    {
+      for (Iterator<Source> i = streams.values().iterator(); i.hasNext();)
+      {
+        Source known = i.next();
+        if (currentTime - known.lastPacketTime > IDLE_NANOS)
+        {
+          i.remove();
+          cameras.remove(known.camera);
+        }
+      }
+    }
+  }
+
+  private static class Source
+  {
+    final CameraStream camera;
+    long lastPacketTime;
+
+    Source(CameraStream camera, long lastPacketTime)
+    {
+      this.camera = camera;
+      this.lastPacketTime = lastPacketTime;
+    }
+  }
+
+  // tags each frame with the camera it came from
+  private class CameraSink implements Consumer<Frame>
+  {
+    private CameraStream camera;
+
+    @Override
+    public void accept(Frame frame)
+    {
+      if (sink != null)
+        sink.accept(camera, frame);
+    }
+  }
+
+  public static void main(String[] args) throws Exception
+  {
+    // receive on the data port, or on every port given on the command line, and
+    // print each camera's statistics once a second. run several ImageSenders
+    // against it to see them demultiplexed
+    IngestEngine engine = new IngestEngine(null);
+    List<Integer> ports = new ArrayList<>();
+    for (String arg : args)
+      ports.add(Integer.parseInt(arg));
+    if (ports.isEmpty())
+      ports.add(StreamReceiver.DATA_PORT);
+    for (int port : ports)
+      engine.addPort(port);
+
+    Thread thread = new Thread(engine, "IngestEngine");
+    thread.start();
+
+    while (thread.isAlive())
+    {
+      Thread.sleep(1000);
+      System.out.println("-------------------------------------------");
+      for (CameraStream camera : engine.getCameras())
+        System.out.println(camera);
+    }
+
+  }// public static void main(String[] args) throws Exception
+
+}
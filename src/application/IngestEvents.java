@@ -0,0 +1,95 @@
+package application;
+
+import jdk.jfr.FlightRecorder;
+
+/**
+ * Emits the Flight Recorder events of the ingest path. Loading the first event
+ * class starts up Flight Recorder, which stalls the calling thread for long
+ * enough to overflow the socket buffer, so no event class is touched until a
+ * recording has been started. Until then each call costs a field read.
+ */
+final class IngestEvents
+{
+  private IngestEvents()
+  {
+  }
+
+  static void packetsReceived(String camera, int packets, long bytes, long batchNanos)
+  {
+    if (!FlightRecorder.isInitialized())
+      return;
+    PacketsReceivedEvent event = new PacketsReceivedEvent();
+    if (!event.isEnabled())
+      return;
+    event.camera = camera;
+    event.packets = packets;
+    event.bytes = bytes;
+    event.batchNanos = batchNanos;
+    event.commit();
+  }
+
+  static void frameCompleted(String camera, Frame frame)
+  {
+    if (!FlightRecorder.isInitialized())
+      return;
+    FrameCompletedEvent event = new FrameCompletedEvent();
+    if (!event.isEnabled())
+      return;
+    event.camera = camera;
+    event.imageNumber = frame.getImageNumber();
+    event.mode = frame.getMode();
+    event.size = frame.getLength();
+    event.reassemblyNanos = frame.getLastPacketTime() - frame.getFirstPacketTime();
+    event.commit();
+  }
+
+  static void frameDropped(DropReason reason, int imageNumber)
+  {
+    if (!FlightRecorder.isInitialized())
+      return;
+    FrameDroppedEvent event = new FrameDroppedEvent();
+    if (!event.isEnabled())
+      return;
+    event.imageNumber = imageNumber;
+    event.reason = reason.getName();
+    event.commit();
+  }
+
+  // null unless a recording takes the event. the event's own duration is the
+  // decode time, so call this just before decoding
+  static FrameDecodedEvent frameDecodeStarted()
+  {
+    if (!FlightRecorder.isInitialized())
+      return null;
+    FrameDecodedEvent event = new FrameDecodedEvent();
+    if (!event.isEnabled())
+      return null;
+    event.begin();
+    return event;
+  }
+
+  static void frameDecoded(FrameDecodedEvent event, Frame frame, int width, int height, boolean failed)
+  {
+    if (event == null)
+      return;
+    event.end();
+    event.imageNumber = frame.getImageNumber();
+    event.width = width;
+    event.height = height;
+    event.failed = failed;
+    event.commit();
+  }
+
+  static void modeChanged(String camera, int oldMode, int newMode)
+  {
+    if (!FlightRecorder.isInitialized())
+      return;
+    ModeChangedEvent event = new ModeChangedEvent();
+    if (!event.isEnabled())
+      return;
+    event.camera = camera;
+    event.oldMode = oldMode;
+    event.newMode = newMode;
+    event.commit();
+  }
+}
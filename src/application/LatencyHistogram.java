@@ -0,0 +1,113 @@
+package application;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock-free histogram of latencies in nanoseconds. Buckets are spaced
+ * log-linearly, eight to every power of two, so any recorded value is known
+ * to within 12.5% while the whole range up to minutes fits in a few hundred
+ * counters. Any number of threads may record and read at once.
+ */
+public class LatencyHistogram
+{
+  private static final int SUB_BITS = 3;
+  private static final int SUB_BUCKETS = 1 << SUB_BITS;
+  // values below this each have a bucket of their own
+  private static final int LINEAR = 2 * SUB_BUCKETS;
+  private static final int NUM_BUCKETS = LINEAR + (63 - (SUB_BITS + 1)) * SUB_BUCKETS;
+
+  private final AtomicLongArray counts = new AtomicLongArray(NUM_BUCKETS);
+  private final AtomicLong count = new AtomicLong();
+  private final AtomicLong max = new AtomicLong();
+
+  public LatencyHistogram()
+  {
+  }
+
+  public void record(long nanos)
+  {
+    if (nanos < 0)
+      nanos = 0;
+    counts.incrementAndGet(index(nanos));
+    count.incrementAndGet();
+
+    long current = max.get();
+    while (nanos > current && !max.compareAndSet(current, nanos))
+      current = max.get();
+  }
+
+  public void reset()
+  {
+    for (int i = 0; i < NUM_BUCKETS; i++)
+      counts.set(i, 0);
+    count.set(0);
+    max.set(0);
+  }
+
+  public long getCount()
+  {
+    return count.get();
+  }
+
+  public long getMax()
+  {
+    return max.get();
+  }
+
+  /**
+   * @param quantile between 0 and 1, e.g. 0.99
+   * @return the upper edge of the bucket holding that quantile, in nanoseconds
+   */
+  public long getQuantile(double quantile)
+  {
+    long total = 0;
+    long[] snapshot = new long[NUM_BUCKETS];
+    for (int i = 0; i < NUM_BUCKETS; i++)
+    {
+      snapshot[i] = counts.get(i);
+      total += snapshot[i];
+    }
+    if (total == 0)
+      return 0;
+
+    long rank = (long) Math.ceil(quantile * total);
+    long seen = 0;
+    for (int i = 0; i < NUM_BUCKETS; i++)
+    {
+      seen += snapshot[i];
+      if (seen >= Math.max(rank, 1))
+        return Math.min(upperEdge(i), getMax());
+    }
+    return getMax();
+  }
+
+  public LatencySnapshot getSnapshot()
+  {
+    return new LatencySnapshot(getCount(), getQuantile(0.5), getQuantile(0.99), getQuantile(0.999), getMax());
+  }
+
+  private static int index(long value)
+  {
+    if (value < LINEAR)
+      return (int) value;
+    int exponent = 63 - Long.numberOfLeadingZeros(value);
+    int sub = (int) (value >>> (exponent - SUB_BITS)) & (SUB_BUCKETS - 1);
+    return LINEAR + (exponent - SUB_BITS - 1) * SUB_BUCKETS + sub;
+  }
+
+  private static long upperEdge(int index)
+  {
+    if (index < LINEAR)
+      return index;
+    int exponent = (index - LINEAR) / SUB_BUCKETS + SUB_BITS + 1;
+    int sub = (index - LINEAR) % SUB_BUCKETS;
+    long width = 1L << (exponent - SUB_BITS);
+    return ((SUB_BUCKETS + sub) * width) + width - 1;
+  }
+
+  public String toString()
+  {
+    return getSnapshot().toString();
+  }
+}
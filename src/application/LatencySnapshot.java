@@ -0,0 +1,50 @@
+package application;
+
+// percentiles of one LatencyHistogram at a point in time, in milliseconds
+public class LatencySnapshot
+{
+  private final long count;
+  private final double p50;
+  private final double p99;
+  private final double p999;
+  private final double max;
+
+  public LatencySnapshot(long count, long p50Nanos, long p99Nanos, long p999Nanos, long maxNanos)
+  {
+    this.count = count;
+    this.p50 = 1e-6 * p50Nanos;
+    this.p99 = 1e-6 * p99Nanos;
+    this.p999 = 1e-6 * p999Nanos;
+    this.max = 1e-6 * maxNanos;
+  }
+
+  public long getCount()
+  {
+    return count;
+  }
+
+  public double getP50()
+  {
+    return p50;
+  }
+
+  public double getP99()
+  {
+    return p99;
+  }
+
+  public double getP999()
+  {
+    return p999;
+  }
+
+  public double getMax()
+  {
+    return max;
+  }
+
+  public String toString()
+  {
+    return String.format("n=%d p50=%.3fms p99=%.3fms p999=%.3fms max=%.3fms", count, p50, p99, p999, max);
+  }
+}
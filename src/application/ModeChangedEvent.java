@@ -0,0 +1,23 @@
+package application;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+@Name("application.ModeChanged")
+@Label("Mode Changed")
+@Category({ "Video", "Ingest" })
+@Description("The camera started sending a different resolution")
+class ModeChangedEvent extends Event
+{
+  @Label("Camera")
+  String camera;
+
+  @Label("Old Mode")
+  int oldMode;
+
+  @Label("New Mode")
+  int newMode;
+}
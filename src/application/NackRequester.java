@@ -0,0 +1,369 @@
+package application;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Asks the camera to send lost packets again. The receive thread reports
+ * every data packet number; a jump in the numbers marks the packets in
+ * between as missing. Those still missing after a short wait for reordering
+ * are requested in a batch, again every retry interval, until they arrive or
+ * their latency budget runs out and the frame is given up on.
+ *
+ * Requests go over a TCP connection to the command port that is kept open,
+ * on a thread of their own, as NACK commands:
+ *
+ * <pre>
+ * byte  NACK (0x80), never a camera mode
+ * byte  number of entries, 1 to 255
+ * entry int packet number, little endian
+ *       short bit i set if packet number + 1 + i is missing too
+ * </pre>
+ *
+ * Only firmware that understands NACK commands should be sent them.
+ */
+public class NackRequester implements Runnable
+{
+  static final byte NACK = (byte) 0x80;
+  static final int ENTRY_SIZE = 6;
+  static final int MAX_ENTRIES = 255;
+  private static final int MAX_PENDING = 1024;
+  // a bigger jump is a new stream rather than loss
+  private static final int MAX_GAP = 256;
+  private static final long SCAN_NANOS = 1000000;
+  private static final int QUEUE_CAPACITY = 64;
+  private static final int CONNECT_TIMEOUT = 3000;
+  private static final long POLL_MILLISECONDS = 100;
+
+  private final InetSocketAddress commandAddress;
+  private final long delayNanos;
+  private final long retryNanos;
+  private final long budgetNanos;
+  private final BlockingQueue<byte[]> queue = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+  private volatile boolean running = true;
+
+  // receive thread only
+  private boolean started = false;
+  private int highestPacketNumber = 0;
+  private long lastScan = 0;
+  private int pendingCount = 0;
+  private final int[] pending = new int[MAX_PENDING];
+  private final long[] missingSince = new long[MAX_PENDING];
+  private final long[] requestedAt = new long[MAX_PENDING];
+  private final boolean[] requested = new boolean[MAX_PENDING];
+  private final int[] batch = new int[MAX_PENDING];
+  private final byte[] message = new byte[2 + MAX_ENTRIES * ENTRY_SIZE];
+
+  private volatile long requestedPackets = 0;
+  private volatile long repairedPackets = 0;
+  private volatile long abandonedPackets = 0;
+  private volatile long sentMessages = 0;
+  private volatile long failedMessages = 0;
+
+  /**
+   * @param commandAddress the camera's command port
+   * @param delayMilliseconds how long a packet may be late before it is
+   *          requested
+   * @param retryMilliseconds how long to wait before asking again
+   * @param budgetMilliseconds how long after it went missing a packet is
+   *          still worth having
+   */
+  public NackRequester(InetSocketAddress commandAddress, long delayMilliseconds, long retryMilliseconds,
+      long budgetMilliseconds)
+  {
+    this.commandAddress = commandAddress;
+    this.delayNanos = delayMilliseconds * 1000000L;
+    this.retryNanos = retryMilliseconds * 1000000L;
+    this.budgetNanos = budgetMilliseconds * 1000000L;
+  }
+
+  // distinct packets asked for at least once
+  public long getRequestedPackets()
+  {
+    return requestedPackets;
+  }
+
+  // packets that arrived after they were asked for
+  public long getRepairedPackets()
+  {
+    return repairedPackets;
+  }
+
+  // packets given up on, out of budget, too many missing at once or left
+  // behind by a new stream
+  public long getAbandonedPackets()
+  {
+    return abandonedPackets;
+  }
+
+  public long getSentMessages()
+  {
+    return sentMessages;
+  }
+
+  // messages refused by a full queue or lost with the connection
+  public long getFailedMessages()
+  {
+    return failedMessages;
+  }
+
+  /**
+   * Called on the receive thread for every data packet, not parity. Nothing
+   * is allocated unless a request is made.
+   *
+   * @param firstPacket the camera has started a new stream
+   * @param currentTime System.nanoTime() when the packet arrived
+   */
+  public void packetReceived(int packetNumber, boolean firstPacket, long currentTime)
+  {
+    if (!started || firstPacket)
+    {
+      started = true;
+      highestPacketNumber = packetNumber;
+      abandonPending();
+      return;
+    }
+
+    int delta = packetNumber - highestPacketNumber;
+    if (delta > 0)
+    {
+      highestPacketNumber = packetNumber;
+      if (delta > MAX_GAP)
+        abandonPending();
+      else
+        for (int number = packetNumber - delta + 1; number != packetNumber; number++)
+          addPending(number, currentTime);
+    } else
+    {
+      // late, reordered or sent again
+      removePending(packetNumber);
+    }
+
+    if (pendingCount > 0 && currentTime - lastScan >= SCAN_NANOS)
+      scan(currentTime);
+  }
+
+  private void addPending(int packetNumber, long currentTime)
+  {
+    if (pendingCount == MAX_PENDING)
+    {
+      abandonedPackets++;
+      return;
+    }
+    pending[pendingCount] = packetNumber;
+    missingSince[pendingCount] = currentTime;
+    requested[pendingCount] = false;
+    pendingCount++;
+  }
+
+  // the stream they belonged to is gone
+  private void abandonPending()
+  {
+    abandonedPackets += pendingCount;
+    pendingCount = 0;
+  }
+
+  private void removePending(int packetNumber)
+  {
+    for (int i = 0; i < pendingCount; i++)
+    {
+      if (pending[i] == packetNumber)
+      {
+        if (requested[i])
+          repairedPackets++;
+        remove(i);
+        return;
+      }
+    }
+  }
+
+  private void remove(int i)
+  {
+    pendingCount--;
+    pending[i] = pending[pendingCount];
+    missingSince[i] = missingSince[pendingCount];
+    requestedAt[i] = requestedAt[pendingCount];
+    requested[i] = requested[pendingCount];
+  }
+
+  // request everything due and forget what is past its budget
+  private void scan(long currentTime)
+  {
+    lastScan = currentTime;
+    int count = 0;
+    for (int i = pendingCount - 1; i >= 0; i--)
+    {
+      long age = currentTime - missingSince[i];
+      if (age > budgetNanos)
+      {
+        abandonedPackets++;
+        remove(i);
+      } else if (requested[i] ? currentTime - requestedAt[i] >= retryNanos : age >= delayNanos)
+      {
+        if (!requested[i])
+          requestedPackets++;
+        requested[i] = true;
+        requestedAt[i] = currentTime;
+        batch[count++] = pending[i];
+      }
+    }
+    if (count == 0)
+      return;
+
+    Arrays.sort(batch, 0, count);
+    int i = 0;
+    while (i < count)
+    {
+      // each entry covers the packet it names and the 16 after it
+      int entries = 0;
+      int offset = 2;
+      while (i < count && entries < MAX_ENTRIES)
+      {
+        int base = batch[i++];
+        int mask = 0;
+        while (i < count && batch[i] - base <= 16)
+          mask |= 1 << (batch[i++] - base - 1);
+        message[offset] = (byte) base;
+        message[offset + 1] = (byte) (base >> 8);
+        message[offset + 2] = (byte) (base >> 16);
+        message[offset + 3] = (byte) (base >> 24);
+        message[offset + 4] = (byte) mask;
+        message[offset + 5] = (byte) (mask >> 8);
+        offset += ENTRY_SIZE;
+        entries++;
+      }
+      message[0] = NACK;
+      message[1] = (byte) entries;
+      if (!queue.offer(Arrays.copyOf(message, offset)))
+        failedMessages++;
+    }
+  }
+
+  public void stop()
+  {
+    running = false;
+  }
+
+  @Override
+  public void run()
+  {
+    Socket socket = null;
+    while (running)
+    {
+      byte[] message;
+      try
+      {
+        message = queue.poll(POLL_MILLISECONDS, TimeUnit.MILLISECONDS);
+      } catch (InterruptedException e)
+      {
+        break;
+      }
+      if (message == null)
+        continue;
+
+      try
+      {
+        if (socket == null)
+        {
+          socket = new Socket();
+          socket.connect(commandAddress, CONNECT_TIMEOUT);
+          socket.setTcpNoDelay(true);
+        }
+        OutputStream output = socket.getOutputStream();
+        output.write(message);
+        sentMessages++;
+      } catch (IOException e)
+      {
+        // connect again with the next request
+        failedMessages++;
+        System.out.println("NackRequester " + e.toString());
+        socket = close(socket);
+      }
+    }
+    close(socket);
+  }
+
+  private static Socket close(Socket socket)
+  {
+    try
+    {
+      if (socket != null)
+        socket.close();
+    } catch (IOException e)
+    {
+      e.printStackTrace();
+    }
+    return null;
+  }
+
+  public String toString()
+  {
+    return String.format("NackRequester: %d requested, %d repaired, %d abandoned, %d messages (%d failed)",
+        requestedPackets, repairedPackets, abandonedPackets, sentMessages, failedMessages);
+  }
+
+  public static void main(String[] args) throws Exception
+  {
+    // lose 10 to 12, 30 and 40 to 60, with 11 turning up late, then check the
+    // requests decode back to exactly the packets still missing
+    NackRequester requester = new NackRequester(new InetSocketAddress("127.0.0.1", 1234), 2, 20, 100);
+    java.util.Set<Integer> lost = new java.util.TreeSet<>(java.util.List.of(10, 11, 12, 30));
+    for (int number = 40; number <= 60; number++)
+      lost.add(number);
+    long time = 0;
+    for (int number = 1; number <= 100; number++)
+    {
+      time += 100000;
+      if (!lost.contains(number))
+        requester.packetReceived(number, number == 1, time);
+      if (number == 20)
+        requester.packetReceived(11, false, time);
+    }
+    lost.remove(11);
+
+    java.util.Set<Integer> asked = new java.util.TreeSet<>();
+    int entries = 0;
+    byte[] message;
+    while ((message = requester.queue.poll()) != null)
+    {
+      ByteBuffer buffer = ByteBuffer.wrap(message).order(ByteOrder.LITTLE_ENDIAN);
+      byte command = buffer.get();
+      int count = buffer.get() & 0xff;
+      if (command != NACK || buffer.remaining() != count * ENTRY_SIZE)
+        throw new Exception("malformed request");
+      while (buffer.hasRemaining())
+      {
+        int base = buffer.getInt();
+        int mask = buffer.getShort() & 0xffff;
+        entries++;
+        asked.add(base);
+        for (int bit = 0; bit < 16; bit++)
+          if ((mask & (1 << bit)) != 0)
+            asked.add(base + 1 + bit);
+      }
+    }
+    System.out.println(requester + ", asked for " + asked + " in " + entries + " entries");
+    if (!asked.equals(lost))
+      throw new Exception("asked for " + asked + ", lost " + lost);
+
+    // a new stream gives up on what is still missing, and so does a jump too
+    // big to be loss
+    requester.packetReceived(1, true, time += 100000);
+    requester.packetReceived(3, false, time += 100000);
+    requester.packetReceived(3 + MAX_GAP + 1, false, time += 100000);
+    System.out.println(requester);
+    if (requester.getAbandonedPackets() != lost.size() + 1
+        || requester.getRequestedPackets() != requester.getRepairedPackets() + lost.size())
+      throw new Exception("pending packets not abandoned");
+
+  }// public static void main(String[] args) throws Exception
+
+}
@@ -1,24 +1,28 @@
 package application;
 
-public enum OV2640
+public enum OV2640 implements CameraMode
 {  
-  OV2640_160x120(0, "160x120"),
-  OV2640_176x144(1, "176x144"),
-  OV2640_320x240(2, "320x240"),
-  OV2640_352x288(3, "352x288"),
-  OV2640_640x480(4, "640x480"),
-  OV2640_800x600(5, "800x600"),
-  OV2640_1024x768(6, "1024x768"),
-  OV2640_1280x1024(7, "1280x1024"),
-  OV2640_1600x1200(8, "1600x1200");
+  OV2640_160x120(0, "160x120", 160, 120),
+  OV2640_176x144(1, "176x144", 176, 144),
+  OV2640_320x240(2, "320x240", 320, 240),
+  OV2640_352x288(3, "352x288", 352, 288),
+  OV2640_640x480(4, "640x480", 640, 480),
+  OV2640_800x600(5, "800x600", 800, 600),
+  OV2640_1024x768(6, "1024x768", 1024, 768),
+  OV2640_1280x1024(7, "1280x1024", 1280, 1024),
+  OV2640_1600x1200(8, "1600x1200", 1600, 1200);
   
   private final int mode;
   private final String name;
+  private final int width;
+  private final int height;
   
-  OV2640(int mode, String name)
+  OV2640(int mode, String name, int width, int height)
   {
     this.mode = mode;
     this.name = name;
+    this.width = width;
+    this.height = height;
   }
   
   public int getMode()
@@ -31,6 +35,16 @@ public enum OV2640
     return name;
   }
   
+  public int getWidth()
+  {
+    return width;
+  }
+  
+  public int getHeight()
+  {
+    return height;
+  }
+  
   public String toString()
   {
     return name;
@@ -1,22 +1,26 @@
 package application;
 
-public enum OV5642
+public enum OV5642 implements CameraMode
 {  
-  OV5642_320x240(0, "320x240"),
-  OV5642_640x480(1, "640x480"),
-  OV5642_1024x768(2, "1024x768"),
-  OV5642_1280x960(3, "1280x960"),
-  OV5642_1600x1200(4, "1600x1200"),
-  OV5642_2048x1536(5, "2048x1536"),
-  OV5642_2592x1944(6, "2592x1944");
+  OV5642_320x240(0, "320x240", 320, 240),
+  OV5642_640x480(1, "640x480", 640, 480),
+  OV5642_1024x768(2, "1024x768", 1024, 768),
+  OV5642_1280x960(3, "1280x960", 1280, 960),
+  OV5642_1600x1200(4, "1600x1200", 1600, 1200),
+  OV5642_2048x1536(5, "2048x1536", 2048, 1536),
+  OV5642_2592x1944(6, "2592x1944", 2592, 1944);
   
   private final int mode;
   private final String name;
+  private final int width;
+  private final int height;
   
-  OV5642(int mode, String name)
+  OV5642(int mode, String name, int width, int height)
   {
     this.mode = mode;
     this.name = name;
+    this.width = width;
+    this.height = height;
   }
   
   public int getMode()
@@ -29,6 +33,16 @@ public enum OV5642
     return name;
   }
   
+  public int getWidth()
+  {
+    return width;
+  }
+  
+  public int getHeight()
+  {
+    return height;
+  }
+  
   public String toString()
   {
     return name;
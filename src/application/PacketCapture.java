@@ -0,0 +1,227 @@
+package application;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Captures received datagrams, headers included, with their arrival time to
+ * a compact binary log that PacketReplay can feed back into a listener. The
+ * receive thread only copies each packet into a block of direct memory; full
+ * blocks are written to the file by a thread of its own, and a packet that
+ * arrives while every block is waiting to be written is counted and left
+ * out rather than holding up the socket.
+ *
+ * log file, little endian
+ *
+ * <pre>
+ * header: int magic, int version, int max packet size, int reserved,
+ *         long start time (epoch nanoseconds), long reserved
+ * record: long arrival (nanoseconds since the start), short length,
+ *         length bytes of datagram
+ * </pre>
+ */
+public class PacketCapture implements AutoCloseable
+{
+  static final int MAGIC = 0x50435641; // "AVCP"
+  static final int VERSION = 1;
+  static final int HEADER_SIZE = 32;
+  static final int HEADER_MAGIC = 0;
+  static final int HEADER_VERSION = 4;
+  static final int HEADER_MAX_PACKET_SIZE = 8;
+  static final int HEADER_START_TIME = 16;
+  static final int RECORD_HEADER_SIZE = 10;
+
+  private static final int BLOCK_SIZE = 1 << 20;
+  private static final int BLOCKS = 8;
+  // a block is written out at least this often, even if it isn't full
+  private static final long FLUSH_NANOS = 1000000000L;
+  private static final long POLL_MILLISECONDS = 100;
+
+  private final Path file;
+  private final FileChannel channel;
+  private final BlockingQueue<ByteBuffer> free = new ArrayBlockingQueue<>(BLOCKS);
+  private final BlockingQueue<ByteBuffer> full = new ArrayBlockingQueue<>(BLOCKS);
+  private final long startTime;
+  private final Thread writer;
+
+  // guarded by this
+  private ByteBuffer block = null;
+  private long blockStart = 0;
+  private boolean closed = false;
+
+  private volatile long capturedPackets = 0;
+  private volatile long capturedBytes = 0;
+  private volatile long droppedPackets = 0;
+  private volatile long writtenBytes = 0;
+  private volatile boolean writing = true;
+
+  /**
+   * Start capturing to a new file, creating its directory if need be.
+   */
+  public PacketCapture(Path file) throws IOException
+  {
+    this.file = file;
+    Path directory = file.toAbsolutePath().getParent();
+    if (directory != null)
+      Files.createDirectories(directory);
+    channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+        StandardOpenOption.TRUNCATE_EXISTING);
+
+    startTime = System.nanoTime();
+    ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+    header.putInt(HEADER_MAGIC, MAGIC);
+    header.putInt(HEADER_VERSION, VERSION);
+    header.putInt(HEADER_MAX_PACKET_SIZE, CameraStream.MAX_PACKET_SIZE);
+    header.putLong(HEADER_START_TIME, System.currentTimeMillis() * 1000000L);
+    while (header.hasRemaining())
+      channel.write(header);
+
+    for (int i = 0; i < BLOCKS; i++)
+      free.add(ByteBuffer.allocateDirect(BLOCK_SIZE).order(ByteOrder.LITTLE_ENDIAN));
+
+    writer = new Thread(this::write, "PacketCapture");
+    writer.start();
+  }
+
+  public Path getFile()
+  {
+    return file;
+  }
+
+  public long getCapturedPackets()
+  {
+    return capturedPackets;
+  }
+
+  public long getCapturedBytes()
+  {
+    return capturedBytes;
+  }
+
+  // left out because the writer had fallen behind
+  public long getDroppedPackets()
+  {
+    return droppedPackets;
+  }
+
+  public long getWrittenBytes()
+  {
+    return writtenBytes;
+  }
+
+  /**
+   * Copy one datagram into the log. Called from the receive thread; the
+   * packet's position and limit are left alone and nothing is allocated.
+   *
+   * @param receivedTime System.nanoTime() when the packet arrived
+   */
+  public synchronized void capture(ByteBuffer packet, long receivedTime)
+  {
+    if (closed)
+      return;
+
+    int length = packet.remaining();
+    if (block != null && block.remaining() < RECORD_HEADER_SIZE + length)
+      handOver();
+    if (block == null)
+    {
+      block = free.poll();
+      if (block == null)
+      {
+        droppedPackets++;
+        return;
+      }
+      blockStart = receivedTime;
+    }
+
+    int position = block.position();
+    block.putLong(position, receivedTime - startTime);
+    block.putShort(position + 8, (short) length);
+    block.put(position + RECORD_HEADER_SIZE, packet, packet.position(), length);
+    block.position(position + RECORD_HEADER_SIZE + length);
+    capturedPackets++;
+    capturedBytes += length;
+
+    if (receivedTime - blockStart >= FLUSH_NANOS)
+      handOver();
+  }
+
+  // called with the lock. there are only BLOCKS blocks, so full always has room
+  private void handOver()
+  {
+    block.flip();
+    full.add(block);
+    block = null;
+  }
+
+  private void write()
+  {
+    try
+    {
+      while (writing || !full.isEmpty())
+      {
+        ByteBuffer next = full.poll(POLL_MILLISECONDS, TimeUnit.MILLISECONDS);
+        if (next == null)
+          continue;
+        int length = next.remaining();
+        while (next.hasRemaining())
+          channel.write(next);
+        writtenBytes += length;
+        next.clear();
+        free.add(next);
+      }
+    } catch (IOException | InterruptedException e)
+    {
+      System.out.println("PacketCapture " + e.toString());
+    } finally
+    {
+      try
+      {
+        channel.close();
+      } catch (IOException e)
+      {
+        System.out.println("PacketCapture " + e.toString());
+      }
+    }
+  }
+
+  /**
+   * Stop capturing and wait for everything captured to be written.
+   */
+  @Override
+  public void close()
+  {
+    synchronized (this)
+    {
+      if (closed)
+        return;
+      closed = true;
+      if (block != null && block.position() > 0)
+        handOver();
+    }
+    writing = false;
+    try
+    {
+      writer.join();
+    } catch (InterruptedException e)
+    {
+      Thread.currentThread().interrupt();
+    }
+    System.out.println(this);
+  }
+
+  public String toString()
+  {
+    return String.format("PacketCapture %s: %d packets, %d KB written, %d dropped", file, capturedPackets,
+        writtenBytes >> 10, droppedPackets);
+  }
+
+}
@@ -0,0 +1,206 @@
+package application;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Feeds a log written by PacketCapture into a StreamReceiver's packet
+ * handling, without a socket, either with the original spacing or as fast as
+ * possible. Each packet is handed over with its recorded arrival time rather
+ * than the time it is replayed, so timeouts and everything else that depends
+ * on arrival times behave the same whatever the speed, and the same log
+ * always gives the same frame and drop counts.
+ */
+public class PacketReplay
+{
+  private final Path file;
+  private final MappedByteBuffer log;
+  private final int maxPacketSize;
+  private final long startTime;
+  private double speed = 1;
+  private volatile boolean running = true;
+
+  public PacketReplay(Path file) throws IOException
+  {
+    this.file = file;
+    try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ))
+    {
+      log = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+    }
+    log.order(ByteOrder.LITTLE_ENDIAN);
+    if (log.capacity() < PacketCapture.HEADER_SIZE || log.getInt(PacketCapture.HEADER_MAGIC) != PacketCapture.MAGIC)
+      throw new IOException(file + " is not a packet capture");
+    maxPacketSize = log.getInt(PacketCapture.HEADER_MAX_PACKET_SIZE);
+    startTime = log.getLong(PacketCapture.HEADER_START_TIME);
+  }
+
+  public Path getFile()
+  {
+    return file;
+  }
+
+  // wall clock time the capture started, in nanoseconds since the epoch
+  public long getStartTime()
+  {
+    return startTime;
+  }
+
+  // 1 for the original timing, 2 for twice as fast, 0 for as fast as possible
+  public void setSpeed(double speed)
+  {
+    this.speed = Math.max(0, speed);
+  }
+
+  public void stop()
+  {
+    running = false;
+  }
+
+  /**
+   * Replay the whole log into a receiver on the calling thread, which then
+   * stands in for the receiver's own receive thread. A record cut short at the
+   * end, as a crash would leave it, ends the replay.
+   *
+   * @return number of packets replayed
+   */
+  public long replay(StreamReceiver receiver)
+  {
+    ByteBuffer packet = ByteBuffer.allocateDirect(maxPacketSize).order(ByteOrder.LITTLE_ENDIAN);
+    long base = System.nanoTime();
+    long packets = 0;
+    int position = PacketCapture.HEADER_SIZE;
+    while (running && position + PacketCapture.RECORD_HEADER_SIZE <= log.capacity())
+    {
+      long arrival = log.getLong(position);
+      int length = log.getShort(position + 8) & 0xffff;
+      int payload = position + PacketCapture.RECORD_HEADER_SIZE;
+      if (length > packet.capacity() || payload + length > log.capacity())
+        break;
+
+      if (speed > 0)
+      {
+        long due = base + (long) (arrival / speed);
+        long wait;
+        while ((wait = due - System.nanoTime()) > 0)
+          LockSupport.parkNanos(wait);
+      }
+
+      packet.clear();
+      packet.put(0, log, payload, length);
+      packet.limit(length);
+      receiver.handlePacket(packet, base + arrival);
+      packets++;
+      position = payload + length;
+    }
+    return packets;
+  }
+
+  // the counts a replay should always reproduce
+  public static String counts(StreamReceiver receiver)
+  {
+    return String.format("frames=%d droppedPackets=%d droppedFrames=%d shortPackets=%d gapDrops=%d",
+        receiver.getCompletedFrames(), receiver.getDroppedPackets(), receiver.getDroppedFrames(),
+        receiver.getShortPackets(), receiver.getGapDrops());
+  }
+
+  public static void main(String[] args) throws Exception
+  {
+    // usage: PacketReplay [capture file] [--speed 0]
+    // with a file, replays it and prints the counts; without, captures a
+    // synthetic stream with loss, reordering and a short packet, then checks
+    // that replays at any speed reproduce the same counts
+    if (args.length > 0)
+    {
+      PacketReplay replay = new PacketReplay(Paths.get(args[0]));
+      if (args.length > 2 && args[1].equals("--speed"))
+        replay.setSpeed(Double.parseDouble(args[2]));
+      StreamReceiver receiver = new StreamReceiver();
+      long start = System.nanoTime();
+      long packets = replay.replay(receiver);
+      System.out.printf("%d packets in %.3f s%n", packets, 1e-9 * (System.nanoTime() - start));
+      System.out.println(counts(receiver));
+      return;
+    }
+
+    final int FRAMES = 300;
+    final int PACKETS_PER_FRAME = 12;
+    Path file = java.nio.file.Files.createTempFile("packets", ".bin");
+    PacketCapture capture = new PacketCapture(file);
+    java.util.Random random = new java.util.Random(1);
+    ByteBuffer packet = ByteBuffer.allocateDirect(1024).order(ByteOrder.LITTLE_ENDIAN);
+    long time = System.nanoTime();
+    int packetNumber = 0;
+    int[] numbers = new int[PACKETS_PER_FRAME];
+    byte[] statuses = new byte[PACKETS_PER_FRAME];
+    for (int frame = 1; frame <= FRAMES; frame++)
+    {
+      for (int i = 0; i < PACKETS_PER_FRAME; i++)
+      {
+        numbers[i] = ++packetNumber;
+        statuses[i] = (byte) (5 | (i == 0 ? CameraStream.START_OF_IMAGE : 0)
+            | (i == PACKETS_PER_FRAME - 1 ? CameraStream.END_OF_IMAGE : 0));
+      }
+      // 2% swapped with the next packet, 1% lost
+      for (int i = 0; i + 1 < PACKETS_PER_FRAME; i++)
+        if (random.nextInt(50) == 0)
+        {
+          int number = numbers[i];
+          byte status = statuses[i];
+          numbers[i] = numbers[i + 1];
+          statuses[i] = statuses[i + 1];
+          numbers[i + 1] = number;
+          statuses[i + 1] = status;
+        }
+      for (int i = 0; i < PACKETS_PER_FRAME; i++)
+      {
+        time += 100000;
+        if (random.nextInt(100) != 0)
+          writePacket(capture, packet, numbers[i], frame, statuses[i], time);
+      }
+      if (frame == FRAMES / 2)
+      {
+        packet.clear().limit(4);
+        capture.capture(packet, time);
+      }
+    }
+    capture.close();
+
+    String[] results = new String[3];
+    double[] speeds = { 0, 0, 1 };
+    for (int i = 0; i < results.length; i++)
+    {
+      PacketReplay replay = new PacketReplay(file);
+      replay.setSpeed(speeds[i]);
+      StreamReceiver receiver = new StreamReceiver();
+      long start = System.nanoTime();
+      long packets = replay.replay(receiver);
+      results[i] = counts(receiver);
+      System.out.printf("speed %.0f: %d packets in %.3f s, %s%n", speeds[i], packets,
+          1e-9 * (System.nanoTime() - start), results[i]);
+    }
+    if (!results[0].equals(results[1]) || !results[0].equals(results[2]))
+      throw new Exception("replays differ");
+
+  }// public static void main(String[] args) throws Exception
+
+  private static void writePacket(PacketCapture capture, ByteBuffer packet, int packetNumber, int imageNumber,
+      byte status, long time)
+  {
+    packet.clear();
+    packet.putInt(0, packetNumber);
+    packet.putInt(4, imageNumber);
+    packet.put(8, status);
+    for (int i = CameraStream.HEADER_SIZE; i < 200; i++)
+      packet.put(i, (byte) (packetNumber + i));
+    packet.limit(200);
+    capture.capture(packet, time);
+  }
+
+}
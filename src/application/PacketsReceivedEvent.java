@@ -0,0 +1,31 @@
+package application;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Timespan;
+
+// one event per batch of packets so the receive loop stays cheap
+@Name("application.PacketsReceived")
+@Label("Packets Received")
+@Category({ "Video", "Ingest" })
+@Description("A batch of UDP packets received from one camera")
+class PacketsReceivedEvent extends Event
+{
+  @Label("Camera")
+  String camera;
+
+  @Label("Packets")
+  int packets;
+
+  @Label("Bytes")
+  @DataAmount
+  long bytes;
+
+  @Label("Batch Duration")
+  @Timespan(Timespan.NANOSECONDS)
+  long batchNanos;
+}
@@ -0,0 +1,183 @@
+package application;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.function.BooleanSupplier;
+
+/**
+ * Counters shared by the receive and decode stages, and any thread may read
+ * them. The packet and decode counters each have a single writer, the stage
+ * that owns them; reset doesn't write them but moves the base they are read
+ * against, so it can run on any thread without losing an update. Drops are
+ * written from both stages and are updated atomically. The decoder hands
+ * frames over through a single slot, so there is no queue depth; whether a
+ * frame is waiting is read from the slot itself, and frames replaced while
+ * waiting are the stale drops.
+ */
+public class PipelineStats
+{
+  private final AtomicLong receivedPackets = new AtomicLong();
+  private final AtomicLong receiveNanos = new AtomicLong();
+  private final AtomicLong decodedFrames = new AtomicLong();
+  private final AtomicLong decodeNanos = new AtomicLong();
+  private final AtomicLongArray drops = new AtomicLongArray(DropReason.values().length);
+
+  // counter values at the last reset, written by reset only
+  private volatile long receivedPacketsBase = 0;
+  private volatile long receiveNanosBase = 0;
+  private volatile long decodedFramesBase = 0;
+  private volatile long decodeNanosBase = 0;
+
+  // whether the decoder's slot holds a frame, set by the decoder
+  private volatile BooleanSupplier decodePending = () -> false;
+
+  // first to last packet of a frame
+  private final LatencyHistogram reassemblyLatency = new LatencyHistogram();
+  // last packet to decoded, including the wait in the decoder's slot
+  private final LatencyHistogram decodeLatency = new LatencyHistogram();
+  // decoded to painted, including the wait for the next pulse
+  private final LatencyHistogram renderLatency = new LatencyHistogram();
+  // first packet to painted
+  private final LatencyHistogram endToEndLatency = new LatencyHistogram();
+
+  public PipelineStats()
+  {
+  }
+
+  public void reset()
+  {
+    receivedPacketsBase = receivedPackets.get();
+    receiveNanosBase = receiveNanos.get();
+    decodedFramesBase = decodedFrames.get();
+    decodeNanosBase = decodeNanos.get();
+    for (int i = 0; i < drops.length(); i++)
+      drops.set(i, 0);
+    resetLatency();
+  }
+
+  public void resetLatency()
+  {
+    reassemblyLatency.reset();
+    decodeLatency.reset();
+    renderLatency.reset();
+    endToEndLatency.reset();
+  }
+
+  // the times below are all System.nanoTime()
+  public void recordReassembled(Frame frame)
+  {
+    reassemblyLatency.record(frame.getLastPacketTime() - frame.getFirstPacketTime());
+  }
+
+  public void recordDecoded(Frame frame, long decodedTime)
+  {
+    decodeLatency.record(decodedTime - frame.getLastPacketTime());
+  }
+
+  public void recordPainted(Frame frame, long decodedTime, long paintedTime)
+  {
+    renderLatency.record(paintedTime - decodedTime);
+    endToEndLatency.record(paintedTime - frame.getFirstPacketTime());
+  }
+
+  public LatencyHistogram getReassemblyLatency()
+  {
+    return reassemblyLatency;
+  }
+
+  public LatencyHistogram getDecodeLatency()
+  {
+    return decodeLatency;
+  }
+
+  public LatencyHistogram getRenderLatency()
+  {
+    return renderLatency;
+  }
+
+  public LatencyHistogram getEndToEndLatency()
+  {
+    return endToEndLatency;
+  }
+
+  public void addReceiveTime(long nanos)
+  {
+    receivedPackets.lazySet(receivedPackets.get() + 1);
+    receiveNanos.lazySet(receiveNanos.get() + nanos);
+  }
+
+  public void addDecodeTime(long nanos)
+  {
+    decodedFrames.lazySet(decodedFrames.get() + 1);
+    decodeNanos.lazySet(decodeNanos.get() + nanos);
+  }
+
+  void setDecodePending(BooleanSupplier decodePending)
+  {
+    this.decodePending = decodePending;
+  }
+
+  public void drop(DropReason reason)
+  {
+    drop(reason, -1);
+  }
+
+  // imageNumber is -1 when the drop doesn't belong to a known frame
+  public void drop(DropReason reason, int imageNumber)
+  {
+    drops.incrementAndGet(reason.ordinal());
+    IngestEvents.frameDropped(reason, imageNumber);
+  }
+
+  public long getReceivedPackets()
+  {
+    return receivedPackets.get() - receivedPacketsBase;
+  }
+
+  // average time spent handling one packet on the receive thread
+  public double getReceiveMicroseconds()
+  {
+    long count = getReceivedPackets();
+    return count == 0 ? 0 : 0.001 * (receiveNanos.get() - receiveNanosBase) / count;
+  }
+
+  public long getDecodedFrames()
+  {
+    return decodedFrames.get() - decodedFramesBase;
+  }
+
+  // total time spent decoding on the decode thread
+  public long getDecodeNanos()
+  {
+    return decodeNanos.get() - decodeNanosBase;
+  }
+
+  // average time spent decoding one frame on the decode thread
+  public double getDecodeMicroseconds()
+  {
+    long count = getDecodedFrames();
+    return count == 0 ? 0 : 0.001 * getDecodeNanos() / count;
+  }
+
+  // a frame is waiting for the decode thread
+  public boolean isDecodePending()
+  {
+    return decodePending.getAsBoolean();
+  }
+
+  public long getDrops(DropReason reason)
+  {
+    return drops.get(reason.ordinal());
+  }
+
+  public String toString()
+  {
+    StringBuilder sb = new StringBuilder();
+    sb.append(String.format("receive %d packets %.1fus, decode %d frames %.1fus, %s", getReceivedPackets(),
+        getReceiveMicroseconds(), getDecodedFrames(), getDecodeMicroseconds(),
+        isDecodePending() ? "frame waiting" : "decoder idle"));
+    for (DropReason reason : DropReason.values())
+      sb.append(String.format(", %s %d", reason, getDrops(reason)));
+    return sb.toString();
+  }
+}
@@ -0,0 +1,172 @@
+package application;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.util.function.Consumer;
+
+import javafx.scene.image.Image;
+import javafx.scene.image.PixelBuffer;
+import javafx.scene.image.PixelFormat;
+import javafx.scene.image.WritableImage;
+
+/**
+ * Double buffered hand-off of decoded pixels to the display. The decode thread
+ * writes into whichever of two direct staging buffers is not being shown, and
+ * the JavaFX application thread copies the newest one into a WritableImage
+ * backed by a PixelBuffer on the next pulse. The copy is made inside
+ * PixelBuffer.updateBuffer, as JavaFX requires, so the render thread never
+ * sees a half-written image; no image is allocated per frame unless the
+ * resolution changes. If several frames are written between pulses only the
+ * newest one is shown.
+ */
+public class PixelBufferRenderer
+{
+  private static class Buffers
+  {
+    final int width;
+    final int height;
+    final PixelBuffer<IntBuffer> pixelBuffer;
+    final WritableImage image;
+    final IntBuffer[] staging = new IntBuffer[2];
+
+    // where each staging buffer's pixels came from, for latency
+    final Frame[] frames = new Frame[2];
+    final long[] decodedTimes = new long[2];
+    final PipelineStats[] stats = new PipelineStats[2];
+
+    Buffers(int width, int height)
+    {
+      this.width = width;
+      this.height = height;
+      pixelBuffer = new PixelBuffer<>(width, height, allocate(width, height), PixelFormat.getIntArgbPreInstance());
+      image = new WritableImage(pixelBuffer);
+      for (int i = 0; i < 2; i++)
+        staging[i] = allocate(width, height);
+    }
+
+    private static IntBuffer allocate(int width, int height)
+    {
+      return ByteBuffer.allocateDirect(4 * width * height).order(ByteOrder.nativeOrder()).asIntBuffer();
+    }
+  }
+
+  private final Object lock = new Object();
+
+  // guarded by lock. displayed is the staging buffer copied last, which the
+  // decode thread leaves alone
+  private Buffers buffers = null;
+  private int displayed = 0;
+  private int ready = -1;
+
+  // the frame swapped in last, owned by the JavaFX application thread
+  private Frame shownFrame = null;
+  private long shownDecodedTime = 0;
+  private PipelineStats shownStats = null;
+
+  public PixelBufferRenderer()
+  {
+  }
+
+  /**
+   * Copy a decoded image into the back buffer. Called from the decode thread.
+   *
+   * @param frame the frame the image was decoded from
+   * @param decodedTime System.nanoTime() when decoding finished
+   * @param stats where the latency to painting is recorded, may be null
+   */
+  public void write(Image image, Frame frame, long decodedTime, PipelineStats stats)
+  {
+    int width = (int) image.getWidth();
+    int height = (int) image.getHeight();
+    write(width, height, writer -> image.getPixelReader().getPixels(0, 0, width, height,
+        PixelFormat.getIntArgbPreInstance(), writer, width), frame, decodedTime, stats);
+  }
+
+  /**
+   * Copy premultiplied ARGB pixels into the back buffer, e.g. an overlay
+   * computed on the decode thread.
+   */
+  public void write(int[] pixels, int width, int height)
+  {
+    write(width, height, writer -> writer.put(pixels, 0, width * height), null, 0, null);
+  }
+
+  private void write(int width, int height, Consumer<IntBuffer> pixels, Frame frame, long decodedTime,
+      PipelineStats stats)
+  {
+    Buffers target;
+    int index;
+    synchronized (lock)
+    {
+      if (buffers == null || buffers.width != width || buffers.height != height)
+        buffers = new Buffers(width, height);
+      target = buffers;
+      // the buffer last copied to the screen is never written, and a frame
+      // that was ready but not yet shown is simply overwritten by this newer one
+      index = 1 - displayed;
+      ready = -1;
+    }
+
+    IntBuffer writer = target.staging[index];
+    writer.clear();
+    pixels.accept(writer);
+    target.frames[index] = frame;
+    target.decodedTimes[index] = decodedTime;
+    target.stats[index] = stats;
+
+    synchronized (lock)
+    {
+      if (target == buffers)
+        ready = index;
+    }
+  }
+
+  /**
+   * Swap in the newest frame. Called on the JavaFX application thread once per
+   * pulse; returns null if nothing new was written since the last call.
+   */
+  public WritableImage swap()
+  {
+    Buffers shown;
+    int index;
+    synchronized (lock)
+    {
+      if (ready < 0)
+        return null;
+      shown = buffers;
+      index = ready;
+      displayed = ready;
+      ready = -1;
+    }
+
+    shownFrame = shown.frames[index];
+    shownDecodedTime = shown.decodedTimes[index];
+    shownStats = shown.stats[index];
+
+    // the decode thread only writes the other staging buffer until the next
+    // swap, so this one can be read while it carries on
+    IntBuffer source = shown.staging[index].duplicate();
+    shown.pixelBuffer.updateBuffer(pixels ->
+    {
+      IntBuffer target = pixels.getBuffer();
+      source.clear();
+      target.clear();
+      target.put(source);
+      // the whole image changed
+      return null;
+    });
+    return shown.image;
+  }
+
+  /**
+   * Called on the JavaFX application thread once the image returned by swap
+   * has been drawn.
+   */
+  public void painted()
+  {
+    if (shownFrame != null && shownStats != null)
+      shownStats.recordPainted(shownFrame, shownDecodedTime, System.nanoTime());
+    shownFrame = null;
+  }
+}
@@ -0,0 +1,345 @@
+package application;
+
+import java.util.function.BooleanSupplier;
+import java.util.function.Consumer;
+
+/**
+ * Plays a Recording into a frame sink, usually a FrameDecoder, so recorded
+ * frames take the same decode and display path as live ones. Frames go out
+ * with their original spacing scaled by the speed, as fast as the sink takes
+ * them at speed 0, or one at a time with step while paused. The time between
+ * one session and the next isn't waited out. A sink that
+ * keeps only the newest frame, as a FrameDecoder does, says when it is ready
+ * for another so speed 0 doesn't run ahead and have it throw frames away.
+ *
+ * Frames are handed to the sink on the thread that runs this source, which is
+ * then the sink's only producer. The controls may be called from any thread.
+ */
+public class PlaybackSource implements Runnable
+{
+  // how often speed 0 looks to see whether the sink is ready again
+  private static final long READY_POLL_NANOS = 1000000;
+
+  private final Recording recording;
+  private final Consumer<Frame> sink;
+  private final BooleanSupplier ready;
+  private final Object lock = new Object();
+
+  // guarded by lock
+  private int position = 0;
+  private double speed = 1;
+  private boolean paused = false;
+  private boolean running = false;
+  // show the frame at position even while paused, after a step or seek
+  private boolean showPosition = false;
+
+  // frame times are measured from the frame at anchorFrame, played at
+  // anchorTime
+  private int anchorFrame = 0;
+  private long anchorTime = 0;
+
+  private volatile int lastPlayed = -1;
+
+  // for a sink that takes every frame it is given, e.g. a queue
+  public PlaybackSource(Recording recording, Consumer<Frame> sink)
+  {
+    this(recording, sink, () -> true);
+  }
+
+  /**
+   * @param ready true when the sink can take another frame without losing
+   *          one, e.g. FrameDecoder.isReady. Only speed 0 waits for it
+   */
+  public PlaybackSource(Recording recording, Consumer<Frame> sink, BooleanSupplier ready)
+  {
+    this.recording = recording;
+    this.sink = sink;
+    this.ready = ready;
+  }
+
+  public Recording getRecording()
+  {
+    return recording;
+  }
+
+  // the frame handed to the sink last, -1 before the first
+  public int getLastPlayed()
+  {
+    return lastPlayed;
+  }
+
+  // 1 for the original timing, 2 for twice as fast, 0 for as fast as possible
+  public void setSpeed(double speed)
+  {
+    synchronized (lock)
+    {
+      this.speed = Math.max(0, speed);
+      anchor(position);
+      lock.notifyAll();
+    }
+  }
+
+  public void pause()
+  {
+    synchronized (lock)
+    {
+      paused = true;
+      lock.notifyAll();
+    }
+  }
+
+  public void resume()
+  {
+    synchronized (lock)
+    {
+      paused = false;
+      anchor(position);
+      lock.notifyAll();
+    }
+  }
+
+  public boolean isPaused()
+  {
+    synchronized (lock)
+    {
+      return paused;
+    }
+  }
+
+  /**
+   * Pause and show the frame count frames on from the one shown last;
+   * negative counts go backwards.
+   */
+  public void step(int count)
+  {
+    synchronized (lock)
+    {
+      paused = true;
+      int shown = Math.max(0, position - 1);
+      position = clamp(shown + count);
+      showPosition = true;
+      lock.notifyAll();
+    }
+  }
+
+  // carry on from a frame, showing it straight away even while paused
+  public void seek(int frame)
+  {
+    synchronized (lock)
+    {
+      position = clamp(frame);
+      showPosition = true;
+      anchor(position);
+      lock.notifyAll();
+    }
+  }
+
+  // nanoseconds since the epoch, see Recording.seekTime
+  public void seekTime(long time)
+  {
+    seek(recording.seekTime(time));
+  }
+
+  // in the stream of the frame shown last, see Recording.seekImageNumber
+  public void seekImageNumber(int imageNumber)
+  {
+    seek(recording.seekImageNumber(imageNumber, Math.max(0, lastPlayed)));
+  }
+
+  public void stop()
+  {
+    synchronized (lock)
+    {
+      running = false;
+      lock.notifyAll();
+    }
+  }
+
+  @Override
+  public void run()
+  {
+    synchronized (lock)
+    {
+      running = true;
+      anchor(position);
+    }
+
+    while (true)
+    {
+      int frame;
+      synchronized (lock)
+      {
+        frame = nextFrame();
+        if (frame < 0)
+          break;
+        position = frame + 1;
+      }
+      lastPlayed = frame;
+      sink.accept(recording.getFrame(frame, System.nanoTime()));
+    }
+  }
+
+  // wait for the next frame that is due, -1 once stopped. called with the lock
+  private int nextFrame()
+  {
+    while (running)
+    {
+      if (showPosition && position < recording.size())
+      {
+        showPosition = false;
+        return position;
+      }
+
+      if (paused || position >= recording.size())
+      {
+        waitFor(0);
+        continue;
+      }
+
+      if (speed == 0)
+      {
+        if (ready.getAsBoolean())
+          return position;
+        waitFor(READY_POLL_NANOS);
+        continue;
+      }
+
+      // a new session plays straight on from the end of the last one
+      if (position != anchorFrame && recording.getSession(position) != recording.getSession(anchorFrame))
+      {
+        anchor(position);
+        return position;
+      }
+
+      long due = anchorTime
+          + (long) ((recording.getTimestamp(position) - recording.getTimestamp(anchorFrame)) / speed);
+      long wait = due - System.nanoTime();
+      if (wait <= 0)
+        return position;
+      waitFor(wait);
+    }
+    return -1;
+  }
+
+  private void waitFor(long nanos)
+  {
+    try
+    {
+      if (nanos <= 0)
+        lock.wait();
+      else
+        lock.wait(nanos / 1000000, (int) (nanos % 1000000));
+    } catch (InterruptedException e)
+    {
+      running = false;
+    }
+  }
+
+  private void anchor(int frame)
+  {
+    anchorFrame = clamp(frame);
+    anchorTime = System.nanoTime();
+  }
+
+  private int clamp(int frame)
+  {
+    return Math.max(0, Math.min(frame, recording.size() - 1));
+  }
+
+  public String toString()
+  {
+    return String.format("%s: frame %d of %d", recording.getDirectory(), lastPlayed + 1, recording.size());
+  }
+
+  public static void main(String[] args) throws Exception
+  {
+    // two seconds of 25 frames per second played at 4x, then stepped and
+    // seeked while paused
+    java.nio.file.Path directory = java.nio.file.Files.createTempDirectory("recording");
+    FrameRecorder recorder = new FrameRecorder(directory, 1 << 20, 0);
+    long base = System.nanoTime();
+    for (int i = 0; i < 50; i++)
+    {
+      long time = base + i * 40000000L;
+      recorder.record(new Frame(i + 1, 5, java.nio.ByteBuffer.wrap(new byte[1000]), time, time));
+    }
+    recorder.close();
+
+    java.util.concurrent.BlockingQueue<Frame> played = new java.util.concurrent.LinkedBlockingQueue<>();
+    PlaybackSource source = new PlaybackSource(Recording.open(directory), played::add);
+    source.setSpeed(4);
+    Thread thread = new Thread(source, "PlaybackSource");
+    long start = System.nanoTime();
+    thread.start();
+    for (int i = 0; i < 50; i++)
+      played.take();
+    double seconds = 1e-9 * (System.nanoTime() - start);
+    System.out.printf("50 frames at 4x in %.3f s%n", seconds);
+    if (Math.abs(seconds - 0.49) > 0.1)
+      throw new Exception("expected about 0.49 s");
+
+    source.pause();
+    source.seekImageNumber(20);
+    int seeked = played.take().getImageNumber();
+    source.step(-3);
+    int stepped = played.take().getImageNumber();
+    source.step(1);
+    int next = played.take().getImageNumber();
+    System.out.println("seeked to " + seeked + ", stepped back to " + stepped + " and on to " + next);
+    if (seeked != 20 || stepped != 17 || next != 18)
+      throw new Exception("wrong frames");
+
+    source.stop();
+    thread.join();
+
+    // as fast as possible into a decoder that only keeps the newest frame.
+    // none of these frames decode, but each must reach the decoder, which
+    // counts failures as decoded
+    PipelineStats stats = new PipelineStats();
+    FrameDecoder decoder = new FrameDecoder(stats);
+    Thread decoderThread = new Thread(decoder, "FrameDecoder");
+    decoderThread.start();
+    PlaybackSource fast = new PlaybackSource(Recording.open(directory), decoder::offer, decoder::isReady);
+    fast.setSpeed(0);
+    thread = new Thread(fast, "PlaybackSource");
+    thread.start();
+    long deadline = System.nanoTime() + 10000000000L;
+    while (stats.getDrops(DropReason.DECODE_FAILURE) < 50 && System.nanoTime() < deadline)
+      Thread.sleep(10);
+    fast.stop();
+    decoder.stop();
+    thread.join();
+    decoderThread.join();
+    System.out.printf("speed 0: %d frames reached the decoder, %d replaced before it took them%n",
+        stats.getDecodedFrames(), stats.getDrops(DropReason.STALE));
+    if (stats.getDrops(DropReason.STALE) != 0 || stats.getDecodedFrames() != 50)
+      throw new Exception("frames lost at speed 0");
+    if (stats.isDecodePending())
+      throw new Exception("decoder slot still holds a frame");
+
+    // a second session an hour later, played at the original speed from the
+    // last 5 frames of the first. it must follow on, not wait the hour out
+    recorder = new FrameRecorder(directory, 1 << 20, 0);
+    for (int i = 0; i < 10; i++)
+    {
+      long time = base + 3600000000000L + i * 40000000L;
+      recorder.record(new Frame(i + 1, 5, java.nio.ByteBuffer.wrap(new byte[1000]), time, time));
+    }
+    recorder.close();
+    played.clear();
+    PlaybackSource sessions = new PlaybackSource(Recording.open(directory), played::add);
+    sessions.seek(45);
+    thread = new Thread(sessions, "PlaybackSource");
+    start = System.nanoTime();
+    thread.start();
+    for (int i = 0; i < 15; i++)
+      if (played.poll(2, java.util.concurrent.TimeUnit.SECONDS) == null)
+        throw new Exception("stuck between sessions after " + i + " frames");
+    seconds = 1e-9 * (System.nanoTime() - start);
+    sessions.stop();
+    thread.join();
+    System.out.printf("15 frames across two sessions an hour apart in %.3f s%n", seconds);
+
+  }// public static void main(String[] args) throws Exception
+
+}
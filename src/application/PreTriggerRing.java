@@ -0,0 +1,249 @@
+package application;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Keeps the most recent frames, still JPEG encoded, in a fixed amount of
+ * off-heap memory so a capture can include frames from before it was
+ * triggered. The JPEG bytes go into one direct buffer used as a circular log
+ * and each frame gets a slot in a fixed-size direct index, so the memory used
+ * doesn't depend on the resolution; bigger frames just mean fewer of them.
+ *
+ * There is exactly one writer, the receive thread, which never waits: it
+ * overwrites the oldest frames as it goes. Readers copy frames out and then
+ * check, seqlock style, that neither the index slot nor the bytes were
+ * overwritten while they were copying, so every frame they get back is
+ * consistent and anything torn is left out.
+ */
+public class PreTriggerRing
+{
+  // index slot, little endian
+  private static final int SLOT_SIZE = 48;
+  private static final int SLOT_SEQUENCE = 0;
+  private static final int SLOT_FIRST_TIME = 8;
+  private static final int SLOT_LAST_TIME = 16;
+  private static final int SLOT_POSITION = 24;
+  private static final int SLOT_LENGTH = 32;
+  private static final int SLOT_IMAGE_NUMBER = 36;
+  private static final int SLOT_MODE = 40;
+
+  private static final VarHandle SEQUENCE = MethodHandles.byteBufferViewVarHandle(long[].class,
+      ByteOrder.LITTLE_ENDIAN);
+
+  private final ByteBuffer data;
+  private final ByteBuffer index;
+  private final int capacity;
+  private final int slots;
+  private final int mask;
+
+  // bytes written to data since the start, counting padding at the end. a
+  // frame at a position below dataHead - capacity has been overwritten
+  private volatile long dataHead = 0;
+  // frames written since the start, the newest is count - 1
+  private volatile long count = 0;
+  private volatile long skippedFrames = 0;
+
+  /**
+   * @param capacity bytes kept for JPEG data
+   * @param slots most frames kept whatever their size, a power of two
+   */
+  public PreTriggerRing(int capacity, int slots)
+  {
+    if (Integer.bitCount(slots) != 1)
+      throw new IllegalArgumentException("slots must be a power of two " + slots);
+    this.capacity = capacity;
+    this.slots = slots;
+    this.mask = slots - 1;
+    data = ByteBuffer.allocateDirect(capacity);
+    index = ByteBuffer.allocateDirect(slots * SLOT_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+    for (int i = 0; i < slots; i++)
+      index.putLong(i * SLOT_SIZE + SLOT_SEQUENCE, -1);
+  }
+
+  public int getCapacity()
+  {
+    return capacity;
+  }
+
+  public int getSlots()
+  {
+    return slots;
+  }
+
+  public long getWrittenFrames()
+  {
+    return count;
+  }
+
+  // frames too big to fit at all
+  public long getSkippedFrames()
+  {
+    return skippedFrames;
+  }
+
+  /**
+   * Copy a frame in, overwriting the oldest. Called from the receive thread
+   * only.
+   */
+  public void write(Frame frame)
+  {
+    int length = frame.getLength();
+    if (length > capacity)
+    {
+      skippedFrames++;
+      return;
+    }
+
+    // frames are never split, so skip what's left at the end if it won't fit
+    long position = dataHead;
+    int offset = (int) (position % capacity);
+    if (offset + length > capacity)
+    {
+      position += capacity - offset;
+      offset = 0;
+    }
+
+    // claim the bytes before overwriting them, so a reader still copying an
+    // older frame from there finds out
+    dataHead = position + length;
+    VarHandle.storeStoreFence();
+    data.put(offset, frame.getData(), 0, length);
+
+    long sequence = count;
+    int slot = (int) (sequence & mask) * SLOT_SIZE;
+    SEQUENCE.setVolatile(index, slot + SLOT_SEQUENCE, -1L);
+    VarHandle.storeStoreFence();
+    index.putLong(slot + SLOT_FIRST_TIME, frame.getFirstPacketTime());
+    index.putLong(slot + SLOT_LAST_TIME, frame.getLastPacketTime());
+    index.putLong(slot + SLOT_POSITION, position);
+    index.putInt(slot + SLOT_LENGTH, length);
+    index.putInt(slot + SLOT_IMAGE_NUMBER, frame.getImageNumber());
+    index.putInt(slot + SLOT_MODE, frame.getMode());
+    SEQUENCE.setRelease(index, slot + SLOT_SEQUENCE, sequence);
+    count = sequence + 1;
+  }
+
+  // a heap copy of one frame, or null if it has been overwritten
+  private Frame read(long sequence)
+  {
+    int slot = (int) (sequence & mask) * SLOT_SIZE;
+    if ((long) SEQUENCE.getAcquire(index, slot + SLOT_SEQUENCE) != sequence)
+      return null;
+    long firstTime = index.getLong(slot + SLOT_FIRST_TIME);
+    long lastTime = index.getLong(slot + SLOT_LAST_TIME);
+    long position = index.getLong(slot + SLOT_POSITION);
+    int length = index.getInt(slot + SLOT_LENGTH);
+    int imageNumber = index.getInt(slot + SLOT_IMAGE_NUMBER);
+    int mode = index.getInt(slot + SLOT_MODE);
+    if (length < 0 || length > capacity)
+      return null;
+
+    byte[] bytes = new byte[length];
+    data.get((int) (position % capacity), bytes);
+
+    // valid only if neither the slot nor the bytes moved on meanwhile
+    VarHandle.loadLoadFence();
+    if ((long) SEQUENCE.getVolatile(index, slot + SLOT_SEQUENCE) != sequence || dataHead - capacity > position)
+      return null;
+    return new Frame(imageNumber, mode, ByteBuffer.wrap(bytes), firstTime, lastTime);
+  }
+
+  /**
+   * Copies of the frames whose last packet arrived between from and to,
+   * oldest first. Frames that were overwritten before they could be copied
+   * are left out, so the result may start later than asked for. May be called
+   * from any thread while frames are being written.
+   *
+   * @param from System.nanoTime()
+   * @param to System.nanoTime()
+   */
+  public List<Frame> snapshot(long from, long to)
+  {
+    List<Frame> frames = new ArrayList<>();
+    long newest = count - 1;
+    for (long sequence = newest; sequence >= 0 && sequence > newest - slots; sequence--)
+    {
+      Frame frame = read(sequence);
+      // older frames are gone too
+      if (frame == null || frame.getLastPacketTime() - from < 0)
+        break;
+      if (frame.getLastPacketTime() - to <= 0)
+        frames.add(frame);
+    }
+    Collections.reverse(frames);
+    return frames;
+  }
+
+  public String toString()
+  {
+    return String.format("PreTriggerRing: %d KB, %d slots, %d frames written, %d skipped", capacity >> 10, slots,
+        count, skippedFrames);
+  }
+
+  public static void main(String[] args) throws Exception
+  {
+    // one thread writes frames of varying size whose bytes all equal the low
+    // byte of the image number, while this one takes snapshots. every frame
+    // that comes back must be whole and the image numbers must be consecutive
+    final int FRAMES = 200000;
+    PreTriggerRing ring = new PreTriggerRing(256 << 10, 256);
+
+    Thread writer = new Thread(() ->
+    {
+      java.util.Random random = new java.util.Random(1);
+      ByteBuffer buffer = ByteBuffer.allocate(64 << 10);
+      for (int i = 1; i <= FRAMES; i++)
+      {
+        int length = 100 + random.nextInt(buffer.capacity() - 100);
+        byte value = (byte) i;
+        for (int j = 0; j < length; j++)
+          buffer.put(j, value);
+        long time = System.nanoTime();
+        ring.write(new Frame(i, 5, buffer.slice(0, length), time, time));
+      }
+    }, "PreTriggerRing writer");
+    writer.start();
+
+    long snapshots = 0;
+    long frames = 0;
+    while (writer.isAlive())
+    {
+      List<Frame> snapshot = ring.snapshot(Long.MIN_VALUE / 2, System.nanoTime());
+      snapshots++;
+      int previous = -1;
+      for (Frame frame : snapshot)
+      {
+        frames++;
+        if (previous >= 0 && frame.getImageNumber() != previous + 1)
+          throw new Exception("frame " + frame.getImageNumber() + " follows " + previous);
+        previous = frame.getImageNumber();
+        byte[] bytes = frame.toByteArray();
+        for (byte b : bytes)
+          if (b != (byte) frame.getImageNumber())
+            throw new Exception("torn frame " + frame.getImageNumber());
+      }
+    }
+    writer.join();
+    System.out.println(ring);
+    System.out.println(snapshots + " snapshots of " + frames + " frames taken while writing, none torn");
+
+    // a window picks out frames by arrival time
+    PreTriggerRing window = new PreTriggerRing(1 << 20, 64);
+    for (int i = 0; i < 100; i++)
+      window.write(new Frame(i, 5, ByteBuffer.allocate(1000), i * 1000L, i * 1000L));
+    List<Frame> picked = window.snapshot(80000, 90000);
+    System.out.println("window holds " + picked.size() + " frames from " + picked.get(0).getImageNumber());
+    if (picked.size() != 11 || picked.get(0).getImageNumber() != 80)
+      throw new Exception("wrong window");
+    if (window.snapshot(0, 100000).size() != 64)
+      throw new Exception("expected the last 64 frames");
+
+  }// public static void main(String[] args) throws Exception
+
+}
@@ -0,0 +1,270 @@
+package application;
+
+import java.util.function.LongSupplier;
+
+/**
+ * Rate of events (or of bytes, or of anything that adds up) over a sliding
+ * time window. The window is split into a fixed number of buckets, so memory
+ * is fixed and nothing can overflow however fast events arrive. Adding is
+ * O(1); only buckets that time has moved past are cleared.
+ *
+ * An estimator is written by one thread, which calls add, getRate() and
+ * getTotal(). Any other thread may call getRate(now), which reads the window
+ * as it would be at that time without changing it, so the rate falls to 0
+ * when events stop even if nothing is added. The clock is System.nanoTime()
+ * unless another one is given, which lets tests drive time directly.
+ */
+public class RateEstimator
+{
+  private final long bucketNanos;
+  private final long[] buckets;
+  private final LongSupplier clock;
+
+  // written by the writer only. started is set last, and currentBucket is
+  // written after the buckets it covers, so a reader sees a usable window
+  private volatile boolean started = false;
+  private long startTime = 0;
+  private volatile long currentBucket = 0;
+  private volatile long total = 0;
+
+  // optional exponential smoothing of the reported rate, advanced by the
+  // writer's getRate()
+  private long smoothingNanos = 0;
+  private volatile double smoothed = 0;
+  private volatile long lastRateTime = 0;
+
+  public RateEstimator(long windowMilliseconds, int numBuckets)
+  {
+    this(windowMilliseconds, numBuckets, System::nanoTime);
+  }
+
+  public RateEstimator(long windowMilliseconds, int numBuckets, LongSupplier clock)
+  {
+    if (numBuckets < 1 || windowMilliseconds < numBuckets)
+      throw new IllegalArgumentException("window " + windowMilliseconds + " ms with " + numBuckets + " buckets");
+    this.bucketNanos = windowMilliseconds * 1000000L / numBuckets;
+    this.buckets = new long[numBuckets];
+    this.clock = clock;
+  }
+
+  /**
+   * Smooth the reported rate with an exponentially weighted moving average of
+   * the given time constant. 0 turns smoothing off.
+   */
+  public void setSmoothing(long timeConstantMilliseconds)
+  {
+    smoothingNanos = timeConstantMilliseconds * 1000000L;
+  }
+
+  public void reset()
+  {
+    started = false;
+    for (int i = 0; i < buckets.length; i++)
+      buckets[i] = 0;
+    total = 0;
+    smoothed = 0;
+  }
+
+  public void add(long amount)
+  {
+    long now = clock.getAsLong();
+    if (!started)
+    {
+      startTime = now;
+      currentBucket = Math.floorDiv(now, bucketNanos);
+      lastRateTime = now;
+      started = true;
+    }
+    advance(now);
+    buckets[Math.floorMod(currentBucket, buckets.length)] += amount;
+    total += amount;
+  }
+
+  // amount per second over the window, on the writer thread
+  public double getRate()
+  {
+    if (!started)
+      return 0;
+
+    long now = clock.getAsLong();
+    advance(now);
+    double rate = windowRate(now, currentBucket, total);
+
+    if (smoothingNanos <= 0)
+      return rate;
+
+    smoothed = smooth(now, rate);
+    lastRateTime = now;
+    return smoothed;
+  }
+
+  /**
+   * Amount per second over the window as it is at now, which should be from
+   * the estimator's clock. May be called from any thread; if the writer is
+   * adding at the same time the answer may include some of what it adds.
+   */
+  public double getRate(long now)
+  {
+    if (!started)
+      return 0;
+
+    // take away the buckets that have expired since the writer last moved on,
+    // without clearing them
+    long bucket = currentBucket;
+    long amount = total;
+    long steps = Math.min(Math.floorDiv(now, bucketNanos) - bucket, buckets.length);
+    for (long i = 1; i <= steps; i++)
+      amount -= buckets[Math.floorMod(bucket + i, buckets.length)];
+    double rate = windowRate(now, Math.max(bucket, Math.floorDiv(now, bucketNanos)), Math.max(amount, 0));
+
+    return smoothingNanos <= 0 ? rate : smooth(now, rate);
+  }
+
+  // the window is the full buckets plus however much of the current one has
+  // passed, but no longer than we have been counting
+  private double windowRate(long now, long bucket, long amount)
+  {
+    long bucketStart = bucket * bucketNanos;
+    long span = (buckets.length - 1) * bucketNanos + (now - bucketStart);
+    span = Math.min(span, now - startTime);
+    span = Math.max(span, bucketNanos);
+    return 1e9 * amount / span;
+  }
+
+  private double smooth(long now, double rate)
+  {
+    double alpha = 1 - Math.exp(-(double) (now - lastRateTime) / smoothingNanos);
+    return smoothed + alpha * (rate - smoothed);
+  }
+
+  // amount added over the window
+  public long getTotal()
+  {
+    if (started)
+      advance(clock.getAsLong());
+    return total;
+  }
+
+  private void advance(long now)
+  {
+    long bucket = Math.floorDiv(now, bucketNanos);
+    long steps = bucket - currentBucket;
+    if (steps <= 0)
+      return;
+
+    // clear the buckets time has moved past, at most once around
+    steps = Math.min(steps, buckets.length);
+    for (long i = 1; i <= steps; i++)
+    {
+      int index = Math.floorMod(currentBucket + i, buckets.length);
+      total -= buckets[index];
+      buckets[index] = 0;
+    }
+    currentBucket = bucket;
+  }
+
+  // a clock that only moves when told to
+  private static class ManualClock implements LongSupplier
+  {
+    long now = 0;
+
+    @Override
+    public long getAsLong()
+    {
+      return now;
+    }
+  }
+
+  private static void check(String name, double expected, double actual, double tolerance) throws Exception
+  {
+    System.out.printf("%-40s expected %14.3f actual %14.3f%n", name, expected, actual);
+    if (Math.abs(expected - actual) > tolerance * Math.max(1, Math.abs(expected)))
+      throw new Exception(name + " expected " + expected + " but was " + actual);
+  }
+
+  public static void main(String[] args) throws Exception
+  {
+    // drive the estimator with a manual clock at rates up to 100k events per
+    // second; throws on the first wrong answer
+    ManualClock clock = new ManualClock();
+
+    for (int eventsPerSecond : new int[] { 1, 30, 1000, 100000 })
+    {
+      RateEstimator rate = new RateEstimator(4000, 40, clock);
+      long interval = 1000000000L / eventsPerSecond;
+      for (long t = 0; t < 10000000000L; t += interval)
+      {
+        clock.now = 1000000000000L + t;
+        rate.add(1);
+      }
+      check(eventsPerSecond + " events/s", eventsPerSecond, rate.getRate(), 0.03);
+    }
+
+    // bytes, with the window filling up from nothing
+    RateEstimator bytes = new RateEstimator(4000, 40, clock);
+    clock.now = 0;
+    for (int i = 0; i < 1000; i++)
+    {
+      clock.now += 1000000;
+      bytes.add(1500);
+    }
+    check("1500 bytes/ms after 1 s", 1500000, bytes.getRate(), 0.03);
+
+    // events age out of the window when the stream stops
+    clock.now += 5000000000L;
+    check("idle for longer than the window", 0, bytes.getRate(), 0);
+
+    // a long idle gap doesn't cost more than one pass over the buckets, and
+    // one event is then spread over the whole window
+    clock.now += 1000000000000L;
+    bytes.add(1);
+    check("one event after a long gap", 0.25, bytes.getRate(), 0.05);
+
+    // another thread sees the rate fall without anything being added
+    RateEstimator reader = new RateEstimator(1000, 10, clock);
+    clock.now = 0;
+    for (int i = 0; i < 1000; i++)
+    {
+      clock.now += 1000000;
+      reader.add(1);
+    }
+    check("read at the last event", reader.getRate(), reader.getRate(clock.now), 1e-12);
+    check("read after the window has passed", 0, reader.getRate(clock.now + 1100000000L), 0);
+
+    // smoothing follows a step change in rate gradually. an event every ms
+    // from 1 ms to 2 s, each followed by a read; the expected value is the
+    // same average worked out from the events directly: the window is the
+    // nine full 100 ms buckets before the current one and what has passed of
+    // it, and the first read, at the first event, has no weight
+    RateEstimator smooth = new RateEstimator(1000, 10, clock);
+    smooth.setSmoothing(1000);
+    clock.now = 0;
+    double expected = 0;
+    for (int t = 1; t <= 2000; t++)
+    {
+      clock.now = t * 1000000L;
+      smooth.add(1);
+      smooth.getRate();
+
+      long windowStart = Math.max((t / 100 - 9) * 100, 1);
+      long span = Math.max(Math.min(900 + t % 100, t - 1), 100);
+      double rate = 1000.0 * (t - windowStart + 1) / span;
+      expected += (t == 1 ? 0 : 1 - Math.exp(-1 / 1000.0)) * (rate - expected);
+    }
+    check("smoothed step to 1000 events/s after 2 s", expected, smooth.getRate(), 1e-12);
+
+    // a million events at 100k events/s through the estimator and no overflow.
+    // the last event is at 10 s, the first of 100 ms bucket 100, so the window
+    // is buckets 61 to 100: every event from 6.1 s to 10 s inclusive
+    RateEstimator fast = new RateEstimator(4000, 40, clock);
+    clock.now = 0;
+    for (int i = 0; i < 1000000; i++)
+    {
+      clock.now += 10000;
+      fast.add(1);
+    }
+    check("total over the window at 100k/s", (10000000 - 6100000) / 10 + 1, fast.getTotal(), 0);
+
+  }// public static void main(String[] args) throws Exception
+
+}
@@ -0,0 +1,108 @@
+package application;
+
+import java.lang.management.ManagementFactory;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+import tools.Options;
+
+/**
+ * Headless recording node: receives one camera's stream and records every
+ * frame with a FrameRecorder, without JavaFX. Settings come from
+ * configuration.properties and may be overridden on the command line. Run it
+ * from the class path so the JavaFX modules aren't even resolved:
+ *
+ * <pre>
+ * java -cp classes application.RecorderDaemon [--port 1235] [--dir recordings]
+ *     [--segment-mb 256] [--segment-minutes 10] [--statistics 10]
+ *     [--capture packets.bin] [--seconds 0]
+ * </pre>
+ *
+ * A statistics line is printed every so often, and the recording is closed
+ * cleanly on shutdown.
+ */
+public class RecorderDaemon
+{
+  private static final int RECORDING_BUFFER_FRAMES = 256;
+  // how long shutdown waits for the buffered frames to be written
+  private static final long DRAIN_MILLISECONDS = 10000;
+  private static final String USAGE = "usage: RecorderDaemon [--port 1235] [--dir recordings] [--segment-mb 256]"
+      + " [--segment-minutes 10] [--statistics 10] [--capture packets.bin] [--seconds 0]";
+
+  private RecorderDaemon()
+  {
+  }
+
+  private static String property(String key, String defaultValue)
+  {
+    return PropertyManager.thePropertyManager.getProperty(key, defaultValue);
+  }
+
+  public static void main(String[] args) throws Exception
+  {
+    PropertyManager.load();
+    Options options = new Options(USAGE, args);
+    int port = options.getInt("--port", Integer.parseInt(property("port", Integer.toString(StreamReceiver.DATA_PORT))));
+    String directory = options.get("--dir", property("recordings", "recordings"));
+    long segmentMegabytes = options.getLong("--segment-mb", Long.parseLong(property("segmentmegabytes", "256")));
+    long segmentMinutes = options.getLong("--segment-minutes", Long.parseLong(property("segmentminutes", "10")));
+    long statisticsSeconds = options.getLong("--statistics", Long.parseLong(property("statistics", "10")));
+    String capture = options.get("--capture", null);
+    long seconds = options.getLong("--seconds", 0);
+
+    StreamReceiver receiver = new StreamReceiver(port);
+    Path recordings = Paths.get(directory);
+    FrameRecorder recorder = new FrameRecorder(recordings, segmentMegabytes << 20, segmentMinutes * 60000);
+    receiver.getFramePublisher().subscribe(recorder, RECORDING_BUFFER_FRAMES, FramePublisher.DropPolicy.DROP_NEWEST);
+    PacketCapture packetCapture = capture == null ? null : new PacketCapture(Paths.get(capture));
+    receiver.setPacketCapture(packetCapture);
+
+    Thread thread = new Thread(receiver, "StreamReceiver");
+    thread.start();
+    System.out.printf("RecorderDaemon: receiving on port %d into %s, started in %d ms%n", port,
+        recordings.toAbsolutePath(), ManagementFactory.getRuntimeMXBean().getUptime());
+
+    // the receive thread is blocked in the socket, interrupting it closes the
+    // channel and ends the loop. closing the publisher then lets the recorder
+    // write the frames still buffered for it before it completes
+    Thread shutdown = new Thread(() ->
+    {
+      receiver.stop();
+      thread.interrupt();
+      try
+      {
+        thread.join(1000);
+        receiver.getFramePublisher().close();
+        long deadline = System.nanoTime() + DRAIN_MILLISECONDS * 1000000L;
+        while (!recorder.isClosed() && deadline - System.nanoTime() > 0)
+          Thread.sleep(10);
+      } catch (InterruptedException e)
+      {
+        Thread.currentThread().interrupt();
+      }
+      if (!recorder.isClosed())
+        System.out.println("RecorderDaemon: frames still buffered after " + DRAIN_MILLISECONDS + " ms are lost");
+      recorder.close();
+      if (packetCapture != null)
+        packetCapture.close();
+      System.out.println(recorder);
+    }, "RecorderDaemon shutdown");
+    Runtime.getRuntime().addShutdownHook(shutdown);
+
+    long end = System.nanoTime() + seconds * 1000000000L;
+    long interval = Math.max(1, statisticsSeconds) * 1000;
+    while (thread.isAlive() && (seconds <= 0 || end - System.nanoTime() > 0))
+    {
+      Thread.sleep(seconds <= 0 ? interval : Math.min(interval, Math.max(1, (end - System.nanoTime()) / 1000000)));
+      Runtime runtime = Runtime.getRuntime();
+      System.out.printf(
+          "image %d, %.1f fps, %.1f KB/s, dropped %d packets %d frames, recorded %d frames (%d dropped), heap %d KB%n",
+          receiver.getImageNumber(), receiver.getFrameRate(), 0.001 * receiver.getBandwidth(),
+          receiver.getDroppedPackets(), receiver.getDroppedFrames(), recorder.getRecordedFrames(),
+          recorder.getDroppedFrames(), (runtime.totalMemory() - runtime.freeMemory()) >> 10);
+    }
+    System.exit(0);
+
+  }// public static void main(String[] args) throws Exception
+
+}
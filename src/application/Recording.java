@@ -0,0 +1,435 @@
+package application;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.CRC32C;
+
+/**
+ * Read-only view of a directory of segments written by FrameRecorder. Every
+ * segment is memory-mapped when the recording is opened, but only its index
+ * header and any entries written after the last group commit are read, so
+ * opening doesn't depend on the length of the recording.
+ *
+ * A recording is either a whole directory, which may hold several sessions
+ * recorded hours apart, or one session of it. Frames are numbered from 0
+ * across its segments. Seeking by time or by image number is a binary search
+ * over the index, and a Frame returned from here is a view of the mapped data
+ * file, so the JPEG bytes go to the decoder without being copied into the
+ * heap first.
+ */
+public class Recording
+{
+  private static class Segment
+  {
+    final int number;
+    final MappedByteBuffer index;
+    final MappedByteBuffer data;
+    final int count;
+    final int first;
+    final int session;
+    final int stream;
+
+    Segment(int number, MappedByteBuffer index, MappedByteBuffer data, int count, int first)
+    {
+      this.number = number;
+      this.index = index;
+      this.data = data;
+      this.count = count;
+      this.first = first;
+      session = index.getInt(FrameRecorder.HEADER_SESSION);
+      stream = index.getInt(FrameRecorder.HEADER_STREAM);
+    }
+  }
+
+  private final Path directory;
+  private final Segment[] segments;
+  private final int size;
+  private final int sessions;
+  private final long recoveredFrames;
+
+  private Recording(Path directory, Segment[] segments, long recoveredFrames)
+  {
+    this.directory = directory;
+    this.segments = segments;
+    this.recoveredFrames = recoveredFrames;
+    this.size = segments.length == 0 ? 0 : segments[segments.length - 1].first + segments[segments.length - 1].count;
+    int count = 0;
+    for (int i = 0; i < segments.length; i++)
+      if (i == 0 || segments[i].session != segments[i - 1].session)
+        count++;
+    this.sessions = count;
+  }
+
+  // every session in the directory
+  public static Recording open(Path directory) throws IOException
+  {
+    return open(directory, -1);
+  }
+
+  /**
+   * One session of a directory, see getSession and lastSession. Segments
+   * written before sessions were recorded are all session 0.
+   */
+  public static Recording open(Path directory, int session) throws IOException
+  {
+    List<Segment> segments = new ArrayList<>();
+    long recovered = 0;
+    int first = 0;
+    int last = FrameRecorder.lastSegmentNumber(directory);
+    for (int number = 1; number <= last; number++)
+    {
+      Path indexPath = directory.resolve(FrameRecorder.segmentName(number) + FrameRecorder.INDEX_SUFFIX);
+      Path dataPath = directory.resolve(FrameRecorder.segmentName(number) + FrameRecorder.DATA_SUFFIX);
+      if (!Files.exists(indexPath) || !Files.exists(dataPath))
+        continue;
+
+      MappedByteBuffer index = map(indexPath);
+      MappedByteBuffer data = map(dataPath);
+      if (index.capacity() < FrameRecorder.HEADER_SIZE
+          || index.getInt(FrameRecorder.HEADER_MAGIC) != FrameRecorder.INDEX_MAGIC
+          || index.getInt(FrameRecorder.HEADER_ENTRY_SIZE) != FrameRecorder.ENTRY_SIZE)
+      {
+        System.out.println("Recording " + indexPath + " is not a segment index");
+        continue;
+      }
+      if (session >= 0 && index.getInt(FrameRecorder.HEADER_SESSION) != session)
+        continue;
+
+      // entries after the last commit count only if their frame checks out
+      int committed = index.getInt(FrameRecorder.HEADER_COMMITTED);
+      int count = committed;
+      while (isValid(index, data, count))
+        count++;
+      recovered += count - committed;
+
+      if (count > 0)
+      {
+        segments.add(new Segment(number, index, data, count, first));
+        first += count;
+      }
+    }
+    return new Recording(directory, segments.toArray(new Segment[0]), recovered);
+  }
+
+  // the session recorded last, 0 if there is none
+  public static int lastSession(Path directory) throws IOException
+  {
+    for (int number = FrameRecorder.lastSegmentNumber(directory); number > 0; number--)
+    {
+      Path indexPath = directory.resolve(FrameRecorder.segmentName(number) + FrameRecorder.INDEX_SUFFIX);
+      if (!Files.exists(indexPath))
+        continue;
+      MappedByteBuffer index = map(indexPath);
+      if (index.capacity() >= FrameRecorder.HEADER_SIZE
+          && index.getInt(FrameRecorder.HEADER_MAGIC) == FrameRecorder.INDEX_MAGIC)
+        return index.getInt(FrameRecorder.HEADER_SESSION);
+    }
+    return 0;
+  }
+
+  private static MappedByteBuffer map(Path path) throws IOException
+  {
+    try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ))
+    {
+      MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+      buffer.order(ByteOrder.LITTLE_ENDIAN);
+      return buffer;
+    }
+  }
+
+  private static boolean isValid(ByteBuffer index, ByteBuffer data, int i)
+  {
+    int entry = FrameRecorder.HEADER_SIZE + i * FrameRecorder.ENTRY_SIZE;
+    if (entry + FrameRecorder.ENTRY_SIZE > index.capacity())
+      return false;
+    int length = index.getInt(entry + FrameRecorder.ENTRY_LENGTH);
+    long offset = index.getLong(entry + FrameRecorder.ENTRY_OFFSET);
+    if (length <= 0 || offset < 0 || offset + length > data.capacity())
+      return false;
+
+    CRC32C crc = new CRC32C();
+    crc.update(data.slice((int) offset, length));
+    return (int) crc.getValue() == index.getInt(entry + FrameRecorder.ENTRY_CRC);
+  }
+
+  public Path getDirectory()
+  {
+    return directory;
+  }
+
+  // number of frames
+  public int size()
+  {
+    return size;
+  }
+
+  public int getSessions()
+  {
+    return sessions;
+  }
+
+  // frames found after the last group commit of their segment, e.g. after a
+  // crash
+  public long getRecoveredFrames()
+  {
+    return recoveredFrames;
+  }
+
+  // wall clock time the frame arrived, in nanoseconds since the epoch
+  public long getTimestamp(int frame)
+  {
+    Segment segment = segment(frame);
+    return segment.index.getLong(entry(segment, frame) + FrameRecorder.ENTRY_TIME);
+  }
+
+  // the session the frame was recorded in
+  public int getSession(int frame)
+  {
+    return segment(frame).session;
+  }
+
+  public int getImageNumber(int frame)
+  {
+    Segment segment = segment(frame);
+    return segment.index.getInt(entry(segment, frame) + FrameRecorder.ENTRY_IMAGE_NUMBER);
+  }
+
+  public int getMode(int frame)
+  {
+    Segment segment = segment(frame);
+    return segment.index.getInt(entry(segment, frame) + FrameRecorder.ENTRY_MODE);
+  }
+
+  public int getLength(int frame)
+  {
+    Segment segment = segment(frame);
+    return segment.index.getInt(entry(segment, frame) + FrameRecorder.ENTRY_LENGTH);
+  }
+
+  public long getStartTime()
+  {
+    return size == 0 ? 0 : getTimestamp(0);
+  }
+
+  public long getEndTime()
+  {
+    return size == 0 ? 0 : getTimestamp(size - 1);
+  }
+
+  /**
+   * A frame as a view of the mapped data file. Its packet times are set to
+   * the given System.nanoTime(), so latency downstream is measured from when
+   * it is played rather than when it was recorded.
+   */
+  public Frame getFrame(int frame, long playedTime)
+  {
+    Segment segment = segment(frame);
+    int entry = entry(segment, frame);
+    int offset = (int) segment.index.getLong(entry + FrameRecorder.ENTRY_OFFSET);
+    int length = segment.index.getInt(entry + FrameRecorder.ENTRY_LENGTH);
+    return new Frame(segment.index.getInt(entry + FrameRecorder.ENTRY_IMAGE_NUMBER),
+        segment.index.getInt(entry + FrameRecorder.ENTRY_MODE), segment.data.slice(offset, length), playedTime,
+        playedTime);
+  }
+
+  /**
+   * The last frame that arrived at or before the given time, or the first
+   * frame if the time is before the recording.
+   *
+   * @param time nanoseconds since the epoch
+   */
+  public int seekTime(long time)
+  {
+    int low = 0;
+    int high = size - 1;
+    int found = 0;
+    while (low <= high)
+    {
+      int middle = (low + high) >>> 1;
+      if (getTimestamp(middle) <= time)
+      {
+        found = middle;
+        low = middle + 1;
+      } else
+        high = middle - 1;
+    }
+    return found;
+  }
+
+  /**
+   * The first frame in the same stream as near whose image number is at or
+   * after the given one, or the last frame of that stream. Image numbers start
+   * again with every stream, so they can't be compared across one. Within it
+   * they are compared by the sign of their difference like everywhere else,
+   * so the search holds across a wrap.
+   */
+  public int seekImageNumber(int imageNumber, int near)
+  {
+    if (size == 0)
+      return 0;
+    int i = segmentIndex(near);
+    int first = i;
+    while (first > 0 && segments[first - 1].stream == segments[i].stream)
+      first--;
+    int last = i;
+    while (last < segments.length - 1 && segments[last + 1].stream == segments[i].stream)
+      last++;
+
+    int low = segments[first].first;
+    int high = segments[last].first + segments[last].count - 1;
+    int found = high;
+    while (low <= high)
+    {
+      int middle = (low + high) >>> 1;
+      if (getImageNumber(middle) - imageNumber >= 0)
+      {
+        found = middle;
+        high = middle - 1;
+      } else
+        low = middle + 1;
+    }
+    return found;
+  }
+
+  private Segment segment(int frame)
+  {
+    return segments[segmentIndex(frame)];
+  }
+
+  private int segmentIndex(int frame)
+  {
+    if (frame < 0 || frame >= size)
+      throw new IndexOutOfBoundsException("frame " + frame + " of " + size);
+
+    int low = 0;
+    int high = segments.length - 1;
+    while (low < high)
+    {
+      int middle = (low + high + 1) >>> 1;
+      if (segments[middle].first <= frame)
+        low = middle;
+      else
+        high = middle - 1;
+    }
+    return low;
+  }
+
+  private static int entry(Segment segment, int frame)
+  {
+    return FrameRecorder.HEADER_SIZE + (frame - segment.first) * FrameRecorder.ENTRY_SIZE;
+  }
+
+  public String toString()
+  {
+    return String.format("%s: %d frames in %d segments, %d sessions, %.1f s", directory, size, segments.length,
+        sessions, 1e-9 * (getEndTime() - getStartTime()));
+  }
+
+  public static void main(String[] args) throws Exception
+  {
+    // record frames with known times into small segments, then seek through
+    // them, then cut the commit count short as a crash would and check the
+    // frames after it are recovered
+    Path directory = Files.createTempDirectory("recording");
+    final int FRAMES = 5000;
+
+    FrameRecorder recorder = new FrameRecorder(directory, 1 << 20, 0);
+    java.util.Random random = new java.util.Random(1);
+    long base = System.nanoTime();
+    for (int i = 0; i < FRAMES; i++)
+    {
+      byte[] jpeg = new byte[500 + random.nextInt(4000)];
+      random.nextBytes(jpeg);
+      // 25 frames per second, image numbers wrapping part way through
+      long time = base + i * 40000000L;
+      recorder.record(new Frame(Integer.MAX_VALUE - 1000 + i, 5, ByteBuffer.wrap(jpeg), time, time));
+    }
+    recorder.close();
+
+    Recording recording = Recording.open(directory);
+    System.out.println(recording);
+    if (recording.size() != FRAMES)
+      throw new Exception("expected " + FRAMES + " frames, found " + recording.size());
+
+    long start = recording.getStartTime();
+    long seekStart = System.nanoTime();
+    for (int i = 0; i < FRAMES; i++)
+    {
+      int byTime = recording.seekTime(start + i * 40000000L + 20000000L);
+      int byNumber = recording.seekImageNumber(Integer.MAX_VALUE - 1000 + i, 0);
+      if (byTime != i || byNumber != i)
+        throw new Exception("frame " + i + " found at " + byTime + " by time, " + byNumber + " by image number");
+    }
+    System.out.printf("%d seeks by time and image number in %.1f ms%n", FRAMES,
+        1e-6 * (System.nanoTime() - seekStart));
+
+    Frame frame = recording.getFrame(1234, System.nanoTime());
+    if (frame.getData().hasArray() || frame.getLength() != recording.getLength(1234))
+      throw new Exception("frame should be a view of the mapped file");
+
+    // forget the last group commit of the last segment, and tear its last
+    // frame so its checksum fails
+    int last = FrameRecorder.lastSegmentNumber(directory);
+    Path indexPath = directory.resolve(FrameRecorder.segmentName(last) + FrameRecorder.INDEX_SUFFIX);
+    Path dataPath = directory.resolve(FrameRecorder.segmentName(last) + FrameRecorder.DATA_SUFFIX);
+    int frames;
+    try (FileChannel index = FileChannel.open(indexPath, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        FileChannel data = FileChannel.open(dataPath, StandardOpenOption.READ, StandardOpenOption.WRITE))
+    {
+      ByteBuffer header = ByteBuffer.allocate(FrameRecorder.HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+      index.read(header, 0);
+      frames = header.getInt(FrameRecorder.HEADER_COMMITTED);
+      header.putInt(FrameRecorder.HEADER_COMMITTED, frames - 20);
+      header.rewind();
+      index.write(header, 0);
+
+      ByteBuffer entry = ByteBuffer.allocate(FrameRecorder.ENTRY_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+      index.read(entry, FrameRecorder.HEADER_SIZE + (frames - 1) * FrameRecorder.ENTRY_SIZE);
+      long offset = entry.getLong(FrameRecorder.ENTRY_OFFSET);
+      data.write(ByteBuffer.wrap(new byte[] { 1, 2, 3, 4 }), offset);
+    }
+
+    Recording crashed = Recording.open(directory);
+    System.out.println("after a crash: " + crashed.size() + " frames, " + crashed.getRecoveredFrames() + " recovered");
+    if (crashed.size() != FRAMES - 1 || crashed.getRecoveredFrames() != 19)
+      throw new Exception("expected to lose only the torn frame");
+
+    // a second session an hour after the first, in which the camera restarts
+    // and then changes mode, numbering its images from 1 each time
+    Path twoSessions = Files.createTempDirectory("recording");
+    for (int session = 0; session < 2; session++)
+    {
+      FrameRecorder sessionRecorder = new FrameRecorder(twoSessions, 1 << 20, 0);
+      for (int i = 0; i < (session == 0 ? 10 : 30); i++)
+      {
+        long time = base + session * 3600000000000L + i * 40000000L;
+        int imageNumber = session == 0 ? 100 + i : i % 10 + 1;
+        sessionRecorder.record(new Frame(imageNumber, i < 20 ? 5 : 6, ByteBuffer.wrap(new byte[1000]), time, time));
+      }
+      sessionRecorder.close();
+    }
+
+    Recording both = Recording.open(twoSessions);
+    Recording latest = Recording.open(twoSessions, Recording.lastSession(twoSessions));
+    System.out.println(both + ", latest " + latest);
+    if (both.size() != 40 || both.getSessions() != 2 || both.getSession(9) == both.getSession(10)
+        || latest.size() != 30 || latest.getSessions() != 1)
+      throw new Exception("sessions not told apart");
+    for (int stream = 0; stream < 3; stream++)
+    {
+      int found = latest.seekImageNumber(5, stream * 10 + 7);
+      if (found != stream * 10 + 4)
+        throw new Exception("image 5 of stream " + stream + " found at " + found);
+    }
+
+  }// public static void main(String[] args) throws Exception
+
+}
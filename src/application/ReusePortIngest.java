@@ -0,0 +1,155 @@
+package application;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.channels.DatagramChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.function.BiConsumer;
+
+/**
+ * Spreads one data port over several cores. Each socket is bound to the same
+ * port with SO_REUSEPORT and served by its own IngestEngine thread. The kernel
+ * hashes each sender's address onto one socket, so a camera always lands on
+ * the same engine and keeps a single reassembly state.
+ */
+public class ReusePortIngest
+{
+  private final int port;
+  private final List<IngestEngine> engines = new ArrayList<>();
+  private final List<Thread> threads = new ArrayList<>();
+
+  public ReusePortIngest(int port, int numSockets, BiConsumer<CameraStream, Frame> sink) throws IOException
+  {
+    this.port = port;
+    try
+    {
+      for (int i = 0; i < numSockets; i++)
+      {
+        DatagramChannel channel = DatagramChannel.open();
+        IngestEngine engine;
+        try
+        {
+          if (!channel.supportedOptions().contains(StandardSocketOptions.SO_REUSEPORT))
+            throw new IOException("SO_REUSEPORT is not supported on this platform");
+          channel.setOption(StandardSocketOptions.SO_REUSEPORT, true);
+          channel.bind(new InetSocketAddress(port));
+          engine = new IngestEngine(sink);
+        } catch (IOException | RuntimeException e)
+        {
+          channel.close();
+          throw e;
+        }
+        engine.addChannel(channel);
+        engines.add(engine);
+      }
+    } catch (IOException | RuntimeException e)
+    {
+      // nothing has started, so close the sockets bound so far
+      for (IngestEngine engine : engines)
+        engine.close();
+      engines.clear();
+      throw e;
+    }
+  }
+
+  public int getPort()
+  {
+    return port;
+  }
+
+  // one engine per socket
+  public List<IngestEngine> getEngines()
+  {
+    return Collections.unmodifiableList(engines);
+  }
+
+  public List<CameraStream> getCameras()
+  {
+    List<CameraStream> cameras = new ArrayList<>();
+    for (IngestEngine engine : engines)
+      cameras.addAll(engine.getCameras());
+    return cameras;
+  }
+
+  public long getReceivedPackets()
+  {
+    long total = 0;
+    for (IngestEngine engine : engines)
+      total += engine.getReceivedPackets();
+    return total;
+  }
+
+  public long getReceivedBytes()
+  {
+    long total = 0;
+    for (IngestEngine engine : engines)
+      total += engine.getReceivedBytes();
+    return total;
+  }
+
+  public long getCompletedFrames()
+  {
+    long total = 0;
+    for (CameraStream camera : getCameras())
+      total += camera.getNumFrames();
+    return total;
+  }
+
+  public void start()
+  {
+    for (int i = 0; i < engines.size(); i++)
+    {
+      Thread thread = new Thread(engines.get(i), "IngestEngine-" + port + "-" + i);
+      thread.setDaemon(true);
+      thread.start();
+      threads.add(thread);
+    }
+  }
+
+  public void stop() throws InterruptedException
+  {
+    for (IngestEngine engine : engines)
+      engine.stop();
+    for (Thread thread : threads)
+      thread.join();
+    threads.clear();
+  }
+
+  public String toString()
+  {
+    StringBuilder sb = new StringBuilder();
+    sb.append(String.format("port %d: %d packets, %d bytes, %d frames\n", port, getReceivedPackets(),
+        getReceivedBytes(), getCompletedFrames()));
+    for (int i = 0; i < engines.size(); i++)
+    {
+      IngestEngine engine = engines.get(i);
+      sb.append(String.format("  socket %d: %d packets, %d bytes, %d cameras\n", i, engine.getReceivedPackets(),
+          engine.getReceivedBytes(), engine.getCameras().size()));
+    }
+    return sb.toString();
+  }
+
+  public static void main(String[] args) throws Exception
+  {
+    // usage: ReusePortIngest [sockets] [port]
+    int numSockets = args.length > 0 ? Integer.parseInt(args[0]) : Runtime.getRuntime().availableProcessors();
+    int port = args.length > 1 ? Integer.parseInt(args[1]) : StreamReceiver.DATA_PORT;
+
+    ReusePortIngest ingest = new ReusePortIngest(port, numSockets, null);
+    ingest.start();
+
+    while (true)
+    {
+      Thread.sleep(1000);
+      System.out.println("-------------------------------------------");
+      System.out.print(ingest);
+      for (CameraStream camera : ingest.getCameras())
+        System.out.println(camera);
+    }
+
+  }// public static void main(String[] args) throws Exception
+
+}
@@ -0,0 +1,186 @@
+package application;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Writes captured frames to files on a thread of its own, so a slow disk or
+ * network mount never holds up the JavaFX application thread. submit never
+ * blocks: the queue is bounded and a frame that doesn't fit is refused
+ * straight away. Each frame's JPEG bytes are written from the frame's own
+ * buffer without being copied, and the returned future completes once the
+ * file is written or the write has failed.
+ */
+public class SnapshotWriter implements Runnable
+{
+  private static final long POLL_MILLISECONDS = 100;
+
+  private static class Job
+  {
+    final Path file;
+    final Frame frame;
+    final CompletableFuture<Path> done = new CompletableFuture<>();
+
+    Job(Path file, Frame frame)
+    {
+      this.file = file;
+      this.frame = frame;
+    }
+  }
+
+  private final BlockingQueue<Job> queue;
+  private final AtomicLong rejected = new AtomicLong();
+  private volatile long written = 0;
+  private volatile long writtenBytes = 0;
+  private volatile long failed = 0;
+  private volatile boolean running = true;
+
+  public SnapshotWriter(int queueCapacity)
+  {
+    queue = new ArrayBlockingQueue<>(queueCapacity);
+  }
+
+  /**
+   * Queue a frame to be written to a file, creating its directory if need be.
+   * The future fails at once if the queue is full.
+   */
+  public CompletableFuture<Path> submit(Path file, Frame frame)
+  {
+    Job job = new Job(file, frame);
+    if (!running || !queue.offer(job))
+    {
+      rejected.incrementAndGet();
+      job.done.completeExceptionally(new IOException("snapshot queue full, " + file + " not written"));
+    }
+    return job.done;
+  }
+
+  public int getPending()
+  {
+    return queue.size();
+  }
+
+  public long getWritten()
+  {
+    return written;
+  }
+
+  public long getWrittenBytes()
+  {
+    return writtenBytes;
+  }
+
+  public long getFailed()
+  {
+    return failed;
+  }
+
+  public long getRejected()
+  {
+    return rejected.get();
+  }
+
+  // refuse new frames and return from run once the queued ones are written
+  public void stop()
+  {
+    running = false;
+  }
+
+  @Override
+  public void run()
+  {
+    while (running || !queue.isEmpty())
+    {
+      Job job;
+      try
+      {
+        job = queue.poll(POLL_MILLISECONDS, TimeUnit.MILLISECONDS);
+      } catch (InterruptedException e)
+      {
+        break;
+      }
+      if (job != null)
+        write(job);
+    }
+    System.out.println(this);
+  }
+
+  private void write(Job job)
+  {
+    try
+    {
+      Path directory = job.file.toAbsolutePath().getParent();
+      if (directory != null)
+        Files.createDirectories(directory);
+      ByteBuffer data = job.frame.getData();
+      try (FileChannel channel = FileChannel.open(job.file, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+          StandardOpenOption.TRUNCATE_EXISTING))
+      {
+        while (data.hasRemaining())
+          channel.write(data);
+      }
+      written++;
+      writtenBytes += job.frame.getLength();
+      job.done.complete(job.file);
+    } catch (IOException e)
+    {
+      failed++;
+      job.done.completeExceptionally(e);
+    }
+  }
+
+  public String toString()
+  {
+    return String.format("SnapshotWriter: %d written (%d KB), %d failed, %d refused, %d pending", written,
+        writtenBytes >> 10, failed, rejected.get(), queue.size());
+  }
+
+  public static void main(String[] args) throws Exception
+  {
+    // frames queued before the writer starts fill the queue and the rest are
+    // refused, then everything queued must land on disk byte for byte
+    Path directory = Files.createTempDirectory("snapshots");
+    SnapshotWriter writer = new SnapshotWriter(16);
+    java.util.Random random = new java.util.Random(1);
+    java.util.List<byte[]> images = new java.util.ArrayList<>();
+    java.util.List<CompletableFuture<Path>> writes = new java.util.ArrayList<>();
+    for (int i = 0; i < 20; i++)
+    {
+      byte[] jpeg = new byte[1000 + random.nextInt(50000)];
+      random.nextBytes(jpeg);
+      images.add(jpeg);
+      // direct buffers too, as frames from a recording or the ring may be
+      ByteBuffer data = i % 2 == 0 ? ByteBuffer.wrap(jpeg) : ByteBuffer.allocateDirect(jpeg.length).put(jpeg).flip();
+      writes.add(writer.submit(directory.resolve(String.format("sub/frame-%02d.jpg", i)), new Frame(i, 5, data, 0, 0)));
+    }
+
+    Thread thread = new Thread(writer, "SnapshotWriter");
+    thread.start();
+    CompletableFuture.allOf(writes.subList(0, 16).toArray(new CompletableFuture<?>[0])).get(10, TimeUnit.SECONDS);
+    for (int i = 0; i < 20; i++)
+    {
+      boolean refused = writes.get(i).isCompletedExceptionally();
+      if (refused != (i >= 16))
+        throw new Exception("frame " + i + (refused ? " refused" : " accepted"));
+      if (!refused
+          && !java.util.Arrays.equals(Files.readAllBytes(writes.get(i).get()), images.get(i)))
+        throw new Exception("frame " + i + " written wrongly");
+    }
+
+    writer.stop();
+    thread.join();
+    if (writer.getWritten() != 16 || writer.getRejected() != 4)
+      throw new Exception("wrong counts");
+
+  }// public static void main(String[] args) throws Exception
+
+}
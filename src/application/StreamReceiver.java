@@ -0,0 +1,403 @@
+package application;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.DatagramChannel;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.Consumer;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Receives one camera's datagrams, reassembles them into frames and hands the
+ * frames on, without any JavaFX. This is the whole ingest path for headless
+ * recording nodes; the desktop UI wraps one in a VideoStreamListener, which
+ * adds decoding and JavaFX properties on top.
+ *
+ * Frames go to the frame listeners on the receive thread, which must be
+ * quick about it, then to the pre-trigger ring if there is one, then to the
+ * publisher, whose subscribers each get them on a thread of their own. The
+ * counters are plain getters that may be read from any thread, and are also
+ * registered over JMX.
+ */
+public class StreamReceiver implements Runnable, VideoStreamListenerMXBean
+{
+  static final int DATA_PORT = 1235;
+  // the name predates the split from VideoStreamListener, kept for JMX consoles
+  private static final String MBEAN_NAME = "application:type=VideoStreamListener";
+
+  private final int port;
+  private final CameraStream camera;
+  private final FramePublisher publisher;
+  private final List<Consumer<Frame>> frameListeners = new CopyOnWriteArrayList<>();
+  private volatile PreTriggerRing preTrigger = null;
+  private volatile PacketCapture packetCapture = null;
+  private volatile NackRequester nackRequester = null;
+  private volatile boolean running = false;
+
+  public StreamReceiver()
+  {
+    this(DATA_PORT);
+  }
+
+  public StreamReceiver(int port)
+  {
+    this.port = port;
+    camera = new CameraStream("VideoStreamListener", this::frameCompleted);
+    publisher = new FramePublisher();
+  }
+
+  public int getPort()
+  {
+    return port;
+  }
+
+  /**
+   * Called with every reassembled frame on the receive thread, before the
+   * publisher's subscribers get it. Anything slow belongs in a subscriber.
+   */
+  public void addFrameListener(Consumer<Frame> listener)
+  {
+    frameListeners.add(listener);
+  }
+
+  public void removeFrameListener(Consumer<Frame> listener)
+  {
+    frameListeners.remove(listener);
+  }
+
+  // every reassembled frame, still JPEG encoded, for consumers off the receive thread
+  public FramePublisher getFramePublisher()
+  {
+    return publisher;
+  }
+
+  // keep recent frames for captures that reach back before they were asked for
+  public void setPreTriggerRing(PreTriggerRing preTrigger)
+  {
+    this.preTrigger = preTrigger;
+  }
+
+  public PreTriggerRing getPreTriggerRing()
+  {
+    return preTrigger;
+  }
+
+  // copy every datagram received, before it is handled, to a capture log
+  public void setPacketCapture(PacketCapture packetCapture)
+  {
+    this.packetCapture = packetCapture;
+  }
+
+  public PacketCapture getPacketCapture()
+  {
+    return packetCapture;
+  }
+
+  // ask the camera again for packets that go missing, null for no requests
+  public void setNackRequester(NackRequester nackRequester)
+  {
+    this.nackRequester = nackRequester;
+  }
+
+  public NackRequester getNackRequester()
+  {
+    return nackRequester;
+  }
+
+  public PipelineStats getPipelineStats()
+  {
+    return camera.getPipelineStats();
+  }
+
+  // counters, readable from any thread
+
+  public int getPacketNumber()
+  {
+    return camera.getPacketNumber();
+  }
+
+  // camera mode of the last packet
+  public int getResolution()
+  {
+    return camera.getResolution();
+  }
+
+  // frames reassembled since the last reset
+  public int getCompletedFrames()
+  {
+    return camera.getNumFrames();
+  }
+
+  // the last frame reassembled, still JPEG encoded, or null
+  public Frame getLastFrame()
+  {
+    return camera.getLastFrame();
+  }
+
+  @Override
+  public int getImageNumber()
+  {
+    return camera.getImageNumber();
+  }
+
+  @Override
+  public double getFrameRate()
+  {
+    return camera.getFrameRate();
+  }
+
+  @Override
+  public double getBandwidth()
+  {
+    return camera.getBandwidth();
+  }
+
+  @Override
+  public int getDroppedPackets()
+  {
+    return camera.getDroppedPackets();
+  }
+
+  @Override
+  public int getDroppedFrames()
+  {
+    return camera.getDroppedFrames();
+  }
+
+  // dropped packets rebuilt from parity
+  @Override
+  public int getRecoveredPackets()
+  {
+    return camera.getRecoveredPackets();
+  }
+
+  // dropped packets that parity couldn't rebuild
+  @Override
+  public int getUnrecoveredPackets()
+  {
+    return Math.max(0, camera.getDroppedPackets() - camera.getRecoveredPackets());
+  }
+
+  @Override
+  public long getShortPackets()
+  {
+    return getPipelineStats().getDrops(DropReason.SHORT_PACKET);
+  }
+
+  @Override
+  public long getGapDrops()
+  {
+    return getPipelineStats().getDrops(DropReason.GAP);
+  }
+
+  @Override
+  public long getStaleDrops()
+  {
+    return getPipelineStats().getDrops(DropReason.STALE);
+  }
+
+  @Override
+  public long getDecodeFailures()
+  {
+    return getPipelineStats().getDrops(DropReason.DECODE_FAILURE);
+  }
+
+  @Override
+  public boolean isDecodePending()
+  {
+    return getPipelineStats().isDecodePending();
+  }
+
+  @Override
+  public LatencySnapshot getReassemblyLatency()
+  {
+    return getPipelineStats().getReassemblyLatency().getSnapshot();
+  }
+
+  @Override
+  public LatencySnapshot getDecodeLatency()
+  {
+    return getPipelineStats().getDecodeLatency().getSnapshot();
+  }
+
+  @Override
+  public LatencySnapshot getRenderLatency()
+  {
+    return getPipelineStats().getRenderLatency().getSnapshot();
+  }
+
+  @Override
+  public LatencySnapshot getEndToEndLatency()
+  {
+    return getPipelineStats().getEndToEndLatency().getSnapshot();
+  }
+
+  @Override
+  public void resetLatency()
+  {
+    getPipelineStats().resetLatency();
+  }
+
+  public void reset()
+  {
+    camera.reset();
+  }
+
+  public void stop()
+  {
+    running = false;
+  }
+
+  @Override
+  public void run()
+  {
+    running = true;
+    registerMBean();
+
+    try (DatagramChannel channel = DatagramChannel.open())
+    {
+      channel.bind(new InetSocketAddress(port));
+
+      // we know that the arduino can't send more than 2048 bytes in a UDP packet.
+      // the same direct buffer is used for every packet so the loop doesn't allocate
+      ByteBuffer packet = ByteBuffer.allocateDirect(CameraStream.MAX_PACKET_SIZE);
+      packet.order(ByteOrder.LITTLE_ENDIAN);
+
+      while (running)
+      {
+        try
+        {
+          // get the packet
+          packet.clear();
+          channel.receive(packet);
+          packet.flip();
+
+          long received = System.nanoTime();
+          PacketCapture capture = packetCapture;
+          if (capture != null)
+            capture.capture(packet, received);
+          handlePacket(packet, received);
+          camera.getPipelineStats().addReceiveTime(System.nanoTime() - received);
+
+        } catch (Exception e)
+        {
+          System.out.println("StreamReceiver " + e.toString());
+        }
+      } // while(running)
+
+      System.out.println("StreamReceiver exit");
+
+    } catch (IOException e1)
+    {
+      e1.printStackTrace();
+    } finally
+    {
+      publisher.close();
+      unregisterMBean();
+    }
+  }
+
+  private void registerMBean()
+  {
+    try
+    {
+      MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+      ObjectName name = new ObjectName(MBEAN_NAME);
+      if (!server.isRegistered(name))
+        server.registerMBean(this, name);
+    } catch (JMException e)
+    {
+      System.out.println("StreamReceiver " + e.toString());
+    }
+  }
+
+  private void unregisterMBean()
+  {
+    try
+    {
+      MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+      ObjectName name = new ObjectName(MBEAN_NAME);
+      if (server.isRegistered(name))
+        server.unregisterMBean(name);
+    } catch (JMException e)
+    {
+      System.out.println("StreamReceiver " + e.toString());
+    }
+  }
+
+  /**
+   * Process one received datagram, see CameraStream.handlePacket.
+   *
+   * @param currentTime System.nanoTime() when the packet arrived
+   */
+  void handlePacket(ByteBuffer packet, long currentTime)
+  {
+    NackRequester nack = nackRequester;
+    if (nack != null && packet.remaining() >= CameraStream.HEADER_SIZE)
+    {
+      int start = packet.position();
+      byte status = packet.get(start + 8);
+      if ((status & CameraStream.PARITY) == 0)
+        nack.packetReceived(packet.order(ByteOrder.LITTLE_ENDIAN).getInt(start),
+            (status & CameraStream.FIRST_PACKET) != 0, currentTime);
+    }
+    camera.handlePacket(packet, currentTime);
+  }
+
+  private void frameCompleted(Frame frame)
+  {
+    for (Consumer<Frame> listener : frameListeners)
+      listener.accept(frame);
+    PreTriggerRing ring = preTrigger;
+    if (ring != null)
+      ring.write(frame);
+    publisher.submit(frame);
+  }
+
+  public static void main(String[] args) throws Exception
+  {
+    // check that the steady state receive path doesn't allocate. packets are
+    // handed straight to handlePacket so no socket is needed. images are
+    // started but never ended so no frame completes; each new image pushes
+    // the oldest unfinished one out of the assembler.
+    final int PACKETS_PER_IMAGE = 8;
+    final int WARMUP_PACKETS = 20000;
+    final int MEASURED_PACKETS = 400;
+
+    StreamReceiver receiver = new StreamReceiver();
+    ByteBuffer packet = ByteBuffer.allocateDirect(1024);
+    packet.order(ByteOrder.LITTLE_ENDIAN);
+    com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+    long threadId = Thread.currentThread().getId();
+
+    long allocated = 0;
+    for (int i = 0; i < WARMUP_PACKETS + MEASURED_PACKETS; i++)
+    {
+      if (i == WARMUP_PACKETS)
+        allocated = threads.getThreadAllocatedBytes(threadId);
+
+      int packetNumber = i + 1;
+      int imageNumber = 1 + i / PACKETS_PER_IMAGE;
+      byte status = (i % PACKETS_PER_IMAGE == 0) ? CameraStream.START_OF_IMAGE : 0;
+      packet.clear();
+      packet.putInt(0, packetNumber);
+      packet.putInt(4, imageNumber);
+      packet.put(8, status);
+      receiver.handlePacket(packet, System.nanoTime());
+    }
+    allocated = threads.getThreadAllocatedBytes(threadId) - allocated;
+
+    System.out.println("allocated " + allocated + " bytes in " + MEASURED_PACKETS + " packets");
+    if (allocated != 0)
+      throw new Exception("steady state receive path allocated " + allocated + " bytes");
+
+  }// public static void main(String[] args) throws Exception
+
+}
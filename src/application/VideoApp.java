@@ -1,17 +1,19 @@
 package application;
 
-import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.OutputStream;
-import java.io.PrintStream;
 import java.net.InetSocketAddress;
-import java.net.Socket;
-import java.nio.ByteBuffer;
-import java.nio.ByteOrder;
-
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ForkJoinPool;
+
+import javafx.animation.AnimationTimer;
+import javafx.animation.PauseTransition;
 import javafx.application.Application;
 import javafx.application.Platform;
-import javafx.beans.property.SimpleDoubleProperty;
+import javafx.beans.binding.Bindings;
 import javafx.beans.property.SimpleIntegerProperty;
 import javafx.event.ActionEvent;
 import javafx.event.EventHandler;
@@ -20,30 +22,37 @@ import javafx.scene.Scene;
 import javafx.scene.control.Button;
 import javafx.scene.control.ComboBox;
 import javafx.scene.control.Label;
+import javafx.scene.control.Slider;
 import javafx.scene.control.Spinner;
 import javafx.scene.control.TextField;
+import javafx.scene.control.ToggleButton;
 import javafx.scene.layout.BorderPane;
 import javafx.scene.layout.FlowPane;
 import javafx.scene.layout.GridPane;
 import javafx.scene.layout.HBox;
 import javafx.stage.Stage;
+import javafx.util.Duration;
 
 public class VideoApp extends Application
 {
-  private static final int COMMAND_PORT = 1234;
-  private static final int CONNECT_TIMEOUT = 3000;
-  private static final int READ_TIMEOUT = 3000;
+  private static final int RECORDING_BUFFER_FRAMES = 64;
+  private static final String CAPTURE_DIRECTORY = "captures";
+  private static final int PRE_TRIGGER_SLOTS = 1024;
+  private static final int SNAPSHOT_QUEUE_CAPACITY = 1024;
+  private static final int BURST_BUFFER_FRAMES = 256;
 
   private int bgImgCount = 0;
   private int fgImgCount = 0;
-
-  private static void showCommand(PrintStream ps, String host, int port, byte[] command)
-  {
-    ps.print("Send (" + host + ":" + port + ") --> ");
-    for (byte b : command)
-      ps.printf("%02X ", 0xff & b);
-    ps.println();
-  }
+  private int burstCount = 0;
+  private FrameRecorder recorder = null;
+  private String recordingDirectory = "recordings";
+  private PlaybackSource playback = null;
+  private AdaptiveController controller = null;
+  private FrameDecoder playbackDecoder = null;
+  private double preTriggerSeconds = 0;
+  private double postTriggerSeconds = 0;
+  private SnapshotWriter snapshotWriter = new SnapshotWriter(SNAPSHOT_QUEUE_CAPACITY);
+  private Label captureStatus = new Label("");
 
   @Override
   public void start(Stage primaryStage) throws Exception
@@ -84,6 +93,20 @@ public class VideoApp extends Application
     packetSize.setEditable(true);
 
     VideoStreamListener videoStreamListener = new VideoStreamListener();
+    StreamReceiver receiver = videoStreamListener.getReceiver();
+
+    // recordings are shared with the headless RecorderDaemon
+    recordingDirectory = PropertyManager.thePropertyManager.getProperty("recordings", recordingDirectory);
+    long segmentBytes = Long.parseLong(PropertyManager.thePropertyManager.getProperty("segmentmegabytes", "256")) << 20;
+    long segmentMilliseconds = Long.parseLong(PropertyManager.thePropertyManager.getProperty("segmentminutes", "10"))
+        * 60000;
+
+    // captures save the frames around the click, not just the last one
+    preTriggerSeconds = Double.parseDouble(PropertyManager.thePropertyManager.getProperty("pretrigger", "0"));
+    postTriggerSeconds = Double.parseDouble(PropertyManager.thePropertyManager.getProperty("posttrigger", "0"));
+    int preTriggerMemory = Integer.parseInt(PropertyManager.thePropertyManager.getProperty("pretriggermemory", "32"));
+    if (preTriggerSeconds > 0 || postTriggerSeconds > 0)
+      receiver.setPreTriggerRing(new PreTriggerRing(preTriggerMemory << 20, PRE_TRIGGER_SLOTS));
 
     // reset button
     Button rstBtn = new Button();
@@ -97,35 +120,10 @@ public class VideoApp extends Application
         videoStreamListener.reset();
         fgImgCount = 0;
         bgImgCount = 0;
-        /*
-         * From desktop to arduino. 1-byte mode corresponding to OV5642 resolutions
-         * 4-byte packet length. this is for the arduino-to-desktop UDP packet lengths.
-         */
-        ByteBuffer buffer = ByteBuffer.allocate(5);
-        buffer.order(ByteOrder.LITTLE_ENDIAN);
-
-        Object cameraMode = comboBox.getValue();
-        if (cameraMode instanceof OV2640)
-        {
-          buffer.put((byte) ((OV2640) cameraMode).getMode());
-        } else if (cameraMode instanceof OV5642)
-        {
-          buffer.put((byte) ((OV5642) cameraMode).getMode());
-        }
-
-        buffer.putInt(packetSize.getValue());
-        byte[] command = buffer.array();
-        showCommand(System.out, hostIP.getText(), COMMAND_PORT, command);
-
-        try (Socket socket = new Socket())
+        try
         {
-          socket.connect(new InetSocketAddress(hostIP.getText(), COMMAND_PORT), CONNECT_TIMEOUT);
-          socket.setTcpNoDelay(false);
-          socket.setSoTimeout(READ_TIMEOUT);
-          // InputStream input = socket.getInputStream();
-          // BufferedReader reader = new BufferedReader(new InputStreamReader(input));
-          OutputStream output = socket.getOutputStream();
-          output.write(command);
+          CameraCommand.send(new InetSocketAddress(hostIP.getText(), CameraCommand.COMMAND_PORT),
+              ((CameraMode) comboBox.getValue()).getMode(), packetSize.getValue());
         } catch (Exception ex)
         {
           System.out.println("I/O error: " + ex.getMessage());
@@ -133,8 +131,16 @@ public class VideoApp extends Application
       }
     });
 
-    // bind the video panel image to the video stream listener image
-    videoPanel.imageProperty().bind(videoStreamListener.imageProperty());
+    // decoded frames go straight into the video panel's pixel buffers
+    PixelBufferRenderer renderer = new PixelBufferRenderer();
+    videoPanel.setRenderer(renderer);
+    videoStreamListener.setRenderer(renderer);
+
+    // decode at the size of the panel rather than the camera's full resolution
+    CameraMode[] cameraModes = camera.equals("OV2640") ? OV2640.values() : OV5642.values();
+    videoStreamListener.setCameraModes(cameraModes);
+    videoPanel.widthProperty().addListener(e -> setDisplaySize(videoStreamListener, videoPanel));
+    videoPanel.heightProperty().addListener(e -> setDisplaySize(videoStreamListener, videoPanel));
 
     Label packetLabel = new Label("Packet Number: ");
     Label packetNumber = new Label("");
@@ -155,22 +161,7 @@ public class VideoApp extends Application
       @Override
       public void handle(ActionEvent event)
       {
-        if (videoStreamListener.lastImageProperty() == null)
-        {
-          return;
-        }
-        String fileName = "images/" + mode.getText() + "-bg-" + String.format("%04d", bgImgCount++) + ".jpg";
-        try
-        {
-          FileOutputStream out = new FileOutputStream(fileName);
-          out.write(videoStreamListener.lastImageProperty());
-          out.close();
-        } catch (IOException ex)
-        {
-
-          System.out.println("I/O error: " + ex.getMessage());
-        }
-
+        capture(receiver, "images/" + mode.getText() + "-bg-" + String.format("%04d", bgImgCount++));
       }
 
     });
@@ -183,102 +174,319 @@ public class VideoApp extends Application
       @Override
       public void handle(ActionEvent event)
       {
-        if (videoStreamListener.lastImageProperty() == null)
-        {
-          return;
-        }
-        String fileName = "images/" + mode.getText() + "-fg-" + String.format("%04d", fgImgCount++) + ".jpg";
-        try
-        {
-          FileOutputStream out = new FileOutputStream(fileName);
-          out.write(videoStreamListener.lastImageProperty());
-          out.close();
-        } catch (IOException ex)
-        {
-
-          System.out.println("I/O error: " + ex.getMessage());
-        }
+        capture(receiver, "images/" + mode.getText() + "-fg-" + String.format("%04d", fgImgCount++));
       }
 
     });
 
-    videoStreamListener.packetNumberProperty().addListener(e ->
+    // burst button, every frame for a while at full rate
+    double burstSeconds = Double.parseDouble(PropertyManager.thePropertyManager.getProperty("burst", "5"));
+    Button burstBtn = new Button();
+    burstBtn.setText("Burst");
+    burstBtn.setOnAction(new EventHandler<ActionEvent>()
     {
-      Platform.runLater(new Runnable()
+      @Override
+      public void handle(ActionEvent event)
       {
+        BurstCapture burst = new BurstCapture(snapshotWriter,
+            "images/" + mode.getText() + "-burst-" + String.format("%04d", burstCount++), burstSeconds);
+        receiver.getFramePublisher().subscribe(burst, BURST_BUFFER_FRAMES,
+            FramePublisher.DropPolicy.DROP_NEWEST);
+        burstBtn.setDisable(true);
+        captureStatus.setText("Burst " + burst.getName());
+
+        // finish even if the stream has stopped
+        PauseTransition wait = new PauseTransition(Duration.seconds(burstSeconds));
+        wait.setOnFinished(e -> burst.finish());
+        wait.play();
+        burst.getCompletion().thenAccept(b -> Platform.runLater(() ->
+        {
+          captureStatus.setText(b.toString());
+          burstBtn.setDisable(false);
+        }));
+      }
+    });
 
-        @Override
-        public void run()
+    // record button, frames are written on the publisher's thread
+    ToggleButton recBtn = new ToggleButton();
+    recBtn.setText("Record");
+    recBtn.setOnAction(new EventHandler<ActionEvent>()
+    {
+      @Override
+      public void handle(ActionEvent event)
+      {
+        if (recBtn.isSelected())
         {
-          packetNumber.setText("" + ((SimpleIntegerProperty) e).intValue());
+          try
+          {
+            recorder = new FrameRecorder(Paths.get(recordingDirectory), segmentBytes, segmentMilliseconds);
+            receiver.getFramePublisher().subscribe(recorder, RECORDING_BUFFER_FRAMES,
+                FramePublisher.DropPolicy.DROP_NEWEST);
+          } catch (IOException ex)
+          {
+            System.out.println("I/O error: " + ex.getMessage());
+            recBtn.setSelected(false);
+          }
+        } else
+          stopRecording();
+      }
+    });
 
-        }
-      });
+    // playback controls, the scrub bar is in seconds from the start of the
+    // recording
+    Slider scrub = new Slider(0, 1, 0);
+    scrub.setDisable(true);
+    scrub.valueProperty().addListener(e ->
+    {
+      if (playback != null && (scrub.isValueChanging() || scrub.isPressed()))
+        playback.seekTime(playback.getRecording().getStartTime() + (long) (1e9 * scrub.getValue()));
     });
 
-    videoStreamListener.imageNumberProperty().addListener(e ->
+    ComboBox<Double> speed = new ComboBox<>();
+    speed.getItems().addAll(0.25, 0.5, 1.0, 2.0, 4.0, 8.0);
+    speed.setValue(1.0);
+    speed.setDisable(true);
+    speed.setOnAction(e ->
     {
-      Platform.runLater(new Runnable()
+      if (playback != null)
       {
+        playback.setSpeed(speed.getValue());
+        playback.resume();
+      }
+    });
 
-        @Override
-        public void run()
-        {
-          imageNumber.setText("" + ((SimpleIntegerProperty) e).intValue());
+    Button stepBackBtn = new Button("<");
+    stepBackBtn.setDisable(true);
+    stepBackBtn.setOnAction(e ->
+    {
+      if (playback != null)
+        playback.step(-1);
+    });
 
-        }
-      });
+    Button stepBtn = new Button(">");
+    stepBtn.setDisable(true);
+    stepBtn.setOnAction(e ->
+    {
+      if (playback != null)
+        playback.step(1);
     });
 
-    videoStreamListener.frameRateProperty().addListener(e ->
+    // play button, recorded frames replace the live ones in the video panel
+    // until it is released
+    ToggleButton playBtn = new ToggleButton();
+    playBtn.setText("Play");
+    playBtn.setOnAction(new EventHandler<ActionEvent>()
     {
-      Platform.runLater(new Runnable()
+      @Override
+      public void handle(ActionEvent event)
       {
+        if (playBtn.isSelected())
+        {
+          try
+          {
+            // the latest session, so the scrub bar isn't mostly the time
+            // between sessions
+            Path directory = Paths.get(recordingDirectory);
+            Recording recording = Recording.open(directory, Recording.lastSession(directory));
+            System.out.println(recording);
+            if (recording.size() == 0)
+            {
+              playBtn.setSelected(false);
+              return;
+            }
+
+            playbackDecoder = new FrameDecoder(new PipelineStats());
+            playbackDecoder.setCameraModes(cameraModes);
+            playbackDecoder.setDisplaySize((int) videoPanel.getWidth(), (int) videoPanel.getHeight());
+            // the live decoder lets go of the renderer before playback
+            // draws into it, and has nothing to decode meanwhile
+            videoStreamListener.pauseDecoding();
+            videoStreamListener.setRenderer(null);
+            playbackDecoder.setRenderer(renderer);
+
+            playback = new PlaybackSource(recording, playbackDecoder::offer, playbackDecoder::isReady);
+            playback.setSpeed(speed.getValue());
+            new Thread(playbackDecoder, "PlaybackDecoder").start();
+            new Thread(playback, "PlaybackSource").start();
+
+            scrub.setMax(1e-9 * (recording.getEndTime() - recording.getStartTime()));
+            scrub.setValue(0);
+          } catch (IOException ex)
+          {
+            System.out.println("I/O error: " + ex.getMessage());
+            playBtn.setSelected(false);
+          }
+        } else
+          stopPlayback(videoStreamListener, renderer);
+
+        boolean playing = playback != null;
+        scrub.setDisable(!playing);
+        speed.setDisable(!playing);
+        stepBackBtn.setDisable(!playing);
+        stepBtn.setDisable(!playing);
+      }
+    });
 
-        @Override
-        public void run()
+    // packet capture button, every datagram as received so it can be replayed
+    ToggleButton capBtn = new ToggleButton();
+    capBtn.setText("Capture Packets");
+    capBtn.setOnAction(new EventHandler<ActionEvent>()
+    {
+      @Override
+      public void handle(ActionEvent event)
+      {
+        if (capBtn.isSelected())
+        {
+          try
+          {
+            receiver.setPacketCapture(new PacketCapture(
+                Paths.get(CAPTURE_DIRECTORY, "packets-" + System.currentTimeMillis() + ".bin")));
+          } catch (IOException ex)
+          {
+            System.out.println("I/O error: " + ex.getMessage());
+            capBtn.setSelected(false);
+          }
+        } else
+          stopPacketCapture(receiver);
+      }
+    });
+
+    // motion button, live background subtraction with the foreground drawn
+    // over the video
+    BackgroundSubtractor subtractor = new BackgroundSubtractor(ForkJoinPool.commonPool(),
+        Double.parseDouble(PropertyManager.thePropertyManager.getProperty("backgroundrate", "0.05")),
+        Integer.parseInt(PropertyManager.thePropertyManager.getProperty("foregroundthreshold", "25")));
+    PixelBufferRenderer overlay = new PixelBufferRenderer();
+    Label motionLabel = new Label("Motion: ");
+    Label motion = new Label("");
+    ToggleButton motionBtn = new ToggleButton();
+    motionBtn.setText("Motion");
+    motionBtn.setOnAction(new EventHandler<ActionEvent>()
+    {
+      @Override
+      public void handle(ActionEvent event)
+      {
+        if (motionBtn.isSelected())
+        {
+          subtractor.reset();
+          videoStreamListener.setBackgroundSubtractor(subtractor, overlay);
+          videoPanel.setOverlay(overlay);
+        } else
         {
-          frameRate.setText(String.format("%3.3f", ((SimpleDoubleProperty) e).doubleValue()));
+          videoStreamListener.setBackgroundSubtractor(null, null);
+          videoPanel.setOverlay(null);
+          motion.setText("");
+          System.out.println(subtractor);
         }
-      });
+      }
     });
 
-    videoStreamListener.bandwidthProperty().addListener(e ->
+    // NACK button, ask the camera again for lost packets. the firmware has to
+    // understand NACK commands
+    long nackDelay = Long.parseLong(PropertyManager.thePropertyManager.getProperty("nackdelay", "2"));
+    long nackRetry = Long.parseLong(PropertyManager.thePropertyManager.getProperty("nackretry", "20"));
+    long nackBudget = Long.parseLong(PropertyManager.thePropertyManager.getProperty("nackbudget", "100"));
+    ToggleButton nackBtn = new ToggleButton();
+    nackBtn.setText("NACK");
+    nackBtn.setOnAction(new EventHandler<ActionEvent>()
     {
-      Platform.runLater(new Runnable()
+      @Override
+      public void handle(ActionEvent event)
       {
+        if (nackBtn.isSelected())
+        {
+          NackRequester nack = new NackRequester(new InetSocketAddress(hostIP.getText(), CameraCommand.COMMAND_PORT),
+              nackDelay, nackRetry, nackBudget);
+          Thread nackThread = new Thread(nack, "NackRequester");
+          nackThread.setDaemon(true);
+          nackThread.start();
+          receiver.setNackRequester(nack);
+        } else
+          stopNack(receiver);
+      }
+    });
 
-        @Override
-        public void run()
+    // auto button, the packet size and resolution follow the link. the mode
+    // and packet size controls show what was last sent
+    double targetLoss = Double.parseDouble(PropertyManager.thePropertyManager.getProperty("targetloss", "0.01"));
+    long adaptMilliseconds = (long) (1000
+        * Double.parseDouble(PropertyManager.thePropertyManager.getProperty("adaptseconds", "2")));
+    boolean adaptResolution = Boolean
+        .parseBoolean(PropertyManager.thePropertyManager.getProperty("adaptresolution", "true"));
+    ToggleButton autoBtn = new ToggleButton();
+    autoBtn.setText("Auto");
+    autoBtn.setOnAction(new EventHandler<ActionEvent>()
+    {
+      @Override
+      public void handle(ActionEvent event)
+      {
+        if (autoBtn.isSelected())
         {
-          // convert from Bytes per second to KBytes per second
-          bandwidth.setText(String.format("%3.2f", 0.001 * ((SimpleDoubleProperty) e).doubleValue()));
-        }
-      });
+          InetSocketAddress address = new InetSocketAddress(hostIP.getText(), CameraCommand.COMMAND_PORT);
+          controller = new AdaptiveController(receiver, cameraModes, (cameraMode, size) ->
+          {
+            CameraCommand.send(address, cameraMode.getMode(), size);
+            Platform.runLater(() ->
+            {
+              // by index, setValue on the raw combo box is an unchecked call
+              comboBox.getSelectionModel().select(comboBox.getItems().indexOf(cameraMode));
+              packetSize.getValueFactory().setValue(size);
+            });
+          }, targetLoss, adaptMilliseconds, adaptResolution);
+          controller.setStart((CameraMode) comboBox.getValue(), packetSize.getValue());
+          Thread controllerThread = new Thread(controller, "AdaptiveController");
+          controllerThread.setDaemon(true);
+          controllerThread.start();
+        } else
+          stopController();
+      }
     });
 
+    // the labels follow the listener's properties, which are refreshed once per
+    // pulse below rather than on every packet
+    packetNumber.textProperty().bind(videoStreamListener.packetNumberProperty().asString());
+    imageNumber.textProperty().bind(videoStreamListener.imageNumberProperty().asString());
+    frameRate.textProperty().bind(Bindings.format("%3.3f", videoStreamListener.frameRateProperty()));
+    // convert from Bytes per second to KBytes per second
+    bandwidth.textProperty().bind(Bindings.format("%3.2f", videoStreamListener.bandwidthProperty().multiply(0.001)));
+
     videoStreamListener.resolutionProperty().addListener(e ->
     {
       System.out.println(e);
-      Platform.runLater(new Runnable()
+      Object cameraMode = comboBox.getValue();
+      if (e == null)
+      {
+        mode.setText("null");
+      } else if (cameraMode instanceof OV2640)
+      {
+        mode.setText(OV2640.valueOf(((SimpleIntegerProperty) e).get()).getName());
+      } else if (cameraMode instanceof OV5642)
       {
-        @Override
-        public void run()
+        mode.setText(OV5642.valueOf(((SimpleIntegerProperty) e).get()).getName());
+      }
+    });
+
+    AnimationTimer statisticsTimer = new AnimationTimer()
+    {
+      @Override
+      public void handle(long now)
+      {
+        videoStreamListener.updateProperties();
+        if (motionBtn.isSelected())
+          motion.setText(String.format("%.3f", subtractor.getMotionScore()));
+
+        // the scrub bar follows playback unless it is being dragged
+        PlaybackSource source = playback;
+        if (source != null && !scrub.isValueChanging() && !scrub.isPressed())
         {
-          Object cameraMode = comboBox.getValue();
-          if (e == null)
-          {
-            mode.setText("null");
-          } else if (cameraMode instanceof OV2640)
-          {
-            mode.setText(OV2640.valueOf(((SimpleIntegerProperty) e).get()).getName());
-          } else if (cameraMode instanceof OV5642)
-          {
-            mode.setText(OV5642.valueOf(((SimpleIntegerProperty) e).get()).getName());
-          }
+          int frame = source.getLastPlayed();
+          if (frame >= 0)
+            scrub.setValue(
+                1e-9 * (source.getRecording().getTimestamp(frame) - source.getRecording().getStartTime()));
         }
-      });
-    });
+      }
+    };
+    statisticsTimer.start();
 
     GridPane topPane = new GridPane();
     topPane.hgapProperty().set(10);
@@ -315,6 +523,44 @@ public class VideoApp extends Application
     hbox.getChildren().add(fgBtn);
     topPane.add(hbox, 5, 0);
 
+    hbox = new HBox();
+    hbox.setAlignment(Pos.CENTER);
+    hbox.getChildren().add(burstBtn);
+    topPane.add(hbox, 6, 0);
+
+    hbox = new HBox();
+    hbox.setAlignment(Pos.CENTER);
+    hbox.getChildren().add(recBtn);
+    topPane.add(hbox, 7, 0);
+
+    hbox = new HBox();
+    hbox.setAlignment(Pos.CENTER);
+    hbox.getChildren().add(capBtn);
+    topPane.add(hbox, 8, 0);
+
+    hbox = new HBox();
+    hbox.setAlignment(Pos.CENTER);
+    hbox.getChildren().add(motionBtn);
+    topPane.add(hbox, 9, 0);
+
+    hbox = new HBox();
+    hbox.setAlignment(Pos.CENTER);
+    hbox.getChildren().add(nackBtn);
+    topPane.add(hbox, 10, 0);
+
+    hbox = new HBox();
+    hbox.setAlignment(Pos.CENTER);
+    hbox.getChildren().add(autoBtn);
+    topPane.add(hbox, 11, 0);
+
+    hbox = new HBox();
+    hbox.setAlignment(Pos.CENTER);
+    hbox.getChildren().add(playBtn);
+    hbox.getChildren().add(stepBackBtn);
+    hbox.getChildren().add(stepBtn);
+    hbox.getChildren().add(speed);
+    topPane.add(hbox, 12, 0);
+
     GridPane bottomPane = new GridPane();
     FlowPane pane = new FlowPane();
     pane.getChildren().add(packetLabel);
@@ -341,15 +587,35 @@ public class VideoApp extends Application
     pane.getChildren().add(mode);
     bottomPane.add(pane, 4, 0);
 
+    pane = new FlowPane();
+    pane.getChildren().add(motionLabel);
+    pane.getChildren().add(motion);
+    bottomPane.add(pane, 5, 0);
+    bottomPane.add(captureStatus, 6, 0);
+
+    scrub.setPrefWidth(400);
+    bottomPane.add(scrub, 0, 1, 5, 1);
+
     rootPane.setTop(topPane);
     rootPane.setBottom(bottomPane);
 
     Thread thread = new Thread(videoStreamListener);
     thread.start();
 
+    Thread snapshotThread = new Thread(snapshotWriter, "SnapshotWriter");
+    snapshotThread.start();
+
     primaryStage.setOnCloseRequest(e ->
     {
       System.out.println(e);
+      statisticsTimer.stop();
+      stopRecording();
+      stopPlayback(videoStreamListener, renderer);
+      stopPacketCapture(receiver);
+      stopNack(receiver);
+      stopController();
+      // queued snapshots are still written before the writer exits
+      snapshotWriter.stop();
       videoStreamListener.stop();
       thread.interrupt();
     });
@@ -358,6 +624,117 @@ public class VideoApp extends Application
 
   }
 
+  /**
+   * Save the frames from preTriggerSeconds before now to postTriggerSeconds
+   * after, once the latter have arrived, as name-000.jpg, name-001.jpg and so
+   * on. Without a pre-trigger ring only the last frame is saved, as name.jpg.
+   * Files are written by the snapshot writer and the outcome shown in the
+   * capture status.
+   */
+  private void capture(StreamReceiver receiver, String name)
+  {
+    PreTriggerRing ring = receiver.getPreTriggerRing();
+    if (ring == null)
+    {
+      Frame frame = receiver.getLastFrame();
+      if (frame != null)
+        save(name, List.of(frame), name + ".jpg");
+      return;
+    }
+
+    long trigger = System.nanoTime();
+    PauseTransition wait = new PauseTransition(Duration.seconds(postTriggerSeconds));
+    wait.setOnFinished(e ->
+    {
+      List<Frame> frames = ring.snapshot(trigger - (long) (1e9 * preTriggerSeconds),
+          trigger + (long) (1e9 * postTriggerSeconds));
+      save(name, frames, name + "-%03d.jpg");
+    });
+    wait.play();
+  }
+
+  // pattern is a file name, formatted with the frame's index when there are several
+  private void save(String name, List<Frame> frames, String pattern)
+  {
+    List<CompletableFuture<Path>> writes = new ArrayList<>();
+    for (int i = 0; i < frames.size(); i++)
+      writes.add(snapshotWriter.submit(Paths.get(String.format(pattern, i)), frames.get(i)));
+
+    CompletableFuture.allOf(writes.toArray(new CompletableFuture<?>[0])).whenComplete((v, e) ->
+    {
+      String status = e == null ? "Saved " + frames.size() + " frames to " + name
+          : "Capture " + name + " failed: " + e.getCause().getMessage();
+      System.out.println(status);
+      Platform.runLater(() -> captureStatus.setText(status));
+    });
+  }
+
+  // the rest of the capture is written out in the background
+  private static void stopPacketCapture(StreamReceiver receiver)
+  {
+    PacketCapture capture = receiver.getPacketCapture();
+    receiver.setPacketCapture(null);
+    if (capture != null)
+      new Thread(capture::close, "PacketCapture close").start();
+  }
+
+  // closing forces the last frames to disk, so it is done in the background
+  private void stopRecording()
+  {
+    FrameRecorder closing = recorder;
+    recorder = null;
+    if (closing != null)
+      new Thread(() ->
+      {
+        closing.close();
+        System.out.println(closing);
+      }, "FrameRecorder close").start();
+  }
+
+  private void stopController()
+  {
+    if (controller == null)
+      return;
+    controller.stop();
+    System.out.println(controller);
+    controller = null;
+  }
+
+  private static void stopNack(StreamReceiver receiver)
+  {
+    NackRequester nack = receiver.getNackRequester();
+    receiver.setNackRequester(null);
+    if (nack != null)
+    {
+      nack.stop();
+      System.out.println(nack);
+    }
+  }
+
+  private void setDisplaySize(VideoStreamListener videoStreamListener, VideoPanel videoPanel)
+  {
+    int width = (int) videoPanel.getWidth();
+    int height = (int) videoPanel.getHeight();
+    videoStreamListener.setDisplaySize(width, height);
+    if (playbackDecoder != null)
+      playbackDecoder.setDisplaySize(width, height);
+  }
+
+  // hand the video panel back to the live stream
+  private void stopPlayback(VideoStreamListener videoStreamListener, PixelBufferRenderer renderer)
+  {
+    if (playback == null)
+      return;
+    playback.stop();
+    playbackDecoder.pause();
+    playbackDecoder.stop();
+    System.out.println(playback);
+    playback = null;
+    playbackDecoder = null;
+    videoStreamListener.setRenderer(renderer);
+    videoStreamListener.resumeDecoding();
+  }
+
   public static void main(String[] args)
   {
     launch(args);
@@ -1,9 +1,11 @@
 package application;
 
+import javafx.animation.AnimationTimer;
 import javafx.beans.property.SimpleObjectProperty;
 import javafx.scene.canvas.Canvas;
 import javafx.scene.canvas.GraphicsContext;
 import javafx.scene.image.Image;
+import javafx.scene.image.WritableImage;
 import javafx.scene.layout.Pane;
 import javafx.scene.paint.Color;
 
@@ -12,36 +14,142 @@ public class VideoPanel extends Pane
   private Canvas canvas;
   private static final Color BACKGROUND_GREY = new Color(47.0 / 255, 47.0 / 255, 47.0 / 255, 1.0);
   private SimpleObjectProperty<Image> image;
+  private PixelBufferRenderer renderer = null;
+  private Image shown = null;
+  private PixelBufferRenderer overlay = null;
+  private Image shownOverlay = null;
+
+  // repaint on the next pulse
+  private boolean dirty = true;
+
+  // where the image is drawn, kept until the panel or image size changes
+  private double imageWidth = 0;
+  private double imageHeight = 0;
+  private double panelWidth = 0;
+  private double panelHeight = 0;
+  private double drawX = 0;
+  private double drawY = 0;
+  private double drawWidth = 0;
+  private double drawHeight = 0;
+
   public VideoPanel()
   {
     canvas = new Canvas();
     image = new SimpleObjectProperty<>();
-    image.addListener(e -> update());
+    image.addListener(e -> dirty = true);
     this.getChildren().add(canvas);
     canvas.widthProperty().bind(this.widthProperty());
     canvas.heightProperty().bind(this.heightProperty());
-    canvas.widthProperty().addListener(e -> update());
-    canvas.heightProperty().addListener(e -> update());
+    canvas.widthProperty().addListener(e -> dirty = true);
+    canvas.heightProperty().addListener(e -> dirty = true);
+
+    AnimationTimer timer = new AnimationTimer()
+    {
+      @Override
+      public void handle(long now)
+      {
+        update();
+      }
+    };
+    timer.start();
   }
-  
+
   public SimpleObjectProperty<Image> imageProperty()
   {
     return image;
   }
-  
-  private void update ()
+
+  /**
+   * Paint frames from a PixelBufferRenderer instead of the image property.
+   * Pass null to go back to the image property.
+   */
+  public void setRenderer(PixelBufferRenderer renderer)
+  {
+    this.renderer = renderer;
+    dirty = true;
+  }
+
+  /**
+   * Draw frames from a second renderer over the image, scaled to fit the
+   * same place, e.g. a foreground mask. Pass null to remove it.
+   */
+  public void setOverlay(PixelBufferRenderer overlay)
+  {
+    this.overlay = overlay;
+    shownOverlay = null;
+    dirty = true;
+  }
+
+  private void update()
   {
+    if (renderer != null)
+    {
+      WritableImage next = renderer.swap();
+      if (next != null)
+      {
+        shown = next;
+        dirty = true;
+      }
+    } else if (dirty)
+    {
+      shown = image.get();
+    }
+    if (overlay != null)
+    {
+      WritableImage next = overlay.swap();
+      if (next != null)
+      {
+        shownOverlay = next;
+        dirty = true;
+      }
+    }
+
+    if (!dirty)
+      return;
+    dirty = false;
+
     GraphicsContext gc = canvas.getGraphicsContext2D();
     double width = this.getWidth();
     double height = this.getHeight();
-    
-    if(image.get() == null)
+
+    if (shown == null)
     {
       gc.clearRect(0, 0, width, height);
       gc.setFill(BACKGROUND_GREY);
       gc.fillRect(0, 0, width, height);
+      return;
+    }
+
+    if (layoutChanged(shown, width, height))
+    {
+      // the letterbox bars only need painting when the layout moves
+      gc.setFill(BACKGROUND_GREY);
+      gc.fillRect(0, 0, width, height);
     }
-    else
-      gc.drawImage(image.get(), 0, 0, width, height);
-  }  
+    gc.drawImage(shown, drawX, drawY, drawWidth, drawHeight);
+    if (shownOverlay != null)
+      gc.drawImage(shownOverlay, drawX, drawY, drawWidth, drawHeight);
+    if (renderer != null)
+      renderer.painted();
+  }
+
+  private boolean layoutChanged(Image img, double width, double height)
+  {
+    if (img.getWidth() == imageWidth && img.getHeight() == imageHeight && width == panelWidth
+        && height == panelHeight)
+      return false;
+
+    imageWidth = img.getWidth();
+    imageHeight = img.getHeight();
+    panelWidth = width;
+    panelHeight = height;
+
+    // fit the image inside the panel, keeping its aspect ratio
+    double scale = Math.min(width / imageWidth, height / imageHeight);
+    drawWidth = imageWidth * scale;
+    drawHeight = imageHeight * scale;
+    drawX = 0.5 * (width - drawWidth);
+    drawY = 0.5 * (height - drawHeight);
+    return true;
+  }
 }
@@ -0,0 +1,42 @@
+package application;
+
+/**
+ * Health of the video stream as seen over JMX. Latencies are in
+ * milliseconds.
+ */
+public interface VideoStreamListenerMXBean
+{
+  int getImageNumber();
+
+  double getFrameRate();
+
+  double getBandwidth();
+
+  int getDroppedPackets();
+
+  int getDroppedFrames();
+
+  int getRecoveredPackets();
+
+  int getUnrecoveredPackets();
+
+  long getShortPackets();
+
+  long getGapDrops();
+
+  long getStaleDrops();
+
+  long getDecodeFailures();
+
+  boolean isDecodePending();
+
+  LatencySnapshot getReassemblyLatency();
+
+  LatencySnapshot getDecodeLatency();
+
+  LatencySnapshot getRenderLatency();
+
+  LatencySnapshot getEndToEndLatency();
+
+  void resetLatency();
+}
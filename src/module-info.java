@@ -4,4 +4,8 @@ module arduino_video
    requires transitive javafx.base;
    requires transitive javafx.controls;
    requires transitive javafx.graphics;
+   requires java.management;
+   requires jdk.management;
+   requires jdk.jfr;
+   requires java.desktop;
 }
\ No newline at end of file
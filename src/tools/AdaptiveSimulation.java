@@ -0,0 +1,137 @@
+package tools;
+
+import java.net.InetSocketAddress;
+import java.util.List;
+import java.util.Locale;
+
+import application.AdaptiveController;
+import application.CameraCommand;
+import application.CameraMode;
+import application.OV2640;
+import application.StreamReceiver;
+
+/**
+ * Runs an AdaptiveController against a local ImageSender behind a bandwidth
+ * cap. The sender plays a camera with frames at every OV2640 resolution and
+ * takes the controller's commands on its command port; the cap drops what a
+ * link of that speed couldn't carry. The cap is lowered, then raised, and
+ * over the final third of each phase the controller should stay on the
+ * highest resolution that fits, with loss under its target.
+ */
+public class AdaptiveSimulation
+{
+  private static final int DATA_PORT = 1235;
+  private static final int FRAMES_PER_MODE = 2;
+  // a resolution fits a cap when its bit rate, headers included, is under this
+  // much of it
+  private static final double FIT_FRACTION = 0.95;
+  // settled is the final third of a phase spent mostly in the expected mode,
+  // the odd probe of the mode above aside
+  private static final double SETTLED_FRACTION = 0.8;
+
+  private static final String USAGE = "usage: AdaptiveSimulation [--fps 10] [--caps 6,12] [--phase 90]"
+      + " [--interval 500] [--target 0.01]";
+
+  // the highest resolution whose frames at this rate fit under the cap
+  private static CameraMode expected(List<List<byte[]>> frames, double fps, double cap)
+  {
+    CameraMode best = OV2640.values()[0];
+    for (OV2640 mode : OV2640.values())
+    {
+      long bytes = 0;
+      for (byte[] frame : frames.get(mode.getMode()))
+        bytes += frame.length + 9 * (frame.length / 1015 + 1);
+      if (fps * bytes / frames.get(mode.getMode()).size() < FIT_FRACTION * cap)
+        best = mode;
+    }
+    return best;
+  }
+
+  public static void main(String[] args) throws Exception
+  {
+    // caps are in Mbit/s, one phase of --phase seconds each
+    Options options = new Options(USAGE, args);
+    double fps = options.getDouble("--fps", 10);
+    List<Double> caps = options.getDoubles("--caps", List.of(6.0, 12.0));
+    long phaseSeconds = options.getLong("--phase", 90);
+    long interval = options.getLong("--interval", 500);
+    double target = options.getDouble("--target", 0.01);
+
+    List<List<byte[]>> frames = new java.util.ArrayList<>();
+    for (OV2640 mode : OV2640.values())
+      frames.add(ImageSender.syntheticFrames(mode.getWidth(), mode.getHeight(), FRAMES_PER_MODE));
+
+    // start at the top, as an operator who wants the best picture would
+    OV2640 start = OV2640.OV2640_1600x1200;
+    ImageSender sender = new ImageSender(new InetSocketAddress("127.0.0.1", DATA_PORT), frames.get(start.getMode()),
+        1);
+    for (OV2640 mode : OV2640.values())
+      sender.setFrames(mode.getMode(), frames.get(mode.getMode()));
+    sender.setFrameRate(fps);
+    sender.setMode(start.getMode());
+    sender.setPacketSize(1024);
+    sender.listen(CameraCommand.COMMAND_PORT);
+
+    StreamReceiver receiver = new StreamReceiver(DATA_PORT);
+    Thread receiverThread = new Thread(receiver, "StreamReceiver");
+    receiverThread.setDaemon(true);
+    receiverThread.start();
+
+    InetSocketAddress command = new InetSocketAddress("127.0.0.1", CameraCommand.COMMAND_PORT);
+    AdaptiveController controller = new AdaptiveController(receiver, OV2640.values(),
+        (mode, packetSize) -> CameraCommand.send(command, mode.getMode(), packetSize), target, interval, true);
+    controller.setStart(start, 1024);
+
+    Thread senderThread = new Thread(sender, "ImageSender");
+    senderThread.start();
+    Thread controllerThread = new Thread(controller, "AdaptiveController");
+    controllerThread.setDaemon(true);
+    controllerThread.start();
+
+    boolean settled = true;
+    for (double cap : caps)
+    {
+      sender.setBandwidthCap(cap * 1e6 / 8);
+      CameraMode expected = expected(frames, fps, cap * 1e6 / 8);
+      System.out.printf(Locale.ROOT, "cap %.1f Mbit/s, expect %s%n", cap, expected.getName());
+
+      long windowStart = phaseSeconds - phaseSeconds / 3;
+      int inMode = 0;
+      int steps = 0;
+      long sent = 0;
+      long capped = 0;
+      for (long second = 1; second <= phaseSeconds; second++)
+      {
+        Thread.sleep(1000);
+        if (second == windowStart)
+        {
+          steps = controller.getSteps();
+          sent = sender.getSentPackets();
+          capped = sender.getCappedPackets();
+        } else if (second > windowStart && controller.getMode() == expected)
+          inMode++;
+        System.out.printf(Locale.ROOT, "%4d s  %-10s %5d  loss %.4f  %5.1f fps  %6.2f Mbit/s  capped %d%n", second,
+            controller.getMode().getName(), controller.getPacketSize(), controller.getLossRate(),
+            receiver.getFrameRate(), 8e-6 * receiver.getBandwidth(), sender.getCappedPackets());
+      }
+      steps = controller.getSteps() - steps;
+      capped = sender.getCappedPackets() - capped;
+      sent = sender.getSentPackets() - sent;
+      double loss = (double) capped / (sent + capped);
+      boolean ok = inMode >= SETTLED_FRACTION * (phaseSeconds - windowStart) && loss <= target;
+      System.out.printf(Locale.ROOT, "%s: %d of the last %d s at %s, %d steps, loss %.4f%n",
+          ok ? "settled" : "NOT SETTLED", inMode, phaseSeconds - windowStart, expected.getName(), steps, loss);
+      settled &= ok;
+    }
+
+    controller.stop();
+    sender.stop();
+    senderThread.join();
+    System.out.println(controller);
+    System.out.println(sender);
+    if (!settled)
+      throw new Exception("the controller didn't settle on the expected resolution");
+    System.exit(0);
+  }
+
+}
@@ -0,0 +1,291 @@
+package tools;
+
+import java.io.PrintStream;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.net.InetSocketAddress;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+import application.CameraMode;
+import application.LatencySnapshot;
+import application.OV2640;
+import application.OV5642;
+import application.StreamReceiver;
+import application.VideoStreamListener;
+
+/**
+ * Finds the highest frame rate one VideoStreamListener receives with no
+ * dropped packets and no dropped frames, for each camera mode and packet
+ * size. A local ImageSender offers a rising frame rate until the listener
+ * starts dropping, then the boundary is narrowed down by bisection.
+ *
+ * Each configuration becomes one JSON object per line in the report, with the
+ * throughput, latency percentiles, CPU and GC time measured at the highest
+ * rate that passed, so reports from different releases or machines can be
+ * compared line by line.
+ */
+public class CapacityBenchmark
+{
+  private static final int DATA_PORT = 1235;
+  private static final double START_FPS = 2;
+  private static final double RAMP_FACTOR = 1.5;
+  private static final int BISECT_STEPS = 3;
+  private static final int FRAMES_PER_MODE = 4;
+
+  private static final String USAGE = "usage: CapacityBenchmark [--camera OV2640|OV5642|all] [--modes 0,5,8]"
+      + " [--sizes 1024,1280,1536,1792,2048] [--warmup ms] [--measure ms] [--max-fps 500]"
+      + " [--out capacity-report.jsonl]";
+
+  private static final com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory
+      .getThreadMXBean();
+  private static final com.sun.management.OperatingSystemMXBean os = (com.sun.management.OperatingSystemMXBean) ManagementFactory
+      .getOperatingSystemMXBean();
+
+  // what one step of the ramp measured
+  private static class Step
+  {
+    double fps;
+    boolean passed;
+    boolean senderLimited;
+    double seconds;
+    long packets;
+    long frames;
+    long bytes;
+    long droppedPackets;
+    long droppedFrames;
+    long staleDrops;
+    LatencySnapshot reassembly;
+    LatencySnapshot decode;
+    double cpuCores;
+    double receiveCpu;
+    long gcMillis;
+    long gcCount;
+  }
+
+  private final StreamReceiver receiver;
+  private final long receiveThreadId;
+  private final long warmupMillis;
+  private final long measureMillis;
+  private final double maxFps;
+
+  public CapacityBenchmark(long warmupMillis, long measureMillis, double maxFps)
+  {
+    this.warmupMillis = warmupMillis;
+    this.measureMillis = measureMillis;
+    this.maxFps = maxFps;
+
+    VideoStreamListener videoStreamListener = new VideoStreamListener();
+    receiver = videoStreamListener.getReceiver();
+    Thread thread = new Thread(videoStreamListener, "VideoStreamListener");
+    thread.setDaemon(true);
+    thread.start();
+    receiveThreadId = thread.getId();
+  }
+
+  private static long gcMillis()
+  {
+    long total = 0;
+    for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans())
+      total += Math.max(0, gc.getCollectionTime());
+    return total;
+  }
+
+  private static long gcCount()
+  {
+    long total = 0;
+    for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans())
+      total += Math.max(0, gc.getCollectionCount());
+    return total;
+  }
+
+  private Step runStep(List<byte[]> frames, int mode, int packetSize, double fps) throws Exception
+  {
+    ImageSender sender = new ImageSender(new InetSocketAddress("127.0.0.1", DATA_PORT), frames, 1);
+    sender.setMode(mode);
+    sender.setPacketSize(packetSize);
+    sender.setFrameRate(fps);
+    Thread thread = new Thread(sender, "ImageSender");
+    thread.start();
+
+    // the sender's first packet resets the listener, so counting starts after
+    // the warm up
+    Thread.sleep(warmupMillis);
+    long droppedPackets = receiver.getDroppedPackets();
+    long droppedFrames = receiver.getDroppedFrames();
+    long stale = receiver.getStaleDrops();
+    long packets = receiver.getPipelineStats().getReceivedPackets();
+    long bytes = sender.getSentBytes();
+    long sentFrames = sender.getSentFrames();
+    long cpu = os.getProcessCpuTime();
+    long receiveCpu = threads.getThreadCpuTime(receiveThreadId);
+    long gc = gcMillis();
+    long gcs = gcCount();
+    receiver.resetLatency();
+    long start = System.nanoTime();
+
+    Thread.sleep(measureMillis);
+
+    Step step = new Step();
+    step.fps = fps;
+    step.seconds = 1e-9 * (System.nanoTime() - start);
+    step.droppedPackets = receiver.getDroppedPackets() - droppedPackets;
+    step.droppedFrames = receiver.getDroppedFrames() - droppedFrames;
+    step.staleDrops = receiver.getStaleDrops() - stale;
+    step.packets = receiver.getPipelineStats().getReceivedPackets() - packets;
+    step.bytes = sender.getSentBytes() - bytes;
+    step.reassembly = receiver.getReassemblyLatency();
+    step.decode = receiver.getDecodeLatency();
+    step.frames = step.reassembly.getCount();
+    step.cpuCores = 1e-9 * (os.getProcessCpuTime() - cpu) / step.seconds;
+    step.receiveCpu = 1e-9 * (threads.getThreadCpuTime(receiveThreadId) - receiveCpu) / step.seconds;
+    step.gcMillis = gcMillis() - gc;
+    step.gcCount = gcCount() - gcs;
+
+    // a sender that can't keep up says nothing about the receiver. a frame
+    // skipped now and then after a scheduling hiccup doesn't count
+    sentFrames = sender.getSentFrames() - sentFrames;
+    step.senderLimited = sentFrames < 0.95 * fps * step.seconds;
+    step.passed = step.droppedPackets == 0 && step.droppedFrames == 0;
+
+    sender.stop();
+    thread.join();
+
+    // let the socket drain before the next step
+    Thread.sleep(200);
+
+    System.out.printf(Locale.ROOT, "  %8.1f fps: %8.1f frames/s %9.0f packets/s %8.1f Mbit/s, dropped %d packets %d frames%s%n",
+        fps, step.frames / step.seconds, step.packets / step.seconds, 8e-6 * step.bytes / step.seconds,
+        step.droppedPackets, step.droppedFrames, step.senderLimited ? ", sender limited" : "");
+    return step;
+  }
+
+  /**
+   * Ramp up the frame rate for one mode and packet size and return the report
+   * line.
+   */
+  public String measure(CameraMode cameraMode, int packetSize) throws Exception
+  {
+    List<byte[]> frames = ImageSender.syntheticFrames(cameraMode.getWidth(), cameraMode.getHeight(), FRAMES_PER_MODE);
+    long frameBytes = 0;
+    for (byte[] frame : frames)
+      frameBytes += frame.length / frames.size();
+
+    System.out.printf("%s %s, %d byte packets, %d byte frames%n", cameraMode.getClass().getSimpleName(),
+        cameraMode.getName(), packetSize, frameBytes);
+
+    Step best = null;
+    Step failed = null;
+    for (double fps = START_FPS; fps <= maxFps; fps *= RAMP_FACTOR)
+    {
+      Step step = runStep(frames, cameraMode.getMode(), packetSize, fps);
+      if (!step.passed || step.senderLimited)
+      {
+        failed = step;
+        break;
+      }
+      best = step;
+    }
+
+    // narrow down the boundary when the receiver was the limit
+    if (best != null && failed != null && !failed.senderLimited)
+    {
+      double low = best.fps;
+      double high = failed.fps;
+      for (int i = 0; i < BISECT_STEPS; i++)
+      {
+        Step step = runStep(frames, cameraMode.getMode(), packetSize, 0.5 * (low + high));
+        if (step.senderLimited)
+          break;
+        if (step.passed)
+        {
+          best = step;
+          low = step.fps;
+        } else
+        {
+          failed = step;
+          high = step.fps;
+        }
+      }
+    }
+
+    String limitedBy = failed == null ? "none" : failed.senderLimited ? "sender" : "receiver";
+    return json(cameraMode, packetSize, frameBytes, best, failed, limitedBy);
+  }
+
+  private static String latency(LatencySnapshot latency)
+  {
+    return String.format(Locale.ROOT, "{\"p50\":%.3f,\"p99\":%.3f,\"p999\":%.3f,\"max\":%.3f}", latency.getP50(),
+        latency.getP99(), latency.getP999(), latency.getMax());
+  }
+
+  private static String json(CameraMode cameraMode, int packetSize, long frameBytes, Step best, Step failed,
+      String limitedBy)
+  {
+    StringBuilder line = new StringBuilder();
+    line.append(String.format(Locale.ROOT,
+        "{\"camera\":\"%s\",\"mode\":%d,\"resolution\":\"%s\",\"packetSize\":%d,\"frameBytes\":%d,\"limitedBy\":\"%s\"",
+        cameraMode.getClass().getSimpleName(), cameraMode.getMode(), cameraMode.getName(), packetSize, frameBytes,
+        limitedBy));
+    if (failed != null)
+      line.append(String.format(Locale.ROOT, ",\"firstFailingFps\":%.2f", failed.fps));
+
+    if (best == null)
+    {
+      line.append(",\"maxFps\":0}");
+      return line.toString();
+    }
+
+    line.append(String.format(Locale.ROOT,
+        ",\"maxFps\":%.2f,\"framesPerSecond\":%.2f,\"packetsPerSecond\":%.1f,\"mbitPerSecond\":%.3f", best.fps,
+        best.frames / best.seconds, best.packets / best.seconds, 8e-6 * best.bytes / best.seconds));
+    line.append(",\"reassemblyMs\":").append(latency(best.reassembly));
+    line.append(",\"decodeMs\":").append(latency(best.decode));
+    line.append(String.format(Locale.ROOT,
+        ",\"staleDrops\":%d,\"cpuCores\":%.3f,\"receiveThreadCpu\":%.3f,\"gcMillis\":%d,\"gcCount\":%d}",
+        best.staleDrops, best.cpuCores, best.receiveCpu, best.gcMillis, best.gcCount));
+    return line.toString();
+  }
+
+  public static void main(String[] args) throws Exception
+  {
+    // cpuCores is the whole process, which includes the sender
+    Options options = new Options(USAGE, args);
+    String camera = options.get("--camera", "all");
+    List<Integer> modes = options.getInts("--modes", null);
+    List<Integer> sizes = options.getInts("--sizes", List.of(1024, 1280, 1536, 1792, 2048));
+    long warmup = options.getLong("--warmup", 1000);
+    long measure = options.getLong("--measure", 3000);
+    double maxFps = options.getDouble("--max-fps", 500);
+    String out = options.get("--out", "capacity-report.jsonl");
+
+    List<CameraMode> cameraModes = new ArrayList<>();
+    if (!camera.equalsIgnoreCase("OV5642"))
+      cameraModes.addAll(List.of(OV2640.values()));
+    if (!camera.equalsIgnoreCase("OV2640"))
+      cameraModes.addAll(List.of(OV5642.values()));
+
+    CapacityBenchmark benchmark = new CapacityBenchmark(warmup, measure, maxFps);
+    try (PrintStream report = new PrintStream(Files.newOutputStream(Paths.get(out)), true, "UTF-8"))
+    {
+      for (CameraMode cameraMode : cameraModes)
+      {
+        if (modes != null && !modes.contains(cameraMode.getMode()))
+          continue;
+        for (int packetSize : sizes)
+        {
+          String line = benchmark.measure(cameraMode, packetSize);
+          report.println(line);
+          System.out.println(line);
+        }
+      }
+    }
+
+    System.out.println("report written to " + out);
+    System.exit(0);
+  }
+
+}
@@ -0,0 +1,124 @@
+package tools;
+
+import java.net.InetSocketAddress;
+import java.util.List;
+import java.util.Locale;
+
+import application.CameraMode;
+import application.StreamReceiver;
+
+/**
+ * Measures what forward error correction buys under random packet loss. For
+ * each loss rate and parity group size a local ImageSender streams one
+ * camera mode at a fixed frame rate to a StreamReceiver, and the frames and
+ * JPEG bytes that come out whole are counted. Goodput is those bytes; the
+ * parity is overhead on top of what is offered.
+ */
+public class FecBenchmark
+{
+  private static final int DATA_PORT = 1235;
+  private static final int FRAMES_PER_MODE = 4;
+
+  private static final String USAGE = "usage: FecBenchmark [--camera OV2640] [--mode 8] [--packet 1472] [--fps 10]"
+      + " [--loss 0.001,0.005,0.01,0.02] [--groups 0,4,8,16,32] [--warmup ms] [--measure ms]";
+
+  private final StreamReceiver receiver;
+  private final long warmupMillis;
+  private final long measureMillis;
+
+  // written on the receive thread only
+  private volatile long completedBytes = 0;
+
+  public FecBenchmark(long warmupMillis, long measureMillis)
+  {
+    this.warmupMillis = warmupMillis;
+    this.measureMillis = measureMillis;
+
+    receiver = new StreamReceiver(DATA_PORT);
+    receiver.addFrameListener(frame -> completedBytes += frame.getLength());
+    Thread thread = new Thread(receiver, "StreamReceiver");
+    thread.setDaemon(true);
+    thread.start();
+  }
+
+  /**
+   * Stream at one loss rate and group size and return the report line.
+   */
+  public String measure(List<byte[]> frames, int mode, int packetSize, double fps, double loss, int groupSize)
+      throws Exception
+  {
+    ImageSender sender = new ImageSender(new InetSocketAddress("127.0.0.1", DATA_PORT), frames, 1);
+    sender.setMode(mode);
+    sender.setPacketSize(packetSize);
+    sender.setFrameRate(fps);
+    sender.setLoss(loss);
+    sender.setFec(groupSize);
+    Thread thread = new Thread(sender, "ImageSender");
+    thread.start();
+
+    // the sender's first packet resets the receiver, so counting starts after
+    // the warm up
+    Thread.sleep(warmupMillis);
+    long sentFrames = sender.getSentFrames();
+    long sentBytes = sender.getSentBytes();
+    long completed = receiver.getCompletedFrames();
+    long bytes = completedBytes;
+    long dropped = receiver.getDroppedPackets();
+    long recovered = receiver.getRecoveredPackets();
+    long start = System.nanoTime();
+
+    Thread.sleep(measureMillis);
+
+    double seconds = 1e-9 * (System.nanoTime() - start);
+    sentFrames = sender.getSentFrames() - sentFrames;
+    sentBytes = sender.getSentBytes() - sentBytes;
+    completed = receiver.getCompletedFrames() - completed;
+    bytes = completedBytes - bytes;
+    dropped = receiver.getDroppedPackets() - dropped;
+    recovered = receiver.getRecoveredPackets() - recovered;
+
+    sender.stop();
+    thread.join();
+    // let the socket drain before the next step
+    Thread.sleep(200);
+
+    return String.format(Locale.ROOT, "%6.1f%% %5d %8.1f %8.1f %7.1f%% %9.2f %9.2f %9d %11d", 100 * loss, groupSize,
+        sentFrames / seconds, completed / seconds, sentFrames == 0 ? 0 : 100.0 * completed / sentFrames,
+        8e-6 * sentBytes / seconds, 8e-6 * bytes / seconds, recovered, dropped - recovered);
+  }
+
+  public static void main(String[] args) throws Exception
+  {
+    // group size 0 is no parity. sent Mbit/s includes the parity
+    Options options = new Options(USAGE, args);
+    String camera = options.get("--camera", "OV2640");
+    int mode = options.getInt("--mode", 8);
+    int packetSize = options.getInt("--packet", 1472);
+    double fps = options.getDouble("--fps", 10);
+    List<Double> losses = options.getDoubles("--loss", List.of(0.001, 0.005, 0.01, 0.02));
+    List<Integer> groups = options.getInts("--groups", List.of(0, 4, 8, 16, 32));
+    long warmup = options.getLong("--warmup", 500);
+    long measure = options.getLong("--measure", 4000);
+
+    CameraMode cameraMode = ImageSender.findMode(camera, mode);
+    if (cameraMode == null)
+      throw new IllegalArgumentException(camera + " has no mode " + mode);
+    List<byte[]> frames = ImageSender.syntheticFrames(cameraMode.getWidth(), cameraMode.getHeight(),
+        FRAMES_PER_MODE);
+    long frameBytes = 0;
+    for (byte[] frame : frames)
+      frameBytes += frame.length / frames.size();
+    System.out.printf("%s %s, %d byte packets, %d byte frames, %.1f fps%n", cameraMode.getClass().getSimpleName(),
+        cameraMode.getName(), packetSize, frameBytes, fps);
+    System.out.printf("%7s %5s %8s %8s %8s %9s %9s %9s %11s%n", "loss", "group", "sent/s", "whole/s", "whole",
+        "sent Mb/s", "good Mb/s", "recovered", "unrecovered");
+
+    FecBenchmark benchmark = new FecBenchmark(warmup, measure);
+    for (double loss : losses)
+      for (int groupSize : groups)
+        System.out.println(benchmark.measure(frames, mode, packetSize, fps, loss, groupSize));
+
+    System.exit(0);
+  }
+
+}
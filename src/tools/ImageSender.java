@@ -1,68 +1,890 @@
 package tools;
 
-import java.io.FileInputStream;
-import java.io.FileNotFoundException;
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
 import java.io.IOException;
-import java.net.DatagramPacket;
-import java.net.DatagramSocket;
-import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.PortUnreachableException;
+import java.net.ServerSocket;
+import java.net.Socket;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
+import java.nio.channels.DatagramChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.SplittableRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
 
-public class ImageSender
+import javax.imageio.ImageIO;
+
+import application.CameraMode;
+import application.OV2640;
+import application.OV5642;
+
+/**
+ * Traffic generator that plays the part of one or more cameras. Each simulated
+ * camera loops over the same set of JPEG frames, sending them in the camera's
+ * packet format from its own source port, paced to a target frame rate with
+ * the packets of a frame spread evenly over the frame interval. Loss,
+ * duplication, reordering and burst loss can be injected per packet.
+ *
+ * With forward error correction on, every group of data packets is followed
+ * by a parity packet, the XOR of their payloads, from which the receiver can
+ * rebuild any one of them that is lost. Data payloads shrink by the parity
+ * header so no datagram is bigger than the packet size.
+ *
+ * Listening on a command port, it also answers NACK commands as
+ * NackRequester sends them, resending the packets asked for from a short
+ * history of the first camera's packets, and takes the same mode and packet
+ * size commands as the camera. Each mode may have frames of its own. A
+ * bandwidth cap drops whatever a link of that speed couldn't carry.
+ *
+ * All cameras are driven from the one thread that calls run, each packet
+ * going out when its deadline comes round. Nothing is allocated per packet.
+ * The settings may be changed from any thread while it runs.
+ */
+public class ImageSender implements Runnable
 {
   private static final byte START_OF_IMAGE = (byte) 0x80;
   private static final byte END_OF_IMAGE = (byte) 0x40;
   private static final byte FIRST_PACKET = (byte) 0x20;
+  private static final byte PARITY = (byte) 0x10;
   private static final byte COMMAND_MODE = (byte) 0x0f;
+  private static final int HEADER_SIZE = 9;
+  private static final int MAX_PACKET_SIZE = 2048;
+  // group size, packets covered, XOR of their start and end flags and XOR of
+  // their lengths, as FrameAssembler reads them
+  private static final int PARITY_HEADER_SIZE = 5;
+  private static final int MAX_GROUP_SIZE = 255;
+  private static final byte NACK = (byte) 0x80;
+  // how much a capped link can take in at once, as a queue in front of it would
+  private static final double CAP_BURST_SECONDS = 0.05;
+  // packets kept for retransmission, a power of two
+  private static final int HISTORY_PACKETS = 1024;
 
-  public static void main(String[] args)
-  {
-    final int PORT_NUMBER = 1235;
-    final int HEADER_SIZE = 9;
-    final int PACKET_SIZE = 1472;
-    String fileName = "E:\\working\\mlinger\\EclipseWorkspace\\arduino_video\\image.jpg";
-    try(FileInputStream is = new FileInputStream(fileName))
-    {
-      byte[] buffer = new byte[PACKET_SIZE];
-      DatagramSocket socket = new DatagramSocket();
-      //InetAddress address = InetAddress.getByName("localhost");
-      InetAddress address = InetAddress.getByName("127.0.0.1");
-      int imageNumber = 1;
-      int packetNumber = 1;
-      byte mode = 0x05;
-      mode |= START_OF_IMAGE;
-      mode |= FIRST_PACKET;
-      for(int num = is.read(buffer, HEADER_SIZE, PACKET_SIZE-HEADER_SIZE); num > 0; num = is.read(buffer, HEADER_SIZE, PACKET_SIZE-HEADER_SIZE))
-      {        
-        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
-        header.order(ByteOrder.LITTLE_ENDIAN);
-        header.putInt(packetNumber++);
-        header.putInt(imageNumber);
-        
-        if(is.available() == 0)
-          mode |= END_OF_IMAGE;
-        
-        header.put(mode);
-        header.rewind();
-        header.get(buffer, 0, HEADER_SIZE);
-        DatagramPacket packet = new DatagramPacket(buffer, num + HEADER_SIZE, address, PORT_NUMBER);
-        socket.send(packet);
-        //System.out.println("sent " + (num + HEADER_SIZE) + " bytes");
-        
-        mode &= ~FIRST_PACKET;
-        mode &= ~START_OF_IMAGE;                
-      }
-      
-    } catch (FileNotFoundException e)
+  // sleeping is only accurate to tens of microseconds, so the last stretch
+  // before a deadline is spun instead
+  private static final long SPIN_NANOS = 100000;
+
+  private static final String USAGE = "usage: ImageSender [--host 127.0.0.1] [--port 1235] [--cameras 1]"
+      + " [--fps 10] [--packet 1472] [--camera OV2640] [--mode 5] [--dir path] [--loss 0] [--dup 0]"
+      + " [--reorder 0] [--reorder-depth 3] [--burst 0] [--burst-length 20] [--fec 0] [--listen 1234]"
+      + " [--seconds 0]";
+
+  // the state of one simulated camera, touched by the sending thread only
+  private static class Camera
+  {
+    final DatagramChannel channel;
+    final ByteBuffer packet;
+    final ByteBuffer held;
+    final ByteBuffer parity;
+    final SplittableRandom random;
+
+    boolean first = true;
+    int commandsSeen = 0;
+    ByteBuffer[] frames;
+    int packetNumber = 1;
+    int imageNumber = 1;
+    int frameIndex = 0;
+
+    // the frame being sent
+    int offset = 0;
+    int payloadSize = 0;
+    int packetIndex = 0;
+    int packetsInFrame = 0;
+    byte mode = 0;
+    int groupSize = 0;
+    long frameStart = 0;
+    long nextSend = 0;
+
+    // a packet held back to be sent out of order
+    int heldCountdown = 0;
+    int burstRemaining = 0;
+
+    // the parity group being built
+    int groupCount = 0;
+    int groupFirst = 0;
+    int groupLength = 0;
+    int groupLengths = 0;
+    int groupFlags = 0;
+
+    // packets sent lately, by packet number, when retransmission is on
+    ByteBuffer history = null;
+    int[] historyNumbers;
+    int[] historyLengths;
+    ByteBuffer retransmit;
+
+    Camera(DatagramChannel channel, long seed)
+    {
+      this.channel = channel;
+      packet = ByteBuffer.allocateDirect(MAX_PACKET_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+      held = ByteBuffer.allocateDirect(MAX_PACKET_SIZE);
+      parity = ByteBuffer.allocateDirect(MAX_PACKET_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+      random = new SplittableRandom(seed);
+    }
+  }
+
+  // packet numbers asked for again, without boxing them. Filled by any
+  // command connection and emptied by the sending thread only; a request
+  // that doesn't fit is dropped, as the history would have lost it anyway
+  private static class RetransmitRing
+  {
+    private final int[] packets = new int[HISTORY_PACKETS];
+    private volatile long head = 0;
+    private volatile long tail = 0;
+
+    synchronized boolean offer(int packetNumber)
+    {
+      long t = tail;
+      if (t - head == packets.length)
+        return false;
+      packets[(int) t & (packets.length - 1)] = packetNumber;
+      tail = t + 1;
+      return true;
+    }
+
+    boolean isEmpty()
+    {
+      return head == tail;
+    }
+
+    // sending thread only, and only when not empty
+    int poll()
+    {
+      long h = head;
+      int packetNumber = packets[(int) h & (packets.length - 1)];
+      head = h + 1;
+      return packetNumber;
+    }
+  }
+
+  private final ByteBuffer[] frames;
+  private final ByteBuffer[][] modeFrames = new ByteBuffer[COMMAND_MODE + 1][];
+  private final Camera[] cameras;
+  private final RetransmitRing retransmits = new RetransmitRing();
+  private ServerSocket commandServer = null;
+  private volatile Thread sendThread = null;
+
+  private volatile double frameRate = 10;
+  private volatile int packetSize = 1472;
+  private volatile int mode = 5;
+  private volatile double lossRate = 0;
+  private volatile double duplicateRate = 0;
+  private volatile double reorderRate = 0;
+  private volatile int reorderDepth = 3;
+  private volatile double burstRate = 0;
+  private volatile int burstLength = 0;
+  private volatile int fecGroupSize = 0;
+  private volatile double bandwidthCap = 0;
+  private final AtomicInteger commands = new AtomicInteger();
+
+  // the capped link's token bucket, in bytes, sending thread only
+  private double capTokens = 0;
+  private long capTime = 0;
+  private volatile boolean running = false;
+
+  // written by the sending thread only
+  private volatile long sentPackets = 0;
+  private volatile long sentBytes = 0;
+  private volatile long sentFrames = 0;
+  private volatile long lostPackets = 0;
+  private volatile long parityPackets = 0;
+  private volatile long retransmittedPackets = 0;
+  private volatile long expiredRequests = 0;
+  private volatile long cappedPackets = 0;
+  private volatile long duplicatedPackets = 0;
+  private volatile long reorderedPackets = 0;
+  private volatile long lateFrames = 0;
+  private volatile long unreachable = 0;
+
+  /**
+   * @param target where the receiver listens
+   * @param frames the JPEG frames every camera loops over
+   * @param numCameras each camera sends from its own source port
+   */
+  public ImageSender(InetSocketAddress target, List<byte[]> frames, int numCameras) throws IOException
+  {
+    if (frames.isEmpty())
+      throw new IllegalArgumentException("no frames to send");
+
+    this.frames = new ByteBuffer[frames.size()];
+    for (int i = 0; i < this.frames.length; i++)
+    {
+      byte[] frame = frames.get(i);
+      this.frames[i] = ByteBuffer.allocateDirect(frame.length).put(frame).flip();
+    }
+
+    cameras = new Camera[numCameras];
+    for (int i = 0; i < numCameras; i++)
+    {
+      DatagramChannel channel = DatagramChannel.open();
+      channel.connect(target);
+      cameras[i] = new Camera(channel, 1 + i);
+      cameras[i].frames = this.frames;
+    }
+  }
+
+  // frames per second per camera, 0 sends as fast as possible
+  public void setFrameRate(double frameRate)
+  {
+    this.frameRate = frameRate;
+  }
+
+  // whole datagram including the header, takes effect from the next frame
+  public void setPacketSize(int packetSize)
+  {
+    if (packetSize <= HEADER_SIZE || packetSize > MAX_PACKET_SIZE)
+      throw new IllegalArgumentException("packet size " + packetSize);
+    this.packetSize = packetSize;
+  }
+
+  // the camera mode put in the header, takes effect from the next frame
+  public void setMode(int mode)
+  {
+    this.mode = mode;
+  }
+
+  // fraction of packets dropped at random
+  public void setLoss(double lossRate)
+  {
+    this.lossRate = lossRate;
+  }
+
+  // fraction of packets sent twice
+  public void setDuplication(double duplicateRate)
+  {
+    this.duplicateRate = duplicateRate;
+  }
+
+  // fraction of packets held back and sent after depth later packets
+  public void setReordering(double reorderRate, int depth)
+  {
+    this.reorderDepth = Math.max(1, depth);
+    this.reorderRate = reorderRate;
+  }
+
+  // chance per packet of losing a run of length packets
+  public void setBurstLoss(double burstRate, int length)
+  {
+    this.burstLength = length;
+    this.burstRate = burstRate;
+  }
+
+  // frames sent while in this mode instead of the ones given to the constructor
+  public void setFrames(int mode, List<byte[]> frames)
+  {
+    ByteBuffer[] buffers = new ByteBuffer[frames.size()];
+    for (int i = 0; i < buffers.length; i++)
+      buffers[i] = ByteBuffer.allocateDirect(frames.get(i).length).put(frames.get(i)).flip();
+    modeFrames[mode & COMMAND_MODE] = buffers;
+  }
+
+  // bytes per second all cameras share, 0 for no cap
+  public void setBandwidthCap(double bytesPerSecond)
+  {
+    this.bandwidthCap = bytesPerSecond;
+  }
+
+  // a parity packet after every groupSize data packets, 0 for none. takes
+  // effect from the next frame
+  public void setFec(int groupSize)
+  {
+    if (groupSize < 0 || groupSize > MAX_GROUP_SIZE)
+      throw new IllegalArgumentException("parity group size " + groupSize);
+    this.fecGroupSize = groupSize;
+  }
+
+  /**
+   * Listen for commands on a TCP port, as the camera does on its command
+   * port. NACK commands have the packets they ask for sent again, only the
+   * first camera's; mode and packet size commands apply to every camera from
+   * its next frame. Call before run.
+   */
+  public void listen(int commandPort) throws IOException
+  {
+    Camera camera = cameras[0];
+    camera.history = ByteBuffer.allocateDirect(HISTORY_PACKETS * MAX_PACKET_SIZE);
+    camera.historyNumbers = new int[HISTORY_PACKETS];
+    camera.historyLengths = new int[HISTORY_PACKETS];
+    camera.retransmit = ByteBuffer.allocateDirect(MAX_PACKET_SIZE);
+
+    commandServer = new ServerSocket();
+    commandServer.setReuseAddress(true);
+    commandServer.bind(new InetSocketAddress(commandPort));
+    Thread thread = new Thread(this::acceptCommands, "ImageSender commands");
+    thread.setDaemon(true);
+    thread.start();
+  }
+
+  public int getNumCameras()
+  {
+    return cameras.length;
+  }
+
+  public long getSentPackets()
+  {
+    return sentPackets;
+  }
+
+  public long getSentBytes()
+  {
+    return sentBytes;
+  }
+
+  public long getSentFrames()
+  {
+    return sentFrames;
+  }
+
+  // packets thrown away by the loss and burst loss settings
+  public long getLostPackets()
+  {
+    return lostPackets;
+  }
+
+  // parity packets made, whether or not they were then lost
+  public long getParityPackets()
+  {
+    return parityPackets;
+  }
+
+  public long getRetransmittedPackets()
+  {
+    return retransmittedPackets;
+  }
+
+  // packets dropped by the bandwidth cap
+  public long getCappedPackets()
+  {
+    return cappedPackets;
+  }
+
+  // mode and packet size commands taken
+  public int getCommands()
+  {
+    return commands.get();
+  }
+
+  // packets asked for that had already left the history
+  public long getExpiredRequests()
+  {
+    return expiredRequests;
+  }
+
+  public long getDuplicatedPackets()
+  {
+    return duplicatedPackets;
+  }
+
+  public long getReorderedPackets()
+  {
+    return reorderedPackets;
+  }
+
+  // frames the sender couldn't send on time and skipped ahead from
+  public long getLateFrames()
+  {
+    return lateFrames;
+  }
+
+  public void stop()
+  {
+    running = false;
+  }
+
+  @Override
+  public void run()
+  {
+    running = true;
+    sendThread = Thread.currentThread();
+
+    // stagger the cameras over one frame interval
+    long now = System.nanoTime();
+    long interval = frameInterval();
+    for (int i = 0; i < cameras.length; i++)
+    {
+      cameras[i].frameStart = now + i * interval / cameras.length;
+      cameras[i].nextSend = cameras[i].frameStart;
+    }
+
+    try
     {
-      // TODO Auto-generated catch block
-      e.printStackTrace();
+      while (running)
+      {
+        while (!retransmits.isEmpty())
+          retransmit(cameras[0], retransmits.poll());
+
+        Camera camera = cameras[0];
+        for (int i = 1; i < cameras.length; i++)
+          if (cameras[i].nextSend - camera.nextSend < 0)
+            camera = cameras[i];
+
+        long wait = camera.nextSend - System.nanoTime();
+        if (wait > SPIN_NANOS)
+        {
+          // wake early, another camera's deadline or a setting may have moved
+          LockSupport.parkNanos(Math.min(wait - SPIN_NANOS, 10000000L));
+          continue;
+        }
+        while (camera.nextSend - System.nanoTime() > 0)
+          Thread.onSpinWait();
+
+        sendNext(camera);
+      }
     } catch (IOException e)
     {
-      // TODO Auto-generated catch block
-      e.printStackTrace();
+      System.out.println("ImageSender " + e.toString());
+    } finally
+    {
+      running = false;
+      sendThread = null;
+      if (commandServer != null)
+      {
+        try
+        {
+          commandServer.close();
+        } catch (IOException e)
+        {
+          e.printStackTrace();
+        }
+      }
+      for (Camera camera : cameras)
+      {
+        try
+        {
+          camera.channel.close();
+        } catch (IOException e)
+        {
+          e.printStackTrace();
+        }
+      }
+    }
+  }
+
+  private long frameInterval()
+  {
+    double fps = frameRate;
+    return fps <= 0 ? 0 : (long) (1e9 / fps);
+  }
+
+  private void sendNext(Camera camera) throws IOException
+  {
+    if (camera.offset == 0)
+    {
+      // packet size, mode and parity only change between frames, and the
+      // first packet after a command says so
+      camera.mode = (byte) (mode & COMMAND_MODE);
+      ByteBuffer[] frames = modeFrames[camera.mode];
+      if (frames == null)
+        frames = this.frames;
+      if (frames != camera.frames)
+      {
+        camera.frames = frames;
+        camera.frameIndex = 0;
+      }
+      int taken = commands.get();
+      if (camera.commandsSeen != taken)
+      {
+        camera.commandsSeen = taken;
+        camera.first = true;
+      }
+      camera.groupSize = fecGroupSize;
+      camera.payloadSize = packetSize - HEADER_SIZE - (camera.groupSize > 0 ? PARITY_HEADER_SIZE : 0);
+      camera.packetsInFrame = (camera.frames[camera.frameIndex].limit() + camera.payloadSize - 1)
+          / camera.payloadSize;
+      camera.packetIndex = 0;
+    }
+
+    ByteBuffer frame = camera.frames[camera.frameIndex];
+    int frameLength = frame.limit();
+
+    int length = Math.min(camera.payloadSize, frameLength - camera.offset);
+    byte status = camera.mode;
+    if (camera.offset == 0)
+      status |= START_OF_IMAGE;
+    if (camera.offset + length == frameLength)
+      status |= END_OF_IMAGE;
+    if (camera.first)
+      status |= FIRST_PACKET;
+    camera.first = false;
+
+    ByteBuffer packet = camera.packet;
+    packet.clear();
+    packet.putInt(0, camera.packetNumber++);
+    packet.putInt(4, camera.imageNumber);
+    packet.put(8, status);
+    packet.put(HEADER_SIZE, frame, camera.offset, length);
+    packet.limit(HEADER_SIZE + length);
+    if (camera.history != null)
+      keep(camera, packet);
+    if (camera.groupSize > 0)
+      addToParity(camera, packet, length, status);
+    transmit(camera, packet);
+
+    camera.offset += length;
+    camera.packetIndex++;
+
+    // the parity follows straight after the last packet of its group
+    if (camera.groupCount > 0 && (camera.groupCount == camera.groupSize || camera.offset == frameLength))
+      sendParity(camera);
+
+    long interval = frameInterval();
+    if (camera.offset == frameLength)
+    {
+      camera.offset = 0;
+      camera.frameIndex = (camera.frameIndex + 1) % camera.frames.length;
+      camera.imageNumber++;
+      sentFrames++;
+
+      camera.frameStart += interval;
+      long now = System.nanoTime();
+      if (now - camera.frameStart > interval)
+      {
+        // more than a frame behind, start again from now rather than bursting
+        // to catch up
+        lateFrames++;
+        camera.frameStart = now;
+      }
+      camera.nextSend = camera.frameStart;
+    } else
+    {
+      camera.nextSend = camera.frameStart + camera.packetIndex * interval / camera.packetsInFrame;
+    }
+  }
+
+  private void keep(Camera camera, ByteBuffer packet)
+  {
+    int slot = packet.getInt(0) & (HISTORY_PACKETS - 1);
+    camera.history.put(slot * MAX_PACKET_SIZE, packet, 0, packet.limit());
+    camera.historyNumbers[slot] = packet.getInt(0);
+    camera.historyLengths[slot] = packet.limit();
+  }
+
+  private void retransmit(Camera camera, int packetNumber) throws IOException
+  {
+    int slot = packetNumber & (HISTORY_PACKETS - 1);
+    int length = camera.historyLengths[slot];
+    if (length == 0 || camera.historyNumbers[slot] != packetNumber)
+    {
+      expiredRequests++;
+      return;
+    }
+
+    // it may be lost again like any other packet
+    ByteBuffer packet = camera.retransmit;
+    packet.clear();
+    packet.put(0, camera.history, slot * MAX_PACKET_SIZE, length);
+    packet.limit(length);
+    retransmittedPackets++;
+    transmit(camera, packet);
+  }
+
+  private void acceptCommands()
+  {
+    while (!commandServer.isClosed())
+    {
+      try
+      {
+        Socket socket = commandServer.accept();
+        Thread thread = new Thread(() -> readCommands(socket), "ImageSender command connection");
+        thread.setDaemon(true);
+        thread.start();
+      } catch (IOException e)
+      {
+        // closed when the sender stops
+        break;
+      }
+    }
+  }
+
+  // one connection's commands, until it closes
+  private void readCommands(Socket socket)
+  {
+    try (Socket connection = socket;
+        DataInputStream input = new DataInputStream(new BufferedInputStream(connection.getInputStream())))
+    {
+      int command;
+      while ((command = input.read()) >= 0)
+      {
+        if (command <= COMMAND_MODE)
+        {
+          // mode then packet size, as the Reset button sends them
+          int size = Integer.reverseBytes(input.readInt());
+          System.out.printf("ImageSender mode %d, %d byte packets%n", command, size);
+          setMode(command);
+          setPacketSize(size);
+          // more than one connection may be sending commands
+          commands.incrementAndGet();
+          continue;
+        }
+        if ((byte) command != NACK)
+        {
+          System.out.printf("ImageSender unknown command %02X%n", command);
+          break;
+        }
+        int entries = input.readUnsignedByte();
+        for (int i = 0; i < entries; i++)
+        {
+          int packetNumber = Integer.reverseBytes(input.readInt());
+          int mask = Short.reverseBytes(input.readShort()) & 0xffff;
+          retransmits.offer(packetNumber);
+          for (int bit = 0; bit < 16; bit++)
+            if ((mask & (1 << bit)) != 0)
+              retransmits.offer(packetNumber + 1 + bit);
+        }
+        Thread thread = sendThread;
+        if (thread != null)
+          LockSupport.unpark(thread);
+      }
+    } catch (IOException | IllegalArgumentException e)
+    {
+      // the other end went away or sent nonsense
+    }
+  }
+
+  // XOR a data packet's payload into the group's parity
+  private void addToParity(Camera camera, ByteBuffer packet, int length, byte status)
+  {
+    ByteBuffer parity = camera.parity;
+    int base = HEADER_SIZE + PARITY_HEADER_SIZE;
+    if (camera.groupCount == 0)
+    {
+      parity.clear();
+      camera.groupFirst = packet.getInt(0);
+      camera.groupLength = 0;
+      camera.groupLengths = 0;
+      camera.groupFlags = 0;
+    }
+
+    // a long at a time over the bytes the group already has, anything past
+    // them is XORed with the zero padding so it's just copied
+    int common = Math.min(length, camera.groupLength);
+    int i = 0;
+    for (; i + 8 <= common; i += 8)
+      parity.putLong(base + i, parity.getLong(base + i) ^ packet.getLong(HEADER_SIZE + i));
+    for (; i < common; i++)
+      parity.put(base + i, (byte) (parity.get(base + i) ^ packet.get(HEADER_SIZE + i)));
+    if (length > common)
+      parity.put(base + common, packet, HEADER_SIZE + common, length - common);
+
+    camera.groupLength = Math.max(camera.groupLength, length);
+    camera.groupLengths ^= length;
+    camera.groupFlags ^= status & (START_OF_IMAGE | END_OF_IMAGE);
+    camera.groupCount++;
+  }
+
+  private void sendParity(Camera camera) throws IOException
+  {
+    ByteBuffer parity = camera.parity;
+    parity.putInt(0, camera.groupFirst);
+    parity.putInt(4, camera.imageNumber);
+    parity.put(8, (byte) (camera.mode | PARITY));
+    parity.put(HEADER_SIZE, (byte) camera.groupSize);
+    parity.put(HEADER_SIZE + 1, (byte) camera.groupCount);
+    parity.put(HEADER_SIZE + 2, (byte) camera.groupFlags);
+    parity.putShort(HEADER_SIZE + 3, (short) camera.groupLengths);
+    parity.limit(HEADER_SIZE + PARITY_HEADER_SIZE + camera.groupLength);
+    camera.groupCount = 0;
+    parityPackets++;
+    transmit(camera, parity);
+  }
+
+  private void transmit(Camera camera, ByteBuffer packet) throws IOException
+  {
+    SplittableRandom random = camera.random;
+    if (camera.burstRemaining > 0)
+    {
+      camera.burstRemaining--;
+      lostPackets++;
+      return;
+    }
+    if (burstRate > 0 && random.nextDouble() < burstRate)
+    {
+      camera.burstRemaining = burstLength - 1;
+      lostPackets++;
+      return;
+    }
+    if (lossRate > 0 && random.nextDouble() < lossRate)
+    {
+      lostPackets++;
+      return;
+    }
+    if (camera.heldCountdown == 0 && reorderRate > 0 && random.nextDouble() < reorderRate)
+    {
+      camera.held.clear();
+      camera.held.put(0, packet, 0, packet.limit());
+      camera.held.limit(packet.limit());
+      camera.heldCountdown = reorderDepth;
+      reorderedPackets++;
+      return;
+    }
+
+    write(camera, packet);
+    if (duplicateRate > 0 && random.nextDouble() < duplicateRate)
+    {
+      write(camera, packet);
+      duplicatedPackets++;
+    }
+
+    if (camera.heldCountdown > 0 && --camera.heldCountdown == 0)
+      write(camera, camera.held);
+  }
+
+  private void write(Camera camera, ByteBuffer packet) throws IOException
+  {
+    packet.position(0);
+    int length = packet.remaining();
+
+    double cap = bandwidthCap;
+    if (cap > 0)
+    {
+      long now = System.nanoTime();
+      capTokens = Math.min(cap * CAP_BURST_SECONDS, capTokens + 1e-9 * (now - capTime) * cap);
+      capTime = now;
+      if (capTokens < length)
+      {
+        cappedPackets++;
+        return;
+      }
+      capTokens -= length;
+    }
+
+    try
+    {
+      camera.channel.write(packet);
+      sentPackets++;
+      sentBytes += length;
+    } catch (PortUnreachableException e)
+    {
+      // nobody listening yet, keep going like a camera would
+      unreachable++;
+    }
+  }
+
+  public String toString()
+  {
+    return String.format(
+        "%d cameras: %d frames, %d packets, %d parity, %d resent, %.1f MB, lost %d, capped %d, duplicated %d, reordered %d, late frames %d, unreachable %d",
+        cameras.length, sentFrames, sentPackets, parityPackets, retransmittedPackets, 1e-6 * sentBytes, lostPackets,
+        cappedPackets, duplicatedPackets, reorderedPackets, lateFrames, unreachable);
+  }
+
+  // every .jpg or .jpeg file in a directory, in name order
+  public static List<byte[]> loadFrames(Path directory) throws IOException
+  {
+    List<Path> paths = new ArrayList<>();
+    try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, "*.{jpg,jpeg,JPG,JPEG}"))
+    {
+      for (Path path : stream)
+        paths.add(path);
+    }
+    paths.sort(null);
+
+    List<byte[]> frames = new ArrayList<>();
+    for (Path path : paths)
+      frames.add(Files.readAllBytes(path));
+    return frames;
+  }
+
+  public static List<byte[]> syntheticFrames(int width, int height, int count) throws IOException
+  {
+    List<byte[]> frames = new ArrayList<>();
+    for (int i = 0; i < count; i++)
+      frames.add(syntheticJpeg(width, height, i));
+    return frames;
+  }
+
+  // busy enough to compress like a real scene rather than a flat colour
+  public static byte[] syntheticJpeg(int width, int height, long seed) throws IOException
+  {
+    BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+    Graphics2D g = image.createGraphics();
+    Random random = new Random(seed);
+    int blocks = Math.max(50, width * height / 2500);
+    for (int i = 0; i < blocks; i++)
+    {
+      g.setColor(new Color(random.nextInt(0x1000000)));
+      g.fillRect(random.nextInt(width), random.nextInt(height), 8 + random.nextInt(width / 8 + 1),
+          8 + random.nextInt(height / 8 + 1));
+    }
+    g.dispose();
+
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    ImageIO.write(image, "jpg", out);
+    return out.toByteArray();
+  }
+
+  public static CameraMode findMode(String camera, int mode)
+  {
+    return camera.equalsIgnoreCase("OV5642") ? OV5642.valueOf(mode) : OV2640.valueOf(mode);
+  }
+
+  public static void main(String[] args) throws Exception
+  {
+    // without --dir, synthetic frames at the mode's resolution are sent
+    Options options = new Options(USAGE, args);
+    String host = options.get("--host", "127.0.0.1");
+    int port = options.getInt("--port", 1235);
+    int numCameras = options.getInt("--cameras", 1);
+    double fps = options.getDouble("--fps", 10);
+    int packetSize = options.getInt("--packet", 1472);
+    String camera = options.get("--camera", "OV2640");
+    int mode = options.getInt("--mode", 5);
+    String dir = options.get("--dir", null);
+    double loss = options.getDouble("--loss", 0);
+    double dup = options.getDouble("--dup", 0);
+    double reorder = options.getDouble("--reorder", 0);
+    int reorderDepth = options.getInt("--reorder-depth", 3);
+    double burst = options.getDouble("--burst", 0);
+    int burstLength = options.getInt("--burst-length", 20);
+    int fec = options.getInt("--fec", 0);
+    int listen = options.getInt("--listen", 0);
+    long seconds = options.getLong("--seconds", 0);
+
+    List<byte[]> frames;
+    if (dir != null)
+    {
+      frames = loadFrames(Paths.get(dir));
+    } else
+    {
+      CameraMode cameraMode = findMode(camera, mode);
+      if (cameraMode == null)
+        throw new IllegalArgumentException(camera + " has no mode " + mode);
+      frames = syntheticFrames(cameraMode.getWidth(), cameraMode.getHeight(), 8);
+    }
+
+    ImageSender sender = new ImageSender(new InetSocketAddress(host, port), frames, numCameras);
+    sender.setFrameRate(fps);
+    sender.setPacketSize(packetSize);
+    sender.setMode(mode);
+    sender.setLoss(loss);
+    sender.setDuplication(dup);
+    sender.setReordering(reorder, reorderDepth);
+    sender.setBurstLoss(burst, burstLength);
+    sender.setFec(fec);
+    if (listen > 0)
+      sender.listen(listen);
+
+    Thread thread = new Thread(sender, "ImageSender");
+    thread.start();
+    long start = System.currentTimeMillis();
+    while (thread.isAlive() && (seconds <= 0 || System.currentTimeMillis() - start < seconds * 1000))
+    {
+      Thread.sleep(1000);
+      System.out.println(sender);
     }
+    sender.stop();
+    thread.join();
 
     System.out.println("exit");
   }
@@ -0,0 +1,139 @@
+package tools;
+
+import java.net.InetSocketAddress;
+import java.util.List;
+import java.util.Locale;
+
+import application.CameraMode;
+import application.NackRequester;
+import application.StreamReceiver;
+
+/**
+ * Measures what selective retransmission buys under random packet loss. For
+ * each loss rate a local ImageSender streams one camera mode at a fixed
+ * frame rate to a StreamReceiver, once without NACK and once with a
+ * NackRequester asking the sender's command port for what goes missing, and
+ * the frames that come out whole are counted. Retransmitted packets are lost
+ * at the same rate as the rest.
+ */
+public class NackBenchmark
+{
+  private static final int DATA_PORT = 1235;
+  private static final int COMMAND_PORT = 1234;
+  private static final int FRAMES_PER_MODE = 4;
+
+  private static final String USAGE = "usage: NackBenchmark [--camera OV2640] [--mode 8] [--packet 1472] [--fps 10]"
+      + " [--loss 0.001,0.005,0.01,0.02] [--delay 2] [--retry 20] [--budget 100] [--warmup ms] [--measure ms]";
+
+  private final StreamReceiver receiver;
+  private final long warmupMillis;
+  private final long measureMillis;
+
+  public NackBenchmark(long warmupMillis, long measureMillis)
+  {
+    this.warmupMillis = warmupMillis;
+    this.measureMillis = measureMillis;
+
+    receiver = new StreamReceiver(DATA_PORT);
+    Thread thread = new Thread(receiver, "StreamReceiver");
+    thread.setDaemon(true);
+    thread.start();
+  }
+
+  /**
+   * Stream at one loss rate, with or without NACK, and return the report line.
+   */
+  public String measure(List<byte[]> frames, int mode, int packetSize, double fps, double loss, NackRequester nack)
+      throws Exception
+  {
+    ImageSender sender = new ImageSender(new InetSocketAddress("127.0.0.1", DATA_PORT), frames, 1);
+    sender.setMode(mode);
+    sender.setPacketSize(packetSize);
+    sender.setFrameRate(fps);
+    sender.setLoss(loss);
+    sender.listen(COMMAND_PORT);
+    Thread thread = new Thread(sender, "ImageSender");
+    thread.start();
+    if (nack != null)
+    {
+      Thread nackThread = new Thread(nack, "NackRequester");
+      nackThread.setDaemon(true);
+      nackThread.start();
+    }
+    receiver.setNackRequester(nack);
+
+    // the sender's first packet resets the receiver, so counting starts after
+    // the warm up
+    Thread.sleep(warmupMillis);
+    long sentFrames = sender.getSentFrames();
+    long sentPackets = sender.getSentPackets();
+    long resent = sender.getRetransmittedPackets();
+    long completed = receiver.getCompletedFrames();
+    long dropped = receiver.getDroppedPackets();
+    long start = System.nanoTime();
+
+    Thread.sleep(measureMillis);
+
+    double seconds = 1e-9 * (System.nanoTime() - start);
+    sentFrames = sender.getSentFrames() - sentFrames;
+    sentPackets = sender.getSentPackets() - sentPackets;
+    resent = sender.getRetransmittedPackets() - resent;
+    completed = receiver.getCompletedFrames() - completed;
+    dropped = receiver.getDroppedPackets() - dropped;
+
+    receiver.setNackRequester(null);
+    if (nack != null)
+      nack.stop();
+    sender.stop();
+    thread.join();
+    // let the socket drain before the next step
+    Thread.sleep(200);
+
+    return String.format(Locale.ROOT, "%6.1f%% %5s %8.1f %8.1f %7.1f%% %9d %9d %9d", 100 * loss,
+        nack == null ? "off" : "on", sentFrames / seconds, completed / seconds,
+        sentFrames == 0 ? 0 : 100.0 * completed / sentFrames, sentPackets, resent, dropped);
+  }
+
+  public static void main(String[] args) throws Exception
+  {
+    // delay, retry and budget are the NackRequester's, in milliseconds.
+    // unrepaired is the receiver's dropped packets, which a repair undoes
+    Options options = new Options(USAGE, args);
+    String camera = options.get("--camera", "OV2640");
+    int mode = options.getInt("--mode", 8);
+    int packetSize = options.getInt("--packet", 1472);
+    double fps = options.getDouble("--fps", 10);
+    List<Double> losses = options.getDoubles("--loss", List.of(0.001, 0.005, 0.01, 0.02));
+    long delay = options.getLong("--delay", 2);
+    long retry = options.getLong("--retry", 20);
+    long budget = options.getLong("--budget", 100);
+    long warmup = options.getLong("--warmup", 500);
+    long measure = options.getLong("--measure", 4000);
+
+    CameraMode cameraMode = ImageSender.findMode(camera, mode);
+    if (cameraMode == null)
+      throw new IllegalArgumentException(camera + " has no mode " + mode);
+    List<byte[]> frames = ImageSender.syntheticFrames(cameraMode.getWidth(), cameraMode.getHeight(),
+        FRAMES_PER_MODE);
+    long frameBytes = 0;
+    for (byte[] frame : frames)
+      frameBytes += frame.length / frames.size();
+    System.out.printf("%s %s, %d byte packets, %d byte frames, %.1f fps%n", cameraMode.getClass().getSimpleName(),
+        cameraMode.getName(), packetSize, frameBytes, fps);
+    System.out.printf("%7s %5s %8s %8s %8s %9s %9s %9s%n", "loss", "nack", "sent/s", "whole/s", "whole", "packets",
+        "resent", "unrepaired");
+
+    NackBenchmark benchmark = new NackBenchmark(warmup, measure);
+    InetSocketAddress command = new InetSocketAddress("127.0.0.1", COMMAND_PORT);
+    for (double loss : losses)
+    {
+      System.out.println(benchmark.measure(frames, mode, packetSize, fps, loss, null));
+      NackRequester nack = new NackRequester(command, delay, retry, budget);
+      System.out.println(benchmark.measure(frames, mode, packetSize, fps, loss, nack));
+      System.out.println("  " + nack);
+    }
+
+    System.exit(0);
+  }
+
+}
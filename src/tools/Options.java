@@ -0,0 +1,162 @@
+package tools;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Command line options given as --name value pairs. The names a tool takes
+ * are the --words of its usage line, so the two can't drift apart, and the
+ * usage line is shown with any error.
+ */
+public class Options
+{
+  private static final Pattern NAME = Pattern.compile("--[a-z][a-z0-9-]*");
+
+  private final String usage;
+  private final Set<String> names = new HashSet<>();
+  private final Map<String, String> values = new HashMap<>();
+
+  public Options(String usage, String[] args)
+  {
+    this.usage = usage;
+    Matcher matcher = NAME.matcher(usage);
+    while (matcher.find())
+      names.add(matcher.group());
+
+    for (int i = 0; i < args.length; i += 2)
+    {
+      if (!names.contains(args[i]))
+        throw new IllegalArgumentException("unknown option " + args[i] + "\n" + usage);
+      if (i + 1 == args.length)
+        throw new IllegalArgumentException("no value for " + args[i] + "\n" + usage);
+      values.put(args[i], args[i + 1]);
+    }
+  }
+
+  public boolean has(String name)
+  {
+    return value(name) != null;
+  }
+
+  public String get(String name, String defaultValue)
+  {
+    String value = value(name);
+    return value == null ? defaultValue : value;
+  }
+
+  public int getInt(String name, int defaultValue)
+  {
+    String value = value(name);
+    try
+    {
+      return value == null ? defaultValue : Integer.parseInt(value.trim());
+    } catch (NumberFormatException e)
+    {
+      throw badValue(name, value);
+    }
+  }
+
+  public long getLong(String name, long defaultValue)
+  {
+    String value = value(name);
+    try
+    {
+      return value == null ? defaultValue : Long.parseLong(value.trim());
+    } catch (NumberFormatException e)
+    {
+      throw badValue(name, value);
+    }
+  }
+
+  public double getDouble(String name, double defaultValue)
+  {
+    String value = value(name);
+    try
+    {
+      return value == null ? defaultValue : Double.parseDouble(value.trim());
+    } catch (NumberFormatException e)
+    {
+      throw badValue(name, value);
+    }
+  }
+
+  // a comma separated list, e.g. --sizes 1024,1280
+  public List<Integer> getInts(String name, List<Integer> defaultValue)
+  {
+    String value = value(name);
+    if (value == null)
+      return defaultValue;
+    List<Integer> list = new ArrayList<>();
+    try
+    {
+      for (String item : value.split(","))
+        list.add(Integer.parseInt(item.trim()));
+    } catch (NumberFormatException e)
+    {
+      throw badValue(name, value);
+    }
+    return list;
+  }
+
+  public List<Double> getDoubles(String name, List<Double> defaultValue)
+  {
+    String value = value(name);
+    if (value == null)
+      return defaultValue;
+    List<Double> list = new ArrayList<>();
+    try
+    {
+      for (String item : value.split(","))
+        list.add(Double.parseDouble(item.trim()));
+    } catch (NumberFormatException e)
+    {
+      throw badValue(name, value);
+    }
+    return list;
+  }
+
+  private String value(String name)
+  {
+    // a name missing from the usage line is a mistake in the tool itself
+    if (!names.contains(name))
+      throw new IllegalStateException(name + " is not in the usage line " + usage);
+    return values.get(name);
+  }
+
+  private IllegalArgumentException badValue(String name, String value)
+  {
+    return new IllegalArgumentException("bad value " + value + " for " + name + "\n" + usage);
+  }
+
+  public static void main(String[] args) throws Exception
+  {
+    String usage = "usage: Options [--port 1235] [--sizes 1024,1280] [--max-fps 500]";
+    Options options = new Options(usage, new String[] { "--port", "1300", "--sizes", "1024, 2048" });
+    if (options.getInt("--port", 1235) != 1300 || !options.getInts("--sizes", null).equals(List.of(1024, 2048))
+        || options.getDouble("--max-fps", 500) != 500 || options.has("--max-fps"))
+      throw new Exception("wrong values");
+
+    String[][] bad = { { "--port" }, { "--host", "x" }, { "--port", "x" }, { "--sizes", "1,,2" } };
+    for (String[] arguments : bad)
+    {
+      try
+      {
+        Options rejected = new Options(usage, arguments);
+        rejected.getInt("--port", 0);
+        rejected.getInts("--sizes", null);
+        throw new Exception("accepted " + String.join(" ", arguments));
+      } catch (IllegalArgumentException e)
+      {
+        System.out.println(e.getMessage().split("\n")[0]);
+      }
+    }
+
+  }// public static void main(String[] args) throws Exception
+
+}
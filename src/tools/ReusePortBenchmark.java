@@ -0,0 +1,115 @@
+package tools;
+
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.DatagramChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+import application.ReusePortIngest;
+
+/**
+ * Measures how receive throughput on one port scales with the number of
+ * SO_REUSEPORT sockets. Every sender is a separate simulated camera with its
+ * own source port, sending back to back frames over localhost.
+ */
+public class ReusePortBenchmark
+{
+  private static final byte START_OF_IMAGE = (byte) 0x80;
+  private static final byte END_OF_IMAGE = (byte) 0x40;
+  private static final byte FIRST_PACKET = (byte) 0x20;
+  private static final int HEADER_SIZE = 9;
+
+  private static volatile boolean sending;
+
+  private static void send(int port, int packetSize, int packetsPerFrame)
+  {
+    try (DatagramChannel channel = DatagramChannel.open())
+    {
+      channel.connect(new InetSocketAddress("127.0.0.1", port));
+      ByteBuffer packet = ByteBuffer.allocateDirect(packetSize);
+      packet.order(ByteOrder.LITTLE_ENDIAN);
+
+      int packetNumber = 1;
+      int imageNumber = 1;
+      while (sending)
+      {
+        for (int i = 0; i < packetsPerFrame; i++)
+        {
+          byte status = 0x04;
+          if (i == 0)
+            status |= START_OF_IMAGE;
+          if (i == packetsPerFrame - 1)
+            status |= END_OF_IMAGE;
+          if (packetNumber == 1)
+            status |= FIRST_PACKET;
+
+          packet.clear();
+          packet.putInt(0, packetNumber++);
+          packet.putInt(4, imageNumber);
+          packet.put(8, status);
+          channel.write(packet);
+        }
+        imageNumber++;
+      }
+    } catch (Exception e)
+    {
+      System.out.println("sender " + e.toString());
+    }
+  }
+
+  private static void run(int port, int numSockets, int numSenders, int packetSize, int packetsPerFrame,
+      long milliseconds) throws Exception
+  {
+    ReusePortIngest ingest = new ReusePortIngest(port, numSockets, null);
+    ingest.start();
+
+    sending = true;
+    List<Thread> senders = new ArrayList<>();
+    for (int i = 0; i < numSenders; i++)
+    {
+      Thread thread = new Thread(() -> send(port, packetSize, packetsPerFrame), "sender-" + i);
+      thread.start();
+      senders.add(thread);
+    }
+
+    // let the senders and the JIT settle before measuring
+    Thread.sleep(milliseconds / 4);
+    long packets = ingest.getReceivedPackets();
+    long bytes = ingest.getReceivedBytes();
+    long frames = ingest.getCompletedFrames();
+    long start = System.nanoTime();
+    Thread.sleep(milliseconds);
+    double seconds = 1e-9 * (System.nanoTime() - start);
+    packets = ingest.getReceivedPackets() - packets;
+    bytes = ingest.getReceivedBytes() - bytes;
+    frames = ingest.getCompletedFrames() - frames;
+
+    sending = false;
+    for (Thread thread : senders)
+      thread.join();
+    ingest.stop();
+
+    System.out.printf("%7d %7d %12.0f %10.2f %10.1f%n", numSockets, numSenders, packets / seconds,
+        8e-6 * bytes / seconds, frames / seconds);
+    System.out.print(ingest);
+  }
+
+  public static void main(String[] args) throws Exception
+  {
+    // usage: ReusePortBenchmark [senders] [seconds] [port] [max sockets]
+    int numSenders = args.length > 0 ? Integer.parseInt(args[0]) : 8;
+    long milliseconds = 1000L * (args.length > 1 ? Integer.parseInt(args[1]) : 5);
+    int port = args.length > 2 ? Integer.parseInt(args[2]) : 1235;
+    int maxSockets = args.length > 3 ? Integer.parseInt(args[3]) : Runtime.getRuntime().availableProcessors();
+    final int PACKET_SIZE = 1472;
+    final int PACKETS_PER_FRAME = 40;
+
+    System.out.printf("%7s %7s %12s %10s %10s%n", "sockets", "senders", "packets/s", "Mbit/s", "frames/s");
+    for (int numSockets = 1; numSockets <= maxSockets; numSockets *= 2)
+      run(port, numSockets, numSenders, PACKET_SIZE, PACKETS_PER_FRAME, milliseconds);
+
+  }// public static void main(String[] args) throws Exception
+
+}